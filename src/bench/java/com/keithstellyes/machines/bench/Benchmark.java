@@ -0,0 +1,230 @@
+package com.keithstellyes.machines.bench;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.diff.Engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs every workload in the corpus on every engine, checks each run gives the golden
+ * output, and reports instructions per second and wall time per run.
+ *
+ * With a baseline, any workload and engine whose throughput fell more than the threshold
+ * below it is a regression. Wrong output or a regression exits with status 1, which is
+ * what fails the gradle benchmark task. --update writes this run's numbers as the new
+ * baseline instead of checking against it, as long as every output was right. A baseline
+ * file that doesn't exist is an error unless --update is going to write it.
+ *
+ * Options:
+ * <pre>
+ * --baseline file    instructions per second to hold each workload and engine to
+ * --threshold 0.10   how far below the baseline throughput may fall
+ * --update           write the baseline rather than check it
+ * --warmup ms        how long to run each workload and engine before measuring
+ * --measure ms       how long to measure each workload and engine for, loading included
+ * --only name        only run workloads whose names contain this
+ * </pre>
+ */
+public class Benchmark {
+    public static final double DEFAULT_THRESHOLD = 0.10;
+    public static final long DEFAULT_WARMUP_MILLIS = 500;
+    public static final long DEFAULT_MEASURE_MILLIS = 2000;
+
+    /**
+     * A measurement has at least this many runs, however long they take.
+     */
+    private static final int MIN_RUNS = 3;
+
+    private static final Map<String, Engine> ENGINES = new LinkedHashMap<>();
+
+    static {
+        ENGINES.put("reference", Engine.REFERENCE);
+        ENGINES.put("step", Engine.STEP);
+        ENGINES.put("run-loop", Engine.RUN_LOOP);
+    }
+
+    private Path baseline;
+    private double threshold = DEFAULT_THRESHOLD;
+    private boolean update;
+    private long warmupMillis = DEFAULT_WARMUP_MILLIS;
+    private long measureMillis = DEFAULT_MEASURE_MILLIS;
+    private String only = "";
+
+    public static void main(String[] args) throws IOException {
+        Benchmark benchmark = new Benchmark();
+        for(int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--baseline":
+                    benchmark.baseline = Paths.get(args[++i]);
+                    break;
+                case "--threshold":
+                    benchmark.threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--update":
+                    benchmark.update = true;
+                    break;
+                case "--warmup":
+                    benchmark.warmupMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--measure":
+                    benchmark.measureMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--only":
+                    benchmark.only = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if(!benchmark.run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return false if any output was wrong or any throughput regressed
+     */
+    public boolean run() throws IOException {
+        Properties expected = new Properties();
+        if(baseline != null && !update) {
+            if(!Files.exists(baseline)) {
+                System.err.println("FAILED no baseline at " + baseline
+                        + ", write one with --update (gradle benchmarkBaseline)");
+                return false;
+            }
+            try(InputStream in = Files.newInputStream(baseline)) {
+                expected.load(in);
+            }
+        }
+
+        List<String> failures = new ArrayList<>();
+        Properties measured = new Properties();
+        System.out.printf("%-16s %-10s %12s %6s %10s %10s %10s%n",
+                "workload", "engine", "instructions", "runs", "ms/run", "MIPS", "vs base");
+        for(Workload workload : Workload.loadCorpus()) {
+            if(!workload.getName().contains(only)) {
+                continue;
+            }
+            for(Map.Entry<String, Engine> engine : ENGINES.entrySet()) {
+                String key = workload.getName() + "/" + engine.getKey();
+                Result result;
+                try {
+                    result = measure(workload, engine.getValue());
+                } catch (WrongOutputException e) {
+                    failures.add(key + ": " + e.getMessage());
+                    System.out.printf("%-16s %-10s %s%n", workload.getName(), engine.getKey(),
+                            e.getMessage());
+                    continue;
+                }
+
+                long throughput = result.instructionsPerSecond();
+                measured.setProperty(key, Long.toString(throughput));
+                String change = "";
+                String base = expected.getProperty(key);
+                if(base != null) {
+                    double ratio = throughput / Double.parseDouble(base);
+                    change = String.format("%+.1f%%", (ratio - 1) * 100);
+                    if(ratio < 1 - threshold) {
+                        failures.add(key + ": " + throughput + " instructions/s is " + change
+                                + " against the baseline of " + base);
+                    }
+                }
+                System.out.printf("%-16s %-10s %12d %6d %10.2f %10.2f %10s%n",
+                        workload.getName(), engine.getKey(), result.steps, result.runs,
+                        result.millisPerRun(), throughput / 1e6, change);
+            }
+        }
+
+        if(update && baseline != null && failures.isEmpty()) {
+            try(OutputStream out = Files.newOutputStream(baseline)) {
+                measured.store(out, "instructions per second, from the benchmark's --update");
+            }
+            System.out.println("Wrote baseline to " + baseline);
+        }
+        for(String failure : failures) {
+            System.err.println("FAILED " + failure);
+        }
+
+        return failures.isEmpty();
+    }
+
+    private Result measure(Workload workload, Engine engine) throws WrongOutputException {
+        long deadline = System.nanoTime() + warmupMillis * 1_000_000;
+        do {
+            runOnce(workload, engine);
+        } while(System.nanoTime() < deadline);
+
+        // the deadline counts loading too, or a workload that loads slowly and halts quickly
+        // would need thousands of loads for every millisecond measured
+        Result result = new Result();
+        deadline = System.nanoTime() + measureMillis * 1_000_000;
+        while(result.runs < MIN_RUNS || System.nanoTime() < deadline) {
+            Result run = runOnce(workload, engine);
+            result.steps = run.steps;
+            result.nanos += run.nanos;
+            result.runs++;
+        }
+
+        return result;
+    }
+
+    private static Result runOnce(Workload workload, Engine engine) throws WrongOutputException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Machine machine = workload.newMachine(out);
+        long start = System.nanoTime();
+        engine.run(machine, workload.getMaxSteps());
+        long nanos = System.nanoTime() - start;
+
+        if(workload.mustHalt() && !machine.isHalted()) {
+            throw new WrongOutputException("didn't halt within " + workload.getMaxSteps()
+                    + " instructions");
+        }
+        byte[] output = out.toByteArray();
+        if(!Arrays.equals(workload.getExpectedOutput(), output)) {
+            throw new WrongOutputException("wrong output, " + output.length
+                    + " bytes where the golden output has " + workload.getExpectedOutput().length);
+        }
+
+        Result result = new Result();
+        result.steps = machine.getStepCount();
+        result.nanos = nanos;
+        result.runs = 1;
+
+        return result;
+    }
+
+    private static class Result {
+        private long steps;
+        private long nanos;
+        private int runs;
+
+        private long instructionsPerSecond() {
+            return (long) (steps * (double) runs * 1e9 / nanos);
+        }
+
+        private double millisPerRun() {
+            return nanos / 1e6 / runs;
+        }
+    }
+
+    private static class WrongOutputException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private WrongOutputException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.keithstellyes.machines.bench;
+
+import com.keithstellyes.machines.shared.Machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A program from the benchmark corpus, along with its input and the output it must give.
+ *
+ * Each workload is a properties file under /workloads on the classpath, named in
+ * /workloads/index, like:
+ *
+ * <pre>
+ * machine=lmc
+ * program=primes.lmc
+ * output=primes.out
+ * input=sort.in
+ * maxSteps=2000000
+ * </pre>
+ *
+ * Brainfuck and Malbolge programs are source text. LMC programs are a decimal word per
+ * mailbox and Mano programs a hex word per cell, from address 0, with anything after a #
+ * being a comment. input is optional. Without maxSteps the program must halt by itself,
+ * with it the program is run for at most that many instructions, which is how programs
+ * that never halt are benchmarked.
+ */
+public class Workload {
+    public static final String BRAINFUCK = "brainfuck";
+    public static final String LMC = "lmc";
+    public static final String MANO = "mano";
+    public static final String MALBOLGE = "malbolge";
+
+    /**
+     * The most a workload without maxSteps may run before it's taken to be stuck.
+     */
+    public static final int DEFAULT_MAX_STEPS = 100_000_000;
+
+    private static final String DIRECTORY = "/workloads/";
+
+    private final String name;
+    private final String machine;
+    private final String program;
+    private final byte[] input;
+    private final byte[] expectedOutput;
+    private final int maxSteps;
+    private final boolean mustHalt;
+
+    private Workload(String name, String machine, String program, byte[] input,
+                     byte[] expectedOutput, int maxSteps, boolean mustHalt) {
+        this.name = name;
+        this.machine = machine;
+        this.program = program;
+        this.input = input;
+        this.expectedOutput = expectedOutput;
+        this.maxSteps = maxSteps;
+        this.mustHalt = mustHalt;
+    }
+
+    /**
+     * Every workload named in the index, in order.
+     */
+    public static List<Workload> loadCorpus() throws IOException {
+        String index = new String(resource("index"), StandardCharsets.UTF_8);
+        List<Workload> workloads = new ArrayList<>();
+        for(String line : index.split("\n")) {
+            line = stripComment(line).trim();
+            if(!line.isEmpty()) {
+                workloads.add(load(line));
+            }
+        }
+
+        return workloads;
+    }
+
+    public static Workload load(String name) throws IOException {
+        Properties properties = new Properties();
+        try(InputStream in = new ByteArrayInputStream(resource(name + ".properties"))) {
+            properties.load(in);
+        }
+
+        String machine = required(properties, name, "machine");
+        String program = new String(resource(required(properties, name, "program")),
+                StandardCharsets.UTF_8);
+        byte[] expectedOutput = resource(required(properties, name, "output"));
+        String inputName = properties.getProperty("input");
+        byte[] input = inputName == null ? new byte[0] : resource(inputName);
+        String maxSteps = properties.getProperty("maxSteps");
+
+        Workload workload = new Workload(name, machine, program, input, expectedOutput,
+                maxSteps == null ? DEFAULT_MAX_STEPS : Integer.parseInt(maxSteps),
+                maxSteps == null);
+        // fail on a bad program now, not in the middle of a measurement
+        workload.newMachine(new ByteArrayOutputStream());
+
+        return workload;
+    }
+
+    /**
+     * A machine with this workload's program loaded and input ready, writing to out.
+     */
+    public Machine newMachine(OutputStream out) {
+        InputStream in = new ByteArrayInputStream(input);
+        switch (machine) {
+            case BRAINFUCK: {
+                com.keithstellyes.machines.brainfuck.Machine m =
+                        new com.keithstellyes.machines.brainfuck.Machine(in, out);
+                m.loadProgram(program);
+                return m;
+            }
+            case LMC: {
+                com.keithstellyes.machines.lmc.Machine m =
+                        new com.keithstellyes.machines.lmc.Machine(in, out);
+                m.loadProgram(parseWords(program, 10, 100));
+                return m;
+            }
+            case MANO: {
+                com.keithstellyes.machines.mano.Machine m =
+                        new com.keithstellyes.machines.mano.Machine(in, out);
+                m.loadProgram(parseWords(program, 16,
+                        com.keithstellyes.machines.mano.Machine.MEMORY_COUNT));
+                return m;
+            }
+            case MALBOLGE: {
+                com.keithstellyes.machines.malbolge.Machine m =
+                        new com.keithstellyes.machines.malbolge.Machine(in, out);
+                m.loadProgram(program);
+                return m;
+            }
+            default:
+                throw new IllegalArgumentException(name + ": no machine called " + machine);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMachine() {
+        return machine;
+    }
+
+    public byte[] getExpectedOutput() {
+        return expectedOutput.clone();
+    }
+
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * Whether the program has to halt within getMaxSteps for its output to count.
+     */
+    public boolean mustHalt() {
+        return mustHalt;
+    }
+
+    private static short[] parseWords(String program, int radix, int size) {
+        short[] words = new short[size];
+        int i = 0;
+        for(String line : program.split("\n")) {
+            for(String word : stripComment(line).trim().split("\\s+")) {
+                if(word.isEmpty()) {
+                    continue;
+                }
+                if(i == size) {
+                    throw new IllegalArgumentException("Program is more than " + size + " words");
+                }
+                words[i++] = (short) Integer.parseInt(word, radix);
+            }
+        }
+
+        return words;
+    }
+
+    private static String stripComment(String line) {
+        int comment = line.indexOf('#');
+        return comment == -1 ? line : line.substring(0, comment);
+    }
+
+    private static String required(Properties properties, String name, String key) {
+        String value = properties.getProperty(key);
+        if(value == null) {
+            throw new IllegalArgumentException(name + " has no " + key);
+        }
+
+        return value;
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try(InputStream in = Workload.class.getResourceAsStream(DIRECTORY + name)) {
+            if(in == null) {
+                throw new IOException("No workload file " + DIRECTORY + name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.keithstellyes.machines.brainfuck;
+
+import com.keithstellyes.machines.shared.memory.ByteMemory;
+
+/**
+ * A loop run some faster way than stepping through it, from its opening bracket. This is
+ * only public so that the classes LoopCompiler generates can implement it.
+ */
+public interface CompiledLoop {
+    int PC = 0;
+    int DATA_PTR = 1;
+    /**
+     * How many times the loop itself went round.
+     */
+    int BACK_EDGES = 2;
+    int STATE_SIZE = 3;
+
+    /**
+     * Runs at most budget instructions, stopping early where stepping has to take over,
+     * such as at the edge of the tape. The machine is left exactly as stepping that many
+     * instructions would have left it, apart from the registers, which go in state.
+     * @param machine where output goes
+     * @param state STATE_SIZE long, where the program counter to carry on from, relative to
+     *              the opening bracket, and the data pointer are put, along with BACK_EDGES
+     * @return how many instructions were run, which may be 0
+     */
+    int run(ByteMemory memory, com.keithstellyes.machines.shared.Machine machine, int dataPtr,
+            int budget, int[] state);
+}
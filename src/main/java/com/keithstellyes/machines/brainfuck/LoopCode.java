@@ -0,0 +1,400 @@
+package com.keithstellyes.machines.brainfuck;
+
+import com.keithstellyes.machines.shared.memory.ByteMemory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A loop turned into a flat list of ops, the optimized tier. Each op is one instruction,
+ * or for a loop that only adds to cells around the data pointer and counts its own cell
+ * down to 0, the whole loop at once. Ops run without building deltas and, apart from where
+ * a move would leave the tape, without wrapping the data pointer. Inside a balanced loop,
+ * see PointerBalance, moves aren't checked at all, since the loop's opening bracket checks
+ * the whole loop fits on the tape before going in, and stops for the machine to step
+ * through it where it doesn't. The data pointer is back where it was at the closing
+ * bracket, so going round again goes straight to the op after the opening one.
+ *
+ * Loops that read input aren't turned into ops, since the input log counts reads by step.
+ * Program counters are kept relative to the loop's opening bracket, so the same loop gives
+ * the same ops wherever it is in whichever program.
+ */
+final class LoopCode implements CompiledLoop {
+    static final int ADD = 0;
+    static final int MOVE = 1;
+    static final int OUT = 2;
+    static final int OPEN = 3;
+    static final int CLOSE = 4;
+    /**
+     * A loop of adds and moves that ends where it started and adds 1 or -1 to its own cell,
+     * so it goes round as many times as it takes that cell to get to 0.
+     */
+    static final int MULTIPLY = 5;
+    /**
+     * A move inside a balanced loop whose range was checked.
+     */
+    static final int MOVE_IN_RANGE = 6;
+    /**
+     * The opening bracket of a balanced loop, with the lowest and highest offset it moves
+     * the data pointer to in lows and highs.
+     */
+    static final int OPEN_CHECKED = 7;
+    /**
+     * The closing bracket of a balanced loop, which jumps past its OPEN_CHECKED, since the
+     * range that checked still holds.
+     */
+    static final int CLOSE_CHECKED = 8;
+
+    /**
+     * The loop's instructions, with jumps relative to its opening bracket.
+     */
+    final int[] instructions;
+    final int[] kinds;
+    final int[] args;
+    final int[] pcs;
+    /**
+     * For OPEN, the op after its CLOSE, for CLOSE, its OPEN, for CLOSE_CHECKED the op after
+     * its OPEN_CHECKED, and for MULTIPLY the program counter of its closing bracket.
+     */
+    final int[] jumps;
+    /**
+     * For MULTIPLY, the cells added to relative to the data pointer and how much each trip
+     * adds, and for it and OPEN_CHECKED, the lowest and highest cell the data pointer goes
+     * to.
+     */
+    final int[][] offsets;
+    final int[][] factors;
+    final int[] lows;
+    final int[] highs;
+    /**
+     * For ops inside a balanced loop whose range was checked, how far the data pointer is
+     * from where it was at that loop's opening bracket when the op runs. Since inner loops
+     * are balanced too, this is the same every time round.
+     */
+    final int[] shifts;
+
+    private LoopCode(int[] instructions, int size) {
+        this.instructions = instructions;
+        kinds = new int[size];
+        args = new int[size];
+        pcs = new int[size];
+        jumps = new int[size];
+        offsets = new int[size][];
+        factors = new int[size][];
+        lows = new int[size];
+        highs = new int[size];
+        shifts = new int[size];
+    }
+
+    static char opcode(int instruction) {
+        return (char) (byte) (instruction >>> 24);
+    }
+
+    static int argument(int instruction) {
+        return (short) (instruction >>> 8);
+    }
+
+    /**
+     * @param header the program counter of the loop's opening bracket
+     * @return null if the loop can't be turned into ops
+     */
+    static LoopCode compile(int[] program, int header) {
+        int end = argument(program[header]);
+        int[] instructions = new int[end - header + 1];
+        for(int pc = 0; pc < instructions.length; pc++) {
+            int instruction = program[header + pc];
+            char opcode = opcode(instruction);
+            if(opcode == '[' || opcode == ']') {
+                instruction = Machine.buildInstruction(opcode, argument(instruction) - header);
+            }
+            instructions[pc] = instruction;
+        }
+
+        LoopCode code = new LoopCode(instructions, instructions.length);
+        int size = 0;
+        Deque<Integer> open = new ArrayDeque<>();
+        // the closing bracket of the balanced loop being compiled, if any
+        int checkedUntil = -1;
+        int shift = 0;
+        for(int pc = 0; pc < instructions.length; pc++) {
+            int instruction = instructions[pc];
+            int argument = argument(instruction);
+            code.pcs[size] = pc;
+            code.shifts[size] = shift;
+            switch (opcode(instruction)) {
+                case '+':
+                    code.op(size, ADD, argument);
+                    break;
+                case '-':
+                    code.op(size, ADD, -argument);
+                    break;
+                case '>':
+                case '<':
+                    int move = opcode(instruction) == '>' ? argument : -argument;
+                    if(checkedUntil < 0) {
+                        code.op(size, MOVE, move);
+                    } else {
+                        code.op(size, MOVE_IN_RANGE, move);
+                        shift += move;
+                    }
+                    break;
+                case '.':
+                    code.op(size, OUT, argument);
+                    break;
+                case '[':
+                    if(code.multiply(instructions, pc, size)) {
+                        pc = argument;
+                        break;
+                    }
+                    PointerBalance balance = checkedUntil < 0 ? PointerBalance.of(instructions, pc) : null;
+                    if(balance != null) {
+                        code.op(size, OPEN_CHECKED, 0);
+                        code.lows[size] = balance.low;
+                        code.highs[size] = balance.high;
+                        checkedUntil = argument;
+                    } else {
+                        code.op(size, OPEN, 0);
+                    }
+                    open.push(size);
+                    break;
+                case ']':
+                    int opening = open.pop();
+                    if(pc == checkedUntil) {
+                        checkedUntil = -1;
+                        code.op(size, CLOSE_CHECKED, 0);
+                        code.jumps[size] = opening + 1;
+                    } else {
+                        code.op(size, CLOSE, 0);
+                        code.jumps[size] = opening;
+                    }
+                    code.jumps[opening] = size + 1;
+                    break;
+                default:
+                    return null;
+            }
+            size++;
+        }
+
+        return code.trim(size);
+    }
+
+    private void op(int index, int kind, int arg) {
+        kinds[index] = kind;
+        args[index] = arg;
+    }
+
+    /**
+     * Makes index a MULTIPLY op if the loop at pc is one.
+     */
+    private boolean multiply(int[] program, int pc, int index) {
+        int close = argument(program[pc]);
+        int[] added = new int[close - pc];
+        int[] cells = new int[close - pc];
+        int count = 0;
+        int at = 0;
+        int low = 0;
+        int high = 0;
+        for(int i = pc + 1; i < close; i++) {
+            int instruction = program[i];
+            int argument = argument(instruction);
+            switch (opcode(instruction)) {
+                case '>':
+                    at += argument;
+                    break;
+                case '<':
+                    at -= argument;
+                    break;
+                case '+':
+                case '-':
+                    int j = 0;
+                    while(j < count && cells[j] != at) {
+                        j++;
+                    }
+                    if(j == count) {
+                        cells[count++] = at;
+                    }
+                    added[j] += opcode(instruction) == '+' ? argument : -argument;
+                    break;
+                default:
+                    return false;
+            }
+            low = Math.min(low, at);
+            high = Math.max(high, at);
+        }
+
+        int self = 0;
+        int targets = 0;
+        for(int j = 0; j < count; j++) {
+            if(cells[j] == 0) {
+                self = added[j] & 0xFF;
+            } else {
+                targets++;
+            }
+        }
+        if(at != 0 || (self != 1 && self != 0xFF)) {
+            return false;
+        }
+
+        op(index, MULTIPLY, self == 1 ? 1 : -1);
+        jumps[index] = close;
+        offsets[index] = new int[targets];
+        factors[index] = new int[targets];
+        for(int j = 0, k = 0; j < count; j++) {
+            if(cells[j] != 0) {
+                offsets[index][k] = cells[j];
+                factors[index][k] = added[j];
+                k++;
+            }
+        }
+        lows[index] = low;
+        highs[index] = high;
+
+        return true;
+    }
+
+    private LoopCode trim(int size) {
+        LoopCode code = new LoopCode(instructions, size);
+        System.arraycopy(kinds, 0, code.kinds, 0, size);
+        System.arraycopy(args, 0, code.args, 0, size);
+        System.arraycopy(pcs, 0, code.pcs, 0, size);
+        System.arraycopy(jumps, 0, code.jumps, 0, size);
+        System.arraycopy(offsets, 0, code.offsets, 0, size);
+        System.arraycopy(factors, 0, code.factors, 0, size);
+        System.arraycopy(lows, 0, code.lows, 0, size);
+        System.arraycopy(highs, 0, code.highs, 0, size);
+        System.arraycopy(shifts, 0, code.shifts, 0, size);
+
+        return code;
+    }
+
+    /**
+     * How many trips a MULTIPLY op's loop makes with value in its own cell.
+     */
+    static int trips(int add, int value) {
+        value &= 0xFF;
+
+        return add < 0 ? value : (256 - value) & 0xFF;
+    }
+
+    /**
+     * How many instructions a MULTIPLY op's loop runs for a trip.
+     */
+    int tripLength(int op) {
+        return jumps[op] - pcs[op] + 1;
+    }
+
+    @Override
+    public int run(ByteMemory memory, com.keithstellyes.machines.shared.Machine machine,
+                   int dataPtr, int budget, int[] state) {
+        int ptr = dataPtr;
+        int used = 0;
+        int backEdges = 0;
+        int op = 0;
+        while(op < kinds.length) {
+            int left = budget - used;
+            if(left < 1) {
+                break;
+            }
+            switch (kinds[op]) {
+                case ADD:
+                    memory.write(ptr, (byte) (memory.read(ptr) + args[op]));
+                    used++;
+                    op++;
+                    break;
+                case MOVE:
+                    int moved = ptr + args[op];
+                    if(moved < 0 || moved >= Machine.MEMORY_COUNT) {
+                        return stop(state, pcs[op], ptr, backEdges, used);
+                    }
+                    ptr = moved;
+                    used++;
+                    op++;
+                    break;
+                case MOVE_IN_RANGE:
+                    ptr += args[op];
+                    used++;
+                    op++;
+                    break;
+                case OUT:
+                    for(int i = 0; i < args[op]; i++) {
+                        machine.output(memory.read(ptr));
+                    }
+                    used++;
+                    op++;
+                    break;
+                case OPEN:
+                case OPEN_CHECKED:
+                    if(memory.read(ptr) != 0) {
+                        if(kinds[op] == OPEN_CHECKED && (ptr + lows[op] < 0
+                                || ptr + highs[op] >= Machine.MEMORY_COUNT)) {
+                            return stop(state, pcs[op], ptr, backEdges, used);
+                        }
+                        used++;
+                        op++;
+                    } else if(left >= 2) {
+                        // the opening bracket jumps to the closing one, which falls through
+                        used += 2;
+                        op = jumps[op];
+                    } else {
+                        return stop(state, pcs[op], ptr, backEdges, used);
+                    }
+                    break;
+                case CLOSE:
+                    used++;
+                    if(memory.read(ptr) != 0) {
+                        op = jumps[op];
+                        if(op == 0) {
+                            backEdges++;
+                        }
+                    } else {
+                        op++;
+                    }
+                    break;
+                case CLOSE_CHECKED:
+                    if(memory.read(ptr) == 0) {
+                        used++;
+                        op++;
+                    } else if(left >= 2) {
+                        // the opening bracket is a step of its own, it just isn't checked again
+                        used += 2;
+                        op = jumps[op];
+                        if(op == 1) {
+                            backEdges++;
+                        }
+                    } else {
+                        return stop(state, pcs[op], ptr, backEdges, used);
+                    }
+                    break;
+                case MULTIPLY:
+                    int trips = trips(args[op], memory.read(ptr));
+                    int steps = trips == 0 ? 2 : trips * tripLength(op);
+                    if(steps > left || ptr + lows[op] < 0 || ptr + highs[op] >= Machine.MEMORY_COUNT) {
+                        return stop(state, pcs[op], ptr, backEdges, used);
+                    }
+                    int[] cells = offsets[op];
+                    int[] adds = factors[op];
+                    for(int i = 0; i < cells.length; i++) {
+                        int cell = ptr + cells[i];
+                        memory.write(cell, (byte) (memory.read(cell) + trips * adds[i]));
+                    }
+                    memory.write(ptr, (byte) 0);
+                    if(op == 0) {
+                        backEdges += trips;
+                    }
+                    used += steps;
+                    op++;
+                    break;
+            }
+        }
+
+        return stop(state, op < kinds.length ? pcs[op] : instructions.length, ptr, backEdges, used);
+    }
+
+    private static int stop(int[] state, int pc, int ptr, int backEdges, int used) {
+        state[PC] = pc;
+        state[DATA_PTR] = ptr;
+        state[BACK_EDGES] = backEdges;
+
+        return used;
+    }
+}
@@ -0,0 +1,624 @@
+package com.keithstellyes.machines.brainfuck;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns a loop's ops into a class of its own implementing CompiledLoop, the compiled tier,
+ * so the JVM can compile it like any other code. The ops are written straight out as
+ * bytecode, with every op's argument a constant, instead of looked up as LoopCode does.
+ *
+ * The class files are written by hand, at version 49 so the JVM works out the types on
+ * the stack itself, and each is loaded by a class loader of its own so it can be unloaded
+ * once nothing runs it anymore. The same loop is only compiled once however many machines
+ * run it, so that they all run the code the JVM compiled for the first, as long as it is
+ * one of the last CACHE_SIZE compiled.
+ */
+final class LoopCompiler {
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final int CACHE_SIZE = 1024;
+    private static final Map<IntBuffer, CompiledLoop> CACHE = new LinkedHashMap<IntBuffer, CompiledLoop>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<IntBuffer, CompiledLoop> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final String PACKAGE = "com/keithstellyes/machines/brainfuck/";
+    private static final String MEMORY = "com/keithstellyes/machines/shared/memory/ByteMemory";
+    private static final String MACHINE = "com/keithstellyes/machines/shared/Machine";
+    private static final String RUN = "(L" + MEMORY + ";L" + MACHINE + ";II[I)I";
+
+    // the locals of run
+    private static final int MEMORY_LOCAL = 1;
+    private static final int MACHINE_LOCAL = 2;
+    private static final int PTR = 3;
+    private static final int BUDGET = 4;
+    private static final int STATE = 5;
+    private static final int USED = 6;
+    private static final int TMP = 7;
+    private static final int STOP_PC = 8;
+    private static final int BACK_EDGES = 9;
+    private static final int TRIPS = 10;
+    private static final int LOCALS = 11;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int ISTORE = 0x36;
+    private static final int IASTORE = 0x4F;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int INEG = 0x74;
+    private static final int IAND = 0x7E;
+    private static final int IINC = 0x84;
+    private static final int I2B = 0x91;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9A;
+    private static final int IFLT = 0x9B;
+    private static final int IFGT = 0x9D;
+    private static final int IF_ICMPLT = 0xA1;
+    private static final int IF_ICMPGE = 0xA2;
+    private static final int IF_ICMPGT = 0xA3;
+    private static final int GOTO = 0xA7;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+
+    private LoopCompiler() { }
+
+    /**
+     * @return null if the loop is too long for a method of its own
+     */
+    static CompiledLoop compile(LoopCode code) {
+        IntBuffer key = IntBuffer.wrap(code.instructions);
+        synchronized (CACHE) {
+            CompiledLoop compiled = CACHE.get(key);
+            if(compiled != null) {
+                return compiled;
+            }
+        }
+
+        CompiledLoop compiled = define(code);
+        if(compiled != null) {
+            synchronized (CACHE) {
+                CACHE.put(key, compiled);
+            }
+        }
+
+        return compiled;
+    }
+
+    private static CompiledLoop define(LoopCode code) {
+        String name = PACKAGE + "GeneratedLoop" + COUNT.incrementAndGet();
+        byte[] bytes = new ClassWriter(name, code).write();
+        if(bytes == null) {
+            return null;
+        }
+
+        try {
+            Class<?> type = new Loader(LoopCompiler.class.getClassLoader())
+                    .define(name.replace('/', '.'), bytes);
+            return (CompiledLoop) type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class ClassWriter {
+        private final String name;
+        private final LoopCode loop;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Integer> labels = new ArrayList<>();
+        private final List<int[]> fixups = new ArrayList<>();
+
+        ClassWriter(String name, LoopCode loop) {
+            this.name = name;
+            this.loop = loop;
+        }
+
+        byte[] write() {
+            byte[] run = run();
+            if(run == null) {
+                return null;
+            }
+            byte[] init = {
+                    (byte) ALOAD, 0,
+                    (byte) INVOKESPECIAL, 0, 0,
+                    (byte) RETURN
+            };
+            int object = methodRef("java/lang/Object", "<init>", "()V");
+            init[3] = (byte) (object >> 8);
+            init[4] = (byte) object;
+
+            try {
+                int thisClass = classRef(name);
+                int superClass = classRef("java/lang/Object");
+                int compiledLoop = classRef(PACKAGE + "CompiledLoop");
+                int codeName = utf8("Code");
+                int initName = utf8("<init>");
+                int initType = utf8("()V");
+                int runName = utf8("run");
+                int runType = utf8(RUN);
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolCount);
+                out.write(pool.toByteArray());
+                // public final super
+                out.writeShort(0x0031);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(compiledLoop);
+                out.writeShort(0);
+                out.writeShort(2);
+                writeMethod(out, initName, initType, codeName, 1, 1, init);
+                writeMethod(out, runName, runType, codeName, 8, LOCALS, run);
+                out.writeShort(0);
+
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+                                        int maxStack, int maxLocals, byte[] code)
+                throws IOException {
+            // public
+            out.writeShort(0x0001);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            // no exception table or attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        /**
+         * The code of run, or null if it's too long for every branch to reach.
+         */
+        private byte[] run() {
+            int read = methodRef(MEMORY, "read", "(I)B");
+            int write = methodRef(MEMORY, "write", "(IB)V");
+            int output = methodRef(MACHINE, "output", "(I)V");
+
+            int size = loop.kinds.length;
+            int[] starts = new int[size + 1];
+            int[] stops = new int[size];
+            for(int op = 0; op <= size; op++) {
+                starts[op] = label();
+            }
+            for(int op = 0; op < size; op++) {
+                stops[op] = label();
+            }
+            int exit = label();
+
+            for(int local : new int[]{USED, TMP, STOP_PC, BACK_EDGES, TRIPS}) {
+                op(ICONST_0);
+                store(local);
+            }
+
+            for(int op = 0; op < size; op++) {
+                mark(starts[op]);
+                int arg = loop.args[op];
+                int stop = stops[op];
+                if(loop.kinds[op] != LoopCode.MULTIPLY) {
+                    // used >= budget
+                    load(USED);
+                    load(BUDGET);
+                    jump(IF_ICMPGE, stop);
+                }
+                switch (loop.kinds[op]) {
+                    case LoopCode.ADD:
+                        load(MEMORY_LOCAL);
+                        pointer(op, 0);
+                        readCell(op, read);
+                        push(arg);
+                        op(IADD);
+                        op(I2B);
+                        invoke(write);
+                        increment(USED, 1);
+                        break;
+                    case LoopCode.MOVE:
+                        load(PTR);
+                        push(arg);
+                        op(IADD);
+                        store(TMP);
+                        load(TMP);
+                        jump(IFLT, stop);
+                        load(TMP);
+                        push(Machine.MEMORY_COUNT);
+                        jump(IF_ICMPGE, stop);
+                        load(TMP);
+                        store(PTR);
+                        increment(USED, 1);
+                        break;
+                    case LoopCode.MOVE_IN_RANGE:
+                        // the ops after it add its move to their shift instead
+                        increment(USED, 1);
+                        break;
+                    case LoopCode.OUT:
+                        int again = label();
+                        push(arg);
+                        store(TMP);
+                        mark(again);
+                        load(MACHINE_LOCAL);
+                        readCell(op, read);
+                        invoke(output);
+                        increment(TMP, -1);
+                        load(TMP);
+                        jump(IFGT, again);
+                        increment(USED, 1);
+                        break;
+                    case LoopCode.OPEN:
+                    case LoopCode.OPEN_CHECKED:
+                        int taken = label();
+                        readCell(op, read);
+                        jump(IFNE, taken);
+                        // the opening bracket jumps to the closing one, which falls through
+                        load(BUDGET);
+                        load(USED);
+                        op(ISUB);
+                        push(2);
+                        jump(IF_ICMPLT, stop);
+                        increment(USED, 2);
+                        jump(GOTO, starts[loop.jumps[op]]);
+                        mark(taken);
+                        if(loop.kinds[op] == LoopCode.OPEN_CHECKED) {
+                            checkRange(op, stop);
+                        }
+                        increment(USED, 1);
+                        break;
+                    case LoopCode.CLOSE:
+                        increment(USED, 1);
+                        readCell(op, read);
+                        jump(IFEQ, starts[op + 1]);
+                        if(loop.jumps[op] == 0) {
+                            increment(BACK_EDGES, 1);
+                        }
+                        jump(GOTO, starts[loop.jumps[op]]);
+                        break;
+                    case LoopCode.CLOSE_CHECKED:
+                        int round = label();
+                        readCell(op, read);
+                        jump(IFNE, round);
+                        increment(USED, 1);
+                        jump(GOTO, starts[op + 1]);
+                        mark(round);
+                        // the opening bracket is a step of its own, it just isn't checked again
+                        load(BUDGET);
+                        load(USED);
+                        op(ISUB);
+                        push(2);
+                        jump(IF_ICMPLT, stop);
+                        increment(USED, 2);
+                        if(loop.jumps[op] == 1) {
+                            increment(BACK_EDGES, 1);
+                        }
+                        jump(GOTO, starts[loop.jumps[op]]);
+                        break;
+                    case LoopCode.MULTIPLY:
+                        multiply(op, stop, read, write);
+                        break;
+                }
+            }
+
+            mark(starts[size]);
+            push(loop.instructions.length);
+            store(STOP_PC);
+            jump(GOTO, exit);
+            for(int op = 0; op < size; op++) {
+                mark(stops[op]);
+                if(loop.shifts[op] != 0) {
+                    pointer(op, 0);
+                    store(PTR);
+                }
+                push(loop.pcs[op]);
+                store(STOP_PC);
+                jump(GOTO, exit);
+            }
+
+            mark(exit);
+            int[][] state = {
+                    {CompiledLoop.PC, STOP_PC},
+                    {CompiledLoop.DATA_PTR, PTR},
+                    {CompiledLoop.BACK_EDGES, BACK_EDGES}
+            };
+            for(int[] entry : state) {
+                load(STATE);
+                push(entry[0]);
+                load(entry[1]);
+                op(IASTORE);
+            }
+            load(USED);
+            op(IRETURN);
+
+            byte[] bytes = code.toByteArray();
+            if(bytes.length > Short.MAX_VALUE) {
+                return null;
+            }
+            for(int[] fixup : fixups) {
+                int offset = labels.get(fixup[1]) - fixup[0];
+                bytes[fixup[0] + 1] = (byte) (offset >> 8);
+                bytes[fixup[0] + 2] = (byte) offset;
+            }
+
+            return bytes;
+        }
+
+        private void multiply(int op, int stop, int read, int write) {
+            int nonZero = label();
+            int check = label();
+
+            readCell(op, read);
+            if(loop.args[op] > 0) {
+                op(INEG);
+            }
+            push(0xFF);
+            op(IAND);
+            store(TRIPS);
+
+            // steps = trips == 0 ? 2 : trips * tripLength
+            load(TRIPS);
+            jump(IFNE, nonZero);
+            push(2);
+            store(TMP);
+            jump(GOTO, check);
+            mark(nonZero);
+            load(TRIPS);
+            push(loop.tripLength(op));
+            op(IMUL);
+            store(TMP);
+            mark(check);
+
+            load(TMP);
+            load(BUDGET);
+            load(USED);
+            op(ISUB);
+            jump(IF_ICMPGT, stop);
+            checkRange(op, stop);
+
+            int[] offsets = loop.offsets[op];
+            for(int i = 0; i < offsets.length; i++) {
+                load(MEMORY_LOCAL);
+                pointer(op, offsets[i]);
+                load(MEMORY_LOCAL);
+                pointer(op, offsets[i]);
+                invoke(read);
+                load(TRIPS);
+                push(loop.factors[op][i]);
+                op(IMUL);
+                op(IADD);
+                op(I2B);
+                invoke(write);
+            }
+            load(MEMORY_LOCAL);
+            pointer(op, 0);
+            op(ICONST_0);
+            invoke(write);
+
+            if(op == 0) {
+                load(BACK_EDGES);
+                load(TRIPS);
+                op(IADD);
+                store(BACK_EDGES);
+            }
+            load(USED);
+            load(TMP);
+            op(IADD);
+            store(USED);
+        }
+
+        /**
+         * Goes to stop unless the data pointer stays on the tape between op's lowest and
+         * highest offset.
+         */
+        private void checkRange(int op, int stop) {
+            pointer(op, loop.lows[op]);
+            jump(IFLT, stop);
+            pointer(op, loop.highs[op]);
+            push(Machine.MEMORY_COUNT);
+            jump(IF_ICMPGE, stop);
+        }
+
+        /**
+         * Pushes the data pointer as it is when op runs, plus offset. Inside a balanced loop
+         * the PTR local stays where it was at the loop's opening bracket, see
+         * LoopCode.shifts.
+         */
+        private void pointer(int op, int offset) {
+            load(PTR);
+            int shift = loop.shifts[op] + offset;
+            if(shift != 0) {
+                push(shift);
+                op(IADD);
+            }
+        }
+
+        /**
+         * Pushes what the cell at the data pointer holds when op runs.
+         */
+        private void readCell(int op, int read) {
+            load(MEMORY_LOCAL);
+            pointer(op, 0);
+            invoke(read);
+        }
+
+        private int label() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        private void mark(int label) {
+            labels.set(label, code.size());
+        }
+
+        private void jump(int opcode, int label) {
+            fixups.add(new int[]{code.size(), label});
+            op(opcode);
+            code.write(0);
+            code.write(0);
+        }
+
+        private void op(int opcode) {
+            code.write(opcode);
+        }
+
+        private void load(int local) {
+            op(local == MEMORY_LOCAL || local == MACHINE_LOCAL || local == STATE ? ALOAD : ILOAD);
+            code.write(local);
+        }
+
+        private void store(int local) {
+            op(ISTORE);
+            code.write(local);
+        }
+
+        private void increment(int local, int amount) {
+            op(IINC);
+            code.write(local);
+            code.write(amount);
+        }
+
+        private void invoke(int method) {
+            op(INVOKEVIRTUAL);
+            code.write(method >> 8);
+            code.write(method);
+        }
+
+        private void push(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                code.write(value);
+            } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                code.write(value >> 8);
+                code.write(value);
+            } else {
+                int constant = integer(value);
+                op(LDC_W);
+                code.write(constant >> 8);
+                code.write(constant);
+            }
+        }
+
+        private int utf8(String value) {
+            Integer index = entries.get("utf8 " + value);
+            if(index != null) {
+                return index;
+            }
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return entry("utf8 " + value, 1);
+        }
+
+        private int integer(int value) {
+            Integer index = entries.get("int " + value);
+            if(index != null) {
+                return index;
+            }
+            try {
+                poolOut.writeByte(3);
+                poolOut.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return entry("int " + value, 1);
+        }
+
+        private int classRef(String className) {
+            Integer index = entries.get("class " + className);
+            if(index != null) {
+                return index;
+            }
+            int nameIndex = utf8(className);
+            try {
+                poolOut.writeByte(7);
+                poolOut.writeShort(nameIndex);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return entry("class " + className, 1);
+        }
+
+        private int methodRef(String owner, String method, String type) {
+            String key = "method " + owner + "." + method + type;
+            Integer index = entries.get(key);
+            if(index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(method);
+            int typeIndex = utf8(type);
+            try {
+                poolOut.writeByte(12);
+                poolOut.writeShort(nameIndex);
+                poolOut.writeShort(typeIndex);
+                int nameAndType = entry("nameAndType " + key, 1);
+                poolOut.writeByte(10);
+                poolOut.writeShort(ownerIndex);
+                poolOut.writeShort(nameAndType);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return entry(key, 1);
+        }
+
+        private int entry(String key, int slots) {
+            int index = poolCount;
+            entries.put(key, index);
+            poolCount += slots;
+
+            return index;
+        }
+    }
+}
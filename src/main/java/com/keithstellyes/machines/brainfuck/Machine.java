@@ -2,11 +2,15 @@ package com.keithstellyes.machines.brainfuck;
 
 import com.keithstellyes.machines.shared.Location;
 import com.keithstellyes.machines.shared.ParseUtil;
+import com.keithstellyes.machines.shared.ProgramDigest;
+import com.keithstellyes.machines.shared.cache.ProgramCache;
 import com.keithstellyes.machines.shared.exception.NotImplementedException;
+import com.keithstellyes.machines.shared.memory.ByteMemory;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Stack;
 
 /**
@@ -36,17 +40,43 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     public final int BRNZ = ']';
     public final int HALT = 'H';
 
-    private byte[] memory = new byte[MEMORY_COUNT];
+    /**
+     * Bump this whenever the instruction format changes, so cached programs aren't used.
+     */
+    public final static int PROGRAM_CACHE_VERSION = 1;
+
+    /**
+     * How many times a loop goes round before it moves up to the optimized tier and then
+     * to the compiled one, see setTierThresholds.
+     */
+    public final static int DEFAULT_OPTIMIZE_AFTER = 100;
+    public final static int DEFAULT_COMPILE_AFTER = 5_000;
+
+    private final ByteMemory memory;
     private int[] registers = new int[REG_COUNT];
     private boolean isHalted = false;
     private int[] program;
+    private TieredLoops tiers = new TieredLoops();
+    private final int[] tierState = new int[CompiledLoop.STATE_SIZE];
 
     public Machine(InputStream in, OutputStream out) {
+        this(in, out, ByteMemory.heap(MEMORY_COUNT));
+    }
+
+    /**
+     * @param memory the tape, at least MEMORY_COUNT cells
+     */
+    public Machine(InputStream in, OutputStream out, ByteMemory memory) {
         super(in, out);
+        if(memory.size() < MEMORY_COUNT) {
+            throw new IllegalArgumentException("Memory needs at least " + MEMORY_COUNT + " cells");
+        }
+        this.memory = memory;
     }
 
     public Machine() {
         super();
+        this.memory = ByteMemory.heap(MEMORY_COUNT);
     }
 
     @Override
@@ -54,14 +84,33 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         return "Brainfuck Virtual Machine";
     }
 
+    /**
+     * The tape is digested along with the program, since it may have been written before
+     * the run or left over from an earlier one.
+     */
+    @Override
+    public byte[] getProgramDigest() {
+        if(program == null) return null;
+        byte[] tape = new byte[MEMORY_COUNT];
+        memory.read(0, tape);
+
+        return new ProgramDigest(getName()).update(program).update(tape).finish();
+    }
+
+    @Override
+    public int getMemorySize() {
+        return MEMORY_COUNT;
+    }
+
     @Override
     public int readMemoryValue(int address) {
-        return memory[address];
+        return memory.read(address);
     }
 
     @Override
     public void writeMemory(int address, int value) {
-        memory[address] = (byte) value;
+        memory.write(address, (byte) value);
+        memoryWritten();
     }
 
     @Override
@@ -75,9 +124,14 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     @Override
-    public void writeValue(Location location, int value) {
-        int addr = location.getAddress();
-        if(location.isRegister()) writeRegister(addr, value);
+    public int getRegisterCount() {
+        return REG_COUNT;
+    }
+
+    @Override
+    public void writeValue(int location, int value) {
+        int addr = Location.getAddress(location);
+        if(Location.isRegister(location)) writeRegister(addr, value);
         else writeMemory(addr, value);
     }
 
@@ -87,19 +141,15 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
      * @return
      */
     @Override
-    public Delta parseInstruction(int instruction) {
-        Delta.Builder builder = new Delta.Builder();
-
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-        byteBuffer.putInt(instruction);
+    protected void buildDelta(int instruction, Delta.Builder builder) {
         // java chars are two-bytes long
-        char opcode = (char) byteBuffer.get(0);
-        short argument = byteBuffer.getShort(1);
+        char opcode = (char) (byte) (instruction >>> 24);
+        short argument = (short) (instruction >>> 8);
         int pc = registers[PROGRAM_COUNTER_REG];
         int newPc = pc + 1;
         int dataPtr = registers[DATA_PTR_REG];
         int newDataPtr = dataPtr;
-        int dataAtDataPtr = memory[dataPtr];
+        int dataAtDataPtr = memory.read(dataPtr);
         int sum;
 
         switch (opcode) {
@@ -126,7 +176,7 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
                 break;
             case OUT:
                 while(argument --> 0)
-                builder.output(memory[dataPtr]);
+                builder.output(memory.read(dataPtr));
                 break;
             case HALT:
                 builder.halt();
@@ -135,15 +185,97 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
 
         builder.writeRegister(PROGRAM_COUNTER_REG, pc, newPc);
         builder.writeRegister(DATA_PTR_REG, dataPtr, newDataPtr);
-        return builder.build();
+    }
+
+    /**
+     * Loops start out stepped through like everything else, with every time one goes round
+     * counted. One that goes round often enough is turned into ops, and one that goes round
+     * more still into bytecode, see Tier, and from then on whenever the program counter is
+     * at its opening bracket it is run that way instead, carrying on from the tape and data
+     * pointer as stepping left them. Either way it stops where stepping would have after
+     * maxSteps instructions, or earlier where the data pointer would leave the tape.
+     */
+    @Override
+    public int stepMany(int maxSteps) {
+        int pc = registers[PROGRAM_COUNTER_REG];
+        int dataPtr = registers[DATA_PTR_REG];
+        if(maxSteps > 1 && !isStateHashing() && dataPtr >= 0) {
+            int instruction = program[pc];
+            switch ((char) (byte) (instruction >>> 24)) {
+                case BRZ:
+                    CompiledLoop code = tiers.code(pc);
+                    int ran = code == null ? 0 : code.run(memory, this, dataPtr, maxSteps, tierState);
+                    if(ran != 0) {
+                        registers[PROGRAM_COUNTER_REG] = pc + tierState[CompiledLoop.PC];
+                        registers[DATA_PTR_REG] = tierState[CompiledLoop.DATA_PTR];
+                        memoryWritten();
+                        retired(ran);
+                        tiers.wentRound(pc, tierState[CompiledLoop.BACK_EDGES]);
+                        return ran;
+                    }
+                    break;
+                case BRNZ:
+                    if(memory.read(dataPtr) != 0) {
+                        tiers.wentRound((short) (instruction >>> 8), 1);
+                    }
+                    break;
+            }
+        }
+
+        step();
+        return 1;
+    }
+
+    /**
+     * Sets how many times a loop has to go round before it is optimized, and then compiled,
+     * see stepMany. These apply from the next time a loop goes round.
+     */
+    public void setTierThresholds(int optimizeAfter, int compileAfter) {
+        if(optimizeAfter < 0 || compileAfter < optimizeAfter) {
+            throw new IllegalArgumentException("Thresholds must be 0 <= optimizeAfter <= compileAfter");
+        }
+        tiers.setThresholds(optimizeAfter, compileAfter);
+    }
+
+    /**
+     * @param listener told whenever a loop moves up a tier, or null, this isn't carried
+     *                 over to forks
+     */
+    public void setTierListener(TierListener listener) {
+        tiers.setListener(listener);
+    }
+
+    /**
+     * @param header the program counter of a loop's opening bracket
+     */
+    public Tier getTier(int header) {
+        return tiers.getTier(header);
+    }
+
+    /**
+     * The fork shares the loaded program, which is never written, and any loops already
+     * moved up a tier.
+     */
+    @Override
+    public Machine fork(InputStream in, OutputStream out) {
+        Machine fork = new Machine(in, out, memory.fork());
+        fork.registers = registers.clone();
+        fork.isHalted = isHalted;
+        fork.program = program;
+        fork.tiers = tiers.copy();
+        forkedInto(fork);
+
+        return fork;
     }
 
     @Override
     public void reset() {
-        memory = new byte[MEMORY_COUNT];
+        memory.clear();
+        memoryWritten();
         registers = new int[REG_COUNT];
         isHalted = false;
         program = null;
+        tiers.load(null);
     }
 
     @Override
@@ -166,6 +298,35 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         return program[registers[PROGRAM_COUNTER_REG]];
     }
 
+    @Override
+    public int getProgramCounter() {
+        return registers[PROGRAM_COUNTER_REG];
+    }
+
+    /**
+     * The program counter indexes the loaded program, not the tape, so this is only
+     * meaningful once a program is loaded.
+     */
+    @Override
+    public int getAddressCount() {
+        return program == null ? 0 : program.length;
+    }
+
+    @Override
+    public int getOpcodeCount() {
+        return 256;
+    }
+
+    @Override
+    public int decodeOpcode(int instruction) {
+        return (instruction >>> 24) & 0xFF;
+    }
+
+    @Override
+    public String getOpcodeName(int opcode) {
+        return String.valueOf((char) opcode);
+    }
+
     public void loadProgram(CharSequence charSequence) {
         Stack<Integer> returnStack = new Stack<>();
         program = new int[charSequence.length() + 1];
@@ -200,6 +361,24 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         }
 
         program[programIndex] = buildInstruction(HALT, 0);
+        tiers.load(program);
+    }
+
+    /**
+     * Like loadProgram, but takes the parsed program from cache when it has it, and stores
+     * it there when it doesn't.
+     */
+    public void loadProgram(CharSequence charSequence, ProgramCache cache) {
+        IntBuffer image = cache.get(getName(), PROGRAM_CACHE_VERSION, charSequence);
+        if(image == null) {
+            loadProgram(charSequence);
+            cache.put(getName(), PROGRAM_CACHE_VERSION, charSequence, program);
+            return;
+        }
+
+        program = new int[image.remaining()];
+        image.get(program);
+        tiers.load(program);
     }
 
     public static int buildInstruction(int opcode, int argument) {
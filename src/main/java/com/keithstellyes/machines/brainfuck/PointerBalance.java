@@ -0,0 +1,58 @@
+package com.keithstellyes.machines.brainfuck;
+
+/**
+ * Where a loop moves the data pointer, found without running it. A loop is balanced when
+ * every trip ends with the data pointer where it started and every loop in it is balanced
+ * too, so however many times any of them go round, the data pointer stays within the same
+ * offsets of where it was at the loop's opening bracket. A balanced loop only needs the
+ * tape checked once on the way in, rather than on every move.
+ */
+final class PointerBalance {
+    /**
+     * The lowest and highest offset from the data pointer at the opening bracket that any
+     * instruction of the loop runs at.
+     */
+    final int low;
+    final int high;
+
+    private PointerBalance(int low, int high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * @param program instructions in the machine's format
+     * @param open the index of the loop's opening bracket
+     * @return null if the loop isn't balanced
+     */
+    static PointerBalance of(int[] program, int open) {
+        int close = LoopCode.argument(program[open]);
+        int at = 0;
+        int low = 0;
+        int high = 0;
+        for(int pc = open + 1; pc < close; pc++) {
+            int instruction = program[pc];
+            switch (LoopCode.opcode(instruction)) {
+                case '>':
+                    at += LoopCode.argument(instruction);
+                    break;
+                case '<':
+                    at -= LoopCode.argument(instruction);
+                    break;
+                case '[':
+                    PointerBalance inner = of(program, pc);
+                    if(inner == null) {
+                        return null;
+                    }
+                    low = Math.min(low, at + inner.low);
+                    high = Math.max(high, at + inner.high);
+                    pc = LoopCode.argument(instruction);
+                    break;
+            }
+            low = Math.min(low, at);
+            high = Math.max(high, at);
+        }
+
+        return at == 0 ? new PointerBalance(low, high) : null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.keithstellyes.machines.brainfuck;
+
+/**
+ * How a loop is being run, see Machine.setTierThresholds.
+ */
+public enum Tier {
+    /**
+     * Stepped through an instruction at a time, counting how often the loop goes round.
+     */
+    INTERPRETED,
+    /**
+     * Run from a flat list of ops without building deltas, with loops that only move
+     * values about worked out in one go.
+     */
+    OPTIMIZED,
+    /**
+     * Run as JVM bytecode generated from the optimized ops.
+     */
+    COMPILED
+}
@@ -0,0 +1,16 @@
+package com.keithstellyes.machines.brainfuck;
+
+/**
+ * Told whenever a loop moves up a tier, for tuning the thresholds, see
+ * Machine.setTierListener.
+ */
+@FunctionalInterface
+public interface TierListener {
+    /**
+     * @param header the program counter of the loop's opening bracket
+     * @param tier the tier it moved to
+     * @param backEdges how many times the loop had gone round when it moved
+     * @param nanos how long getting it ready for the new tier took
+     */
+    void promoted(int header, Tier tier, long backEdges, long nanos);
+}
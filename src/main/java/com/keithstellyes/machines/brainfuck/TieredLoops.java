@@ -0,0 +1,114 @@
+package com.keithstellyes.machines.brainfuck;
+
+/**
+ * Which tier each loop of the loaded program is at and how many times it went round,
+ * moving a loop up a tier once it went round often enough. Loops are keyed by the program
+ * counter of their opening bracket.
+ */
+final class TieredLoops {
+    private int optimizeAfter = Machine.DEFAULT_OPTIMIZE_AFTER;
+    private int compileAfter = Machine.DEFAULT_COMPILE_AFTER;
+    private TierListener listener;
+
+    private int[] program;
+    private long[] backEdges;
+    private Tier[] tiers;
+    private CompiledLoop[] code;
+    /**
+     * Loops that can't move up from the tier they're at.
+     */
+    private boolean[] stuck;
+
+    TieredLoops() {
+        load(null);
+    }
+
+    void setThresholds(int optimizeAfter, int compileAfter) {
+        this.optimizeAfter = optimizeAfter;
+        this.compileAfter = compileAfter;
+    }
+
+    void setListener(TierListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts every loop of program over at the interpreted tier.
+     * @param program null if none is loaded
+     */
+    void load(int[] program) {
+        this.program = program;
+        int size = program == null ? 0 : program.length;
+        backEdges = new long[size];
+        tiers = new Tier[size];
+        code = new CompiledLoop[size];
+        stuck = new boolean[size];
+    }
+
+    /**
+     * A copy for a fork of the machine, the code is shared since running it keeps nothing.
+     */
+    TieredLoops copy() {
+        TieredLoops copy = new TieredLoops();
+        copy.optimizeAfter = optimizeAfter;
+        copy.compileAfter = compileAfter;
+        copy.program = program;
+        copy.backEdges = backEdges.clone();
+        copy.tiers = tiers.clone();
+        copy.code = code.clone();
+        copy.stuck = stuck.clone();
+
+        return copy;
+    }
+
+    Tier getTier(int header) {
+        Tier tier = header < tiers.length ? tiers[header] : null;
+
+        return tier == null ? Tier.INTERPRETED : tier;
+    }
+
+    /**
+     * What to run the loop with, or null if it's still interpreted.
+     */
+    CompiledLoop code(int header) {
+        return code[header];
+    }
+
+    /**
+     * Counts count more times round the loop, moving it up a tier if that was enough.
+     */
+    void wentRound(int header, long count) {
+        long total = backEdges[header] += count;
+        if(stuck[header]) {
+            return;
+        }
+
+        Tier tier = getTier(header);
+        if(tier == Tier.INTERPRETED && total >= optimizeAfter) {
+            long start = System.nanoTime();
+            LoopCode optimized = LoopCode.compile(program, header);
+            if(optimized == null) {
+                stuck[header] = true;
+                return;
+            }
+            promote(header, Tier.OPTIMIZED, optimized, start);
+        } else if(tier == Tier.OPTIMIZED && total >= compileAfter) {
+            long start = System.nanoTime();
+            CompiledLoop compiled = LoopCompiler.compile((LoopCode) code[header]);
+            if(compiled == null) {
+                stuck[header] = true;
+                return;
+            }
+            promote(header, Tier.COMPILED, compiled, start);
+        }
+    }
+
+    private void promote(int header, Tier tier, CompiledLoop loop, long start) {
+        tiers[header] = tier;
+        code[header] = loop;
+        TierListener listener = this.listener;
+        if(listener != null) {
+            listener.promoted(header, tier, backEdges[header], System.nanoTime() - start);
+        }
+    }
+}
@@ -3,6 +3,10 @@ package com.keithstellyes.machines.lmc;
 import com.keithstellyes.machines.shared.Location;
 import com.keithstellyes.machines.shared.Opcode;
 import com.keithstellyes.machines.shared.ParseUtil;
+import com.keithstellyes.machines.shared.ProgramDigest;
+import com.keithstellyes.machines.shared.loop.LinearLoop;
+import com.keithstellyes.machines.shared.loop.LoopCache;
+import com.keithstellyes.machines.shared.memory.ShortMemory;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -19,6 +23,9 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     public final static int BRP = 8;
     public final static int IO = 9;
 
+    private final static int OPCODE_COUNT = 10;
+    private final static int UNUSED_OPCODE = 4;
+
     public final static int IO_ARG_IN = 1;
     public final static int IO_ARG_OUT = 2;
 
@@ -37,6 +44,11 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     private final static int N_FLAG = 0x01;
     private final static int HALT_FLAG = 0x02;
 
+    /**
+     * The longest trip a loop can have for stepMany to skip over it.
+     */
+    private final static int MAX_LOOP_LENGTH = 32;
+
     private MATH_MODE mathMode = MATH_MODE.OVERFLOW;
 
     private final static Map<Integer, Opcode> OPCODE_MAP;
@@ -56,16 +68,35 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         OPCODE_MAP = builder.build();
     }
 
-    private short[] memory = new short[MEMORY_COUNT];
+    private final ShortMemory memory;
     private short[] registers = new short[REGISTER_COUNT];
     private boolean isHalted = false;
+    private final LoopCache loops = new LoopCache(MEMORY_COUNT, MEMORY_COUNT);
+    // where the pc went if the last instruction stepMany stepped didn't branch
+    private int fallThroughPc = -1;
+    // the trip mayStartLoop ran, kept here so it doesn't allocate
+    private final int[] scanned = new int[MAX_LOOP_LENGTH];
+    private final int[] storedAddresses = new int[MAX_LOOP_LENGTH];
+    private final int[] storedValues = new int[MAX_LOOP_LENGTH];
 
     public Machine() {
         super();
+        this.memory = ShortMemory.heap(MEMORY_COUNT);
     }
 
     public Machine(InputStream in, OutputStream out) {
+        this(in, out, ShortMemory.heap(MEMORY_COUNT));
+    }
+
+    /**
+     * @param memory at least MEMORY_COUNT cells
+     */
+    public Machine(InputStream in, OutputStream out, ShortMemory memory) {
         super(in, out);
+        if(memory.size() < MEMORY_COUNT) {
+            throw new IllegalArgumentException("Memory needs at least " + MEMORY_COUNT + " cells");
+        }
+        this.memory = memory;
     }
 
     @Override
@@ -73,29 +104,53 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         return "Little Man Computer";
     }
 
+    /**
+     * The program is all of memory, along with the math mode since that changes how
+     * it runs.
+     */
+    @Override
+    public byte[] getProgramDigest() {
+        short[] image = new short[MEMORY_COUNT];
+        memory.read(0, image);
+
+        return new ProgramDigest(getName()).update(mathMode.ordinal()).update(image).finish();
+    }
+
+    @Override
+    public int getMemorySize() {
+        return MEMORY_COUNT;
+    }
+
     @Override
     public int readMemoryValue(int address) {
-        return memory[address];
+        return memory.read(address);
     }
 
     @Override
     public void writeMemory(int address, int value) {
-        memory[address] = (short) value;
+        memory.write(address, (short) value);
+        memoryWritten();
+        loops.written(address);
     }
 
 
     @Override
-    public void writeValue(Location location, int value) {
-        if(location.isRegister()) {
-            registers[location.getAddress()] = (short) value;
+    public int getRegisterCount() {
+        return REGISTER_COUNT;
+    }
+
+    @Override
+    public void writeValue(int location, int value) {
+        if(Location.isRegister(location)) {
+            registers[Location.getAddress(location)] = (short) value;
         } else {
-            memory[location.getAddress()] = (short) value;
+            writeMemory(Location.getAddress(location), value);
         }
     }
 
     @Override
-    public Delta parseInstruction(int instruction) {
-        if(isHalted()) return Delta.EMPTY_DELTA;
+    protected void buildDelta(int instruction, Delta.Builder builder) {
+        if(isHalted()) return;
 
         int opcode = instruction / 100;
         int argument = instruction % 100;
@@ -107,13 +162,11 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
             doHalt = true;
             newPc = 99;
         }
-        int valueAtArgument = memory[argument];
+        int valueAtArgument = memory.read(argument);
         int newAccValue = acc;
         int flags = registers[FLAG_REG];
         int newFlags = 0;
 
-        Delta.Builder builder = new Delta.Builder();
-
         switch (opcode) {
             case HLT:
                 doHalt = true;
@@ -170,8 +223,224 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         if(doHalt) {
             builder.halt();
         }
+    }
 
-        return builder.build();
+    /**
+     * Skips over whole trips of a counted loop when the current instruction starts one, see
+     * LinearLoop. A trip can be skipped when it only loads, stores, adds and subtracts, and
+     * branches on the accumulator, so every trip adds the same to what it carries over. Trips
+     * only get skipped while none of their adds or subtracts go out of [0, 999], so the one
+     * that wraps or saturates is stepped through like any other instruction.
+     *
+     * Every trip comes back to its start with a branch, so loops are only looked for where
+     * a branch lands, or where stepMany starts. Walking from every instruction costs more
+     * than it saves in code that only runs a few times, or that keeps writing itself.
+     */
+    @Override
+    public int stepMany(int maxSteps) {
+        int pc = registers[PROGRAM_COUNTER_REG];
+        if(maxSteps > 1 && !isStateHashing()) {
+            LinearLoop loop = loops.isAnalysed(pc) ? loops.get(pc)
+                    : pc != fallThroughPc ? findLoop(pc) : null;
+            int ran = loop == null ? 0 : loop.run(this, maxSteps);
+            if(ran != 0) {
+                retired(ran);
+                return ran;
+            }
+        }
+
+        step();
+        fallThroughPc = pc + 1;
+        return 1;
+    }
+
+    /**
+     * The loop starting at start, if there is one, which is then cached.
+     */
+    private LinearLoop findLoop(int start) {
+        LinearLoop loop = mayStartLoop(start) ? walkLoop(start) : null;
+        loops.put(start, loop);
+
+        return loop;
+    }
+
+    /**
+     * Whether a trip from start comes back to it, running it on the side the way walkLoop
+     * would walk it, with only instructions a loop can have and without storing into its
+     * own code. This is checked for every instruction that is run, so unlike walkLoop it
+     * doesn't allocate, and walkLoop only goes on to work out whether the trip can be
+     * skipped over.
+     */
+    private boolean mayStartLoop(int start) {
+        int acc = registers[ACCUMULATOR_REG];
+        int stores = 0;
+        int pc = start;
+        for(int length = 0; length < MAX_LOOP_LENGTH; length++) {
+            loops.code(pc);
+            scanned[length] = pc;
+            int instruction = memory.read(pc);
+            int argument = instruction % 100;
+            int next = pc + 1;
+            if(instruction < MIN_VALUE || instruction > MAX_VALUE || next >= MEMORY_COUNT) {
+                return false;
+            }
+
+            switch (instruction / 100) {
+                case ADD:
+                    acc += stored(argument, stores);
+                    break;
+                case SUB:
+                    acc -= stored(argument, stores);
+                    break;
+                case STA:
+                    storedAddresses[stores] = argument;
+                    storedValues[stores++] = acc;
+                    break;
+                case LDA:
+                    acc = stored(argument, stores);
+                    break;
+                case BRA:
+                    next = argument;
+                    break;
+                case BRZ:
+                    if(acc == 0) {
+                        next = argument;
+                    }
+                    break;
+                case BRP:
+                    // never taken with the flags clear
+                    break;
+                default:
+                    return false;
+            }
+
+            pc = next;
+            if(pc == start) {
+                return !writesItself(length + 1, stores);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * What address holds after the first stores of a trip mayStartLoop is running.
+     */
+    private int stored(int address, int stores) {
+        for(int i = stores - 1; i >= 0; i--) {
+            if(storedAddresses[i] == address) {
+                return storedValues[i];
+            }
+        }
+
+        return memory.read(address);
+    }
+
+    /**
+     * Whether one of the stores of a trip mayStartLoop ran, count instructions long, was
+     * into its own code. Such a loop would be forgotten on every trip, so all of its
+     * instructions are given up on, see giveUp.
+     */
+    private boolean writesItself(int count, int stores) {
+        for(int i = 0; i < stores; i++) {
+            for(int j = 0; j < count; j++) {
+                if(scanned[j] == storedAddresses[i]) {
+                    giveUp(scanned, count);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops looking for loops at the first count instructions of code, which go through
+     * code that a trip writes to. Starting from any of them would come to the same writes.
+     */
+    private void giveUp(int[] code, int count) {
+        for(int i = 0; i < count; i++) {
+            loops.giveUp(code[i]);
+        }
+    }
+
+    /**
+     * Walks a trip of the loop starting at start, see LinearLoop.
+     * @return null if it isn't a loop that can be skipped over
+     */
+    private LinearLoop walkLoop(int start) {
+        LinearLoop.Builder builder = new LinearLoop.Builder(this);
+        int accumulator = Location.newRegisterLocation(ACCUMULATOR_REG);
+        // with no add or subtract overflowing, the flags stay clear on every trip
+        builder.zero(builder.read(Location.newRegisterLocation(FLAG_REG)));
+        LinearLoop.Value acc = builder.read(accumulator);
+        int[] code = new int[MAX_LOOP_LENGTH];
+        int length = 0;
+        int pc = start;
+        LinearLoop loop = null;
+
+        walk:
+        while(length < MAX_LOOP_LENGTH) {
+            loops.code(pc);
+            code[length++] = pc;
+            int instruction = memory.read(pc);
+            int argument = instruction % 100;
+            int cell = Location.newMemoryLocation(argument);
+            int next = pc + 1;
+            if(instruction < MIN_VALUE || instruction > MAX_VALUE || next >= MEMORY_COUNT) {
+                break;
+            }
+
+            switch (instruction / 100) {
+                case ADD:
+                    acc = acc.plus(builder.read(cell));
+                    builder.range(acc, MIN_VALUE, MAX_VALUE);
+                    break;
+                case SUB:
+                    acc = acc.minus(builder.read(cell));
+                    builder.range(acc, MIN_VALUE, MAX_VALUE);
+                    break;
+                case STA:
+                    builder.write(cell, acc);
+                    break;
+                case LDA:
+                    acc = builder.read(cell);
+                    break;
+                case BRA:
+                    next = argument;
+                    break;
+                case BRZ:
+                    if(builder.evaluate(acc) == 0) {
+                        builder.zero(acc);
+                        next = argument;
+                    } else {
+                        builder.nonZero(acc);
+                    }
+                    break;
+                case BRP:
+                    // never taken with the flags clear
+                    break;
+                default:
+                    break walk;
+            }
+
+            pc = next;
+            if(pc == start) {
+                builder.write(accumulator, acc);
+                loop = builder.build(length);
+                break;
+            }
+        }
+
+        for(int i = 0; i < length && loop != null; i++) {
+            if(builder.isWritten(Location.newMemoryLocation(code[i]))) {
+                // the loop changes its own code, so it would be forgotten on every trip
+                giveUp(code, length);
+                loop = null;
+            }
+        }
+
+        return loop;
     }
 
     public void setMathMode(MATH_MODE mathMode) {
@@ -187,24 +456,68 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     public void loadProgram(short[] program) {
-        for(int i = 0; i < MEMORY_COUNT; i++) {
-            if(i < program.length) {
-                memory[i] = program[i];
-            } else {
-                memory[i] = 0;
-            }
-        }
+        memory.clear();
+        memory.write(0, program, 0, Math.min(program.length, MEMORY_COUNT));
+        memoryWritten();
+        loops.clear();
+    }
+
+    @Override
+    public Machine fork(InputStream in, OutputStream out) {
+        Machine fork = new Machine(in, out, memory.fork());
+        fork.registers = registers.clone();
+        fork.isHalted = isHalted;
+        fork.mathMode = mathMode;
+        forkedInto(fork);
+
+        return fork;
     }
 
     @Override
     public int getCurrentInstruction() {
-        return memory[registers[PROGRAM_COUNTER_REG]];
+        return memory.read(registers[PROGRAM_COUNTER_REG]);
+    }
+
+    @Override
+    public int getProgramCounter() {
+        return registers[PROGRAM_COUNTER_REG];
+    }
+
+    @Override
+    public int getAddressCount() {
+        return MEMORY_COUNT;
+    }
+
+    @Override
+    public int getOpcodeCount() {
+        return OPCODE_COUNT;
+    }
+
+    /**
+     * Anything that isn't a 3-digit instruction is reported as the unused opcode 4.
+     */
+    @Override
+    public int decodeOpcode(int instruction) {
+        int opcode = instruction / 100;
+        if(opcode < 0 || opcode >= OPCODE_COUNT) {
+            return UNUSED_OPCODE;
+        }
+
+        return opcode;
+    }
+
+    @Override
+    public String getOpcodeName(int opcode) {
+        Opcode op = OPCODE_MAP.get(opcode);
+        return op == null ? "???" : op.getMnemonic();
     }
 
     @Override
     public void reset() {
         registers = new short[REGISTER_COUNT];
-        memory = new short[MEMORY_COUNT];
+        memory.clear();
+        memoryWritten();
+        loops.clear();
         isHalted = false;
     }
 
@@ -1,11 +1,15 @@
 package com.keithstellyes.machines.malbolge;
 
 import com.keithstellyes.machines.shared.Location;
+import com.keithstellyes.machines.shared.ProgramDigest;
+import com.keithstellyes.machines.shared.cache.ProgramCache;
 import com.keithstellyes.machines.shared.exception.NotImplementedException;
+import com.keithstellyes.machines.shared.memory.IntMemory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -29,29 +33,69 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     public final static int OP_NOP = 68;
     public final static int OP_HALT = 81;
 
+    private final static int OPCODE_COUNT = 94;
+
+    private final static byte[][] CRAZY_TABLE = {{1, 0, 0},
+                                                 {1, 0, 2},
+                                                 {2, 2, 1}};
+
     public final static int EOF = MEMORY_COUNT - 1;
     public final static int TO_NL = '\r';
 
-    private int[] memory = new int[MEMORY_COUNT];
+    /**
+     * Bump this whenever loading changes what ends up in memory, so cached images aren't used.
+     */
+    public final static int PROGRAM_CACHE_VERSION = 2;
+
+    private final IntMemory memory;
     private int[] registers = new int[REG_COUNT];
     private boolean isHalted = false;
+    private String programSource;
 
     public Machine(InputStream in, OutputStream out) {
+        this(in, out, IntMemory.heap(MEMORY_COUNT));
+    }
+
+    /**
+     * @param memory at least MEMORY_COUNT cells
+     */
+    public Machine(InputStream in, OutputStream out, IntMemory memory) {
         super(in, out);
+        if(memory.size() < MEMORY_COUNT) {
+            throw new IllegalArgumentException("Memory needs at least " + MEMORY_COUNT + " cells");
+        }
+        this.memory = memory;
     }
 
     public Machine() {
         super();
+        this.memory = IntMemory.heap(MEMORY_COUNT);
+    }
+
+    /**
+     * The rest of memory follows from the source, so that is all that is digested.
+     */
+    @Override
+    public byte[] getProgramDigest() {
+        if(programSource == null) return null;
+
+        return new ProgramDigest(getName()).update(programSource).finish();
+    }
+
+    @Override
+    public int getMemorySize() {
+        return MEMORY_COUNT;
     }
 
     @Override
     public int readMemoryValue(int address) {
-        return memory[address];
+        return memory.read(address);
     }
 
     @Override
     public void writeMemory(int address, int value) {
-        memory[address] = value;
+        memory.write(address, value);
+        memoryWritten();
     }
 
     @Override
@@ -65,11 +109,17 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     @Override
-    public void writeValue(Location location, int value) {
-        if(location.isRegister()) {
-            registers[location.getAddress()] = value;
+    public int getRegisterCount() {
+        return REG_COUNT;
+    }
+
+    @Override
+    public void writeValue(int location, int value) {
+        if(Location.isRegister(location)) {
+            registers[Location.getAddress(location)] = value;
         } else {
-            memory[location.getAddress()] = value;
+            memory.write(Location.getAddress(location), value);
+            memoryWritten();
         }
     }
 
@@ -79,24 +129,25 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     @Override
-    public void input(Location location) {
+    public void input(int location) {
         int read;
         try {
-            read = in.read();
+            read = readInput();
         } catch(IOException e) {
             halt();
             return;
         }
-        if(read == EOF) {
-            halt();
+        if(read == -1) {
+            read = EOF;
         } else if(read == TO_NL) {
             read = '\n';
         }
 
-        if(location.isRegister()) {
-            registers[location.getAddress()] = read;
+        if(Location.isRegister(location)) {
+            registers[Location.getAddress(location)] = read;
         } else {
-            memory[location.getAddress()] = read;
+            memory.write(Location.getAddress(location), read);
+            memoryWritten();
         }
     }
 
@@ -106,20 +157,23 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
      * @return
      */
     @Override
-    public Delta parseInstruction(int instruction) {
-        if(isHalted()) return Delta.EMPTY_DELTA;
+    protected void buildDelta(int instruction, Delta.Builder builder) {
+        if(isHalted()) return;
 
         int newDataPtr = (registers[DATA_PTR_REG] + 1) % MEMORY_COUNT;
         int newPc = registers[PROGRAM_COUNTER_REG] + 1;
-        instruction = (instruction + memory[instruction]) % 94;
-        Delta.Builder builder = new Delta.Builder();
-        int dataAtDataPtr = memory[registers[DATA_PTR_REG]];
+        instruction = decodeOpcode(instruction);
+        int dataAtDataPtr = memory.read(registers[DATA_PTR_REG]);
         int instructionToEncrypt = registers[PROGRAM_COUNTER_REG];
+        // rotr and crz write the cell at the data pointer, which may be the one encrypted
+        int written = -1;
+        int writtenValue = 0;
 
         switch (instruction) {
             case OP_JMP:
-                newPc = dataAtDataPtr;
-                instructionToEncrypt = newPc - 1;
+                // the cell jumped to is encrypted and skipped, the same as any other
+                instructionToEncrypt = dataAtDataPtr;
+                newPc = dataAtDataPtr + 1;
                 break;
             case OP_OUT:
                 builder.output(registers[ACC_REG]);
@@ -133,6 +187,8 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
                         dataAtDataPtr,
                         rotatedValue);
                 builder.writeRegister(ACC_REG, registers[ACC_REG], rotatedValue);
+                written = registers[DATA_PTR_REG];
+                writtenValue = rotatedValue;
                 break;
             case OP_MOVDD:
                 // (after every instruction, dataptr increments by one)
@@ -140,9 +196,10 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
                 break;
             case OP_CRAZY:
                 int result = crazy(dataAtDataPtr, registers[ACC_REG]);
-                builder.writeMemory(registers[dataAtDataPtr], memory[registers[DATA_PTR_REG]],
-                        result);
+                builder.writeMemory(registers[DATA_PTR_REG], dataAtDataPtr, result);
                 builder.writeRegister(ACC_REG, registers[ACC_REG], result);
+                written = registers[DATA_PTR_REG];
+                writtenValue = result;
                 break;
             case OP_HALT:
                 builder.halt();
@@ -154,10 +211,46 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
 
         builder.writeRegister(DATA_PTR_REG, registers[DATA_PTR_REG], newDataPtr);
         builder.writeRegister(PROGRAM_COUNTER_REG, registers[PROGRAM_COUNTER_REG], newPc);
-        builder.writeMemory(instructionToEncrypt, memory[instructionToEncrypt],
-                encrypt(memory[instructionToEncrypt]));
+        int toEncrypt = instructionToEncrypt == written ? writtenValue : memory.read(instructionToEncrypt);
+        builder.writeMemory(instructionToEncrypt, toEncrypt, encrypt(toEncrypt));
+    }
 
-        return builder.build();
+    @Override
+    public int getProgramCounter() {
+        return registers[PROGRAM_COUNTER_REG];
+    }
+
+    @Override
+    public int getAddressCount() {
+        return MEMORY_COUNT;
+    }
+
+    @Override
+    public int getOpcodeCount() {
+        return OPCODE_COUNT;
+    }
+
+    /**
+     * @param instruction the cell at the program counter, which is what the opcode is
+     *                    worked out from along with the program counter itself
+     */
+    @Override
+    public int decodeOpcode(int instruction) {
+        return (instruction + registers[PROGRAM_COUNTER_REG]) % OPCODE_COUNT;
+    }
+
+    @Override
+    public String getOpcodeName(int opcode) {
+        switch (opcode) {
+            case OP_JMP: return "jmp";
+            case OP_OUT: return "out";
+            case OP_IN: return "in";
+            case OP_ROTR: return "rotr";
+            case OP_MOVDD: return "movd";
+            case OP_CRAZY: return "crz";
+            case OP_HALT: return "hlt";
+            default: return "nop";
+        }
     }
 
     public static byte[] toTernary(int n) {
@@ -188,17 +281,19 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         return POW9*(n%3) + n / 3;
     }
 
+    /**
+     * Reads the trits straight out of a and b instead of going through toTernary, so it
+     * doesn't allocate. Each trit of the result is worked out from the trits of a and b in
+     * the same place.
+     */
     public static int crazy(int a, int b) {
-        byte[] aDigits = toTernary(a);
-        byte[] bDigits = toTernary(b);
-        byte[][] CRAZY_TABLE = {{1, 0, 0},
-                                {1, 0, 2},
-                                {2, 2, 1}};
         int result = 0;
         int multiplier = 1;
 
         for(int i = 0; i < TRIT_COUNT; i++) {
-            result += CRAZY_TABLE[aDigits[i]][bDigits[i]] * multiplier;
+            int aTrit = a / multiplier % 3;
+            int bTrit = b / multiplier % 3;
+            result += CRAZY_TABLE[aTrit][bTrit] * multiplier;
             multiplier *= 3;
         }
 
@@ -212,27 +307,66 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
 
     public void loadProgram(String program) {
         reset();
+        programSource = program;
         int memIndex = 0;
 
+        // whitespace in the source isn't loaded
         for(int i = 0; i < program.length(); i++) {
-            memory[memIndex++] = program.charAt(i);
+            if(!Character.isWhitespace(program.charAt(i))) {
+                memory.write(memIndex++, program.charAt(i));
+            }
         }
 
-        for(int i = memIndex; i < memory.length; i++) {
-            memory[i] = crazy(memory[i - 2], memory[i - 1]);
+        for(int i = memIndex; i < MEMORY_COUNT; i++) {
+            memory.write(i, crazy(memory.read(i - 2), memory.read(i - 1)));
         }
+        memoryWritten();
+    }
+
+    /**
+     * Like loadProgram, but takes the whole of initialized memory from cache when it has it,
+     * which skips the crazy fill, and stores it there when it doesn't.
+     */
+    public void loadProgram(String program, ProgramCache cache) {
+        IntBuffer image = cache.get(getName(), PROGRAM_CACHE_VERSION, program);
+        int[] cells = new int[MEMORY_COUNT];
+        if(image == null || image.remaining() != MEMORY_COUNT) {
+            loadProgram(program);
+            memory.read(0, cells);
+            cache.put(getName(), PROGRAM_CACHE_VERSION, program, cells);
+            return;
+        }
+
+        reset();
+        programSource = program;
+        image.get(cells);
+        memory.write(0, cells);
+        memoryWritten();
     }
 
     @Override
     public int getCurrentInstruction() {
-        return memory[registers[PROGRAM_COUNTER_REG]];
+        return memory.read(registers[PROGRAM_COUNTER_REG]);
+    }
+
+    @Override
+    public Machine fork(InputStream in, OutputStream out) {
+        Machine fork = new Machine(in, out, memory.fork());
+        fork.registers = registers.clone();
+        fork.isHalted = isHalted;
+        fork.programSource = programSource;
+        forkedInto(fork);
+
+        return fork;
     }
 
     @Override
     public void reset() {
-        memory = new int[MEMORY_COUNT];
+        memory.clear();
+        memoryWritten();
         registers = new int[REG_COUNT];
         isHalted = false;
+        programSource = null;
     }
 
     @Override
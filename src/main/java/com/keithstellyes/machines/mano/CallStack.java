@@ -0,0 +1,129 @@
+package com.keithstellyes.machines.mano;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A shadow of the guest's call stack, inferred from BSA calls and indirect BUN returns, plus
+ * the program counter. It is written by the thread running the machine and can be read
+ * from any other thread.
+ *
+ * Each frame is the address BSA stored the return address in, the subroutine itself starts
+ * at the next word. A return is an indirect BUN through one of those addresses, and pops
+ * every frame down to and including the matching one.
+ *
+ * Calls and returns only change the writer's own copy of the stack. publishPc then publishes
+ * whatever changed along with the program counter, so a reader always gets a program
+ * counter with the stack it was at. The writer only uses lazySet, which is a plain store
+ * with ordering and so cheap enough to do every step. What is published is guarded
+ * seqlock-style by a generation that is odd while it is being changed, so a reader can tell
+ * when it has read a torn stack.
+ */
+public class CallStack {
+    public static final int DEFAULT_MAX_DEPTH = 256;
+
+    private final AtomicIntegerArray frames;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicInteger pc = new AtomicInteger();
+
+    /**
+     * How deep the guest actually is, frames past the max depth are counted here
+     * but not stored.
+     */
+    private int writerDepth;
+    private int writerGeneration;
+    private final int[] writerFrames;
+    /**
+     * The lowest frame that changed since the stack was last published, and the depth it
+     * was published at.
+     */
+    private int changedFrom;
+    private int publishedDepth;
+
+    public CallStack() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    public CallStack(int maxDepth) {
+        frames = new AtomicIntegerArray(maxDepth);
+        writerFrames = new int[maxDepth];
+        changedFrom = maxDepth;
+    }
+
+    void call(int returnAddressSlot) {
+        if(writerDepth < writerFrames.length) {
+            writerFrames[writerDepth] = returnAddressSlot;
+            changedFrom = Math.min(changedFrom, writerDepth);
+        }
+        writerDepth++;
+    }
+
+    /**
+     * An indirect BUN through pointer, which returns from the innermost call that stored
+     * its return address there. A jump through any other pointer isn't a return.
+     */
+    void jumpIndirect(int pointer) {
+        int stored = Math.min(writerDepth, writerFrames.length);
+        for(int i = stored - 1; i >= 0; i--) {
+            if(writerFrames[i] == pointer) {
+                writerDepth = i;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes the program counter, together with the calls and returns since the last
+     * time.
+     */
+    void publishPc(int newPc) {
+        int newDepth = Math.min(writerDepth, writerFrames.length);
+        generation.lazySet(++writerGeneration);
+        for(int i = changedFrom; i < newDepth; i++) {
+            frames.lazySet(i, writerFrames[i]);
+        }
+        if(newDepth != publishedDepth) {
+            depth.lazySet(newDepth);
+            publishedDepth = newDepth;
+        }
+        pc.lazySet(newPc);
+        generation.lazySet(++writerGeneration);
+        changedFrom = writerFrames.length;
+    }
+
+    void clear() {
+        writerDepth = 0;
+    }
+
+    /**
+     * The program counter last published, see read for one that goes with the stack.
+     */
+    public int getPc() {
+        return pc.get();
+    }
+
+    /**
+     * Copies the return address slots of the current frames, outermost first, into dst,
+     * followed by the program counter, so dst needs room for one more than the frames.
+     * @return how many frames were copied, or -1 if the stack changed while it was being read
+     */
+    public int read(int[] dst) {
+        int gen = generation.get();
+        if((gen & 1) != 0) {
+            return -1;
+        }
+
+        int count = Math.min(depth.get(), dst.length - 1);
+        for(int i = 0; i < count; i++) {
+            dst[i] = frames.get(i);
+        }
+        dst[count] = pc.get();
+
+        return generation.get() == gen ? count : -1;
+    }
+
+    public int getMaxDepth() {
+        return frames.length();
+    }
+}
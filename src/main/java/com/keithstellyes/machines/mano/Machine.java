@@ -1,10 +1,14 @@
 package com.keithstellyes.machines.mano;
 
 import com.keithstellyes.machines.shared.Location;
+import com.keithstellyes.machines.shared.MachineUtil;
 import com.keithstellyes.machines.shared.ParseUtil;
+import com.keithstellyes.machines.shared.ProgramDigest;
 import com.keithstellyes.machines.shared.exception.NotImplementedException;
+import com.keithstellyes.machines.shared.loop.LinearLoop;
+import com.keithstellyes.machines.shared.loop.LoopCache;
+import com.keithstellyes.machines.shared.memory.ShortMemory;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -19,7 +23,7 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     private static final int ENABLE_INTERRUPTS_FLAG = 2;
 
     public static final int MEMORY_COUNT = 4096;
-    private short[] memory = new short[MEMORY_COUNT];
+    private final ShortMemory memory;
 
     public static final int CLA = 0b0111001100100000;
     public static final int CLE = 0b0111000110010000;
@@ -45,14 +49,74 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     public static final int ISZ = 6 << 12;
     public static final short INDIRECT = (short) (1 << 15);
 
+    /**
+     * Opcodes as given by decodeOpcode: the memory-reference instructions are their own
+     * 3-bit opcode, the register-reference and I/O instructions follow in this order, and
+     * anything else is last.
+     */
+    private static final int[] REGISTER_INSTRUCTIONS = {CLA, CLE, CMA, CME, CIR, CIL, INC,
+            SPA, SNA, SZA, SZE, HLT, INP, OUT};
+    private static final String[] OPCODE_NAMES = {"AND", "ADD", "LDA", "STA", "BUN", "BSA",
+            "ISZ", "CLA", "CLE", "CMA", "CME", "CIR", "CIL", "INC", "SPA", "SNA", "SZA", "SZE",
+            "HLT", "INP", "OUT", "???"};
+    private static final int UNKNOWN_OPCODE = OPCODE_NAMES.length - 1;
+
+    /**
+     * How often runUntilHalt reports to the metrics and state publisher, at most.
+     */
+    private static final int SLICE_LENGTH = 1 << 12;
+
+    /**
+     * The longest trip a loop can have for stepMany to skip over it.
+     */
+    private static final int MAX_LOOP_LENGTH = 64;
+
     private boolean isHalted = false;
+    /**
+     * Keyed by the program counter and the carry, since the carry decides whether a loop's
+     * adds can go negative.
+     */
+    private final LoopCache loops = new LoopCache(MEMORY_COUNT * 2, MEMORY_COUNT);
+    /**
+     * Where the program counter went if the last instruction stepMany stepped didn't branch
+     * or skip.
+     */
+    private int fallThroughPc = -1;
+    /**
+     * Whether ISZ counts the word in memory rather than the accumulator, see Multiprocessor.
+     */
+    private final boolean memoryIsz;
+    private final Delta.Builder iszBuilder = new Delta.Builder();
 
     public Machine(InputStream in, OutputStream out) {
+        this(in, out, ShortMemory.heap(MEMORY_COUNT));
+    }
+
+    /**
+     * @param memory at least MEMORY_COUNT cells
+     */
+    public Machine(InputStream in, OutputStream out, ShortMemory memory) {
+        this(in, out, memory, false);
+    }
+
+    /**
+     * @param memoryIsz whether ISZ adds 1 to the word at its address and skips the next
+     *                  instruction when that comes to 0, as in Mano's book, instead of
+     *                  counting the accumulator
+     */
+    Machine(InputStream in, OutputStream out, ShortMemory memory, boolean memoryIsz) {
         super(in, out);
+        if(memory.size() < MEMORY_COUNT) {
+            throw new IllegalArgumentException("Memory needs at least " + MEMORY_COUNT + " cells");
+        }
+        this.memory = memory;
+        this.memoryIsz = memoryIsz;
     }
 
     public Machine() {
         super();
+        this.memory = ShortMemory.heap(MEMORY_COUNT);
+        this.memoryIsz = false;
     }
 
     @Override
@@ -60,14 +124,32 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         return "Mano Machine";
     }
 
+    /**
+     * The program is all of memory.
+     */
+    @Override
+    public byte[] getProgramDigest() {
+        short[] image = new short[MEMORY_COUNT];
+        memory.read(0, image);
+
+        return new ProgramDigest(getName()).update(image).finish();
+    }
+
+    @Override
+    public int getMemorySize() {
+        return MEMORY_COUNT;
+    }
+
     @Override
     public int readMemoryValue(int address) {
-        return memory[address];
+        return memory.read(address);
     }
 
     @Override
     public void writeMemory(int address, int value) {
-        memory[address] = (short) value;
+        memory.write(address, (short) value);
+        memoryWritten();
+        loops.written(address);
     }
 
     @Override
@@ -81,34 +163,22 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     @Override
-    public void writeValue(Location location, int value) {
-        if(location.isRegister()) {
-            writeRegister(location.getAddress(), value);
-        } else {
-            writeMemory(location.getAddress(), value);
-        }
+    public int getRegisterCount() {
+        return REG_COUNT;
     }
 
     @Override
-    public void output(int value) {
-        try {
-            out.write(value);
-        } catch (IOException e) {
-
+    public void writeValue(int location, int value) {
+        if(Location.isRegister(location)) {
+            writeRegister(Location.getAddress(location), value);
+        } else {
+            writeMemory(Location.getAddress(location), value);
         }
     }
 
     @Override
-    public void input(Location location) {
-        try {
-            writeValue(location, in.read());
-        } catch (IOException e) { }
-    }
-
-    @Override
-    public Delta parseInstruction(int instruction) {
-        if(isHalted) return Delta.EMPTY_DELTA;
-        int bit15 = INDIRECT & instruction;
+    protected void buildDelta(int instruction, Delta.Builder builder) {
+        if(isHalted) return;
         int bits14To12 = ((0b111 << 12) & instruction) >> 12;
         int address = 0b111111111111 & instruction;
         int accValue = readRegister(ACC_REG);
@@ -119,7 +189,6 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
         int accBit15 = accValue & (1 << 15);
 
         boolean carry = false;
-        Delta.Builder builder = new Delta.Builder();
 
         if(bits14To12 == 7) {
             switch (instruction) {
@@ -184,10 +253,7 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
             }
         } else {
             // instructions dealing with memory
-            if(bit15 != 0) {
-                // set address to indirect
-                address = readMemoryValue(address);
-            }
+            address = effectiveAddress(instruction);
             switch (bits14To12 << 12) {
                 case AND:
                     newAccValue = accValue & readMemoryValue(address);
@@ -204,12 +270,24 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
                 case STA:
                     builder.writeMemory(address, readMemoryValue(address), accValue);
                     break;
-                case BSA: // SWITCH-CASE FALLTHROUGH INTENTIONAL
+                case BSA:
+                    // the return address goes in the first word, the subroutine starts after it
                     builder.writeMemory(address, readMemoryValue(address), newPc);
+                    newPc = address + 1;
+                    break;
                 case BUN:
                     newPc = address;
                     break;
                 case ISZ:
+                    if(memoryIsz) {
+                        int value = readMemoryValue(address);
+                        short newValue = (short) (value + 1);
+                        builder.writeMemory(address, value, newValue);
+                        if(newValue == 0) {
+                            newPc++;
+                        }
+                        break;
+                    }
                     newAccValue = accValue + 1;
                     if((newAccValue & 0xFFFF) == 0) {
                         newPc = address;
@@ -220,7 +298,338 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
 
         builder.writeRegister(PROGRAM_COUNTER_REG, oldPc, newPc);
         builder.writeRegister(ACC_REG, accValue, newAccValue & 0xFFFF);
-        return builder.build();
+    }
+
+    /**
+     * Runs an ISZ that counts memory as one access of the memory, see ShortMemory.getAndAdd,
+     * so on a Multiprocessor's memory no other CPU's write comes between its read and its
+     * write, which building and applying a delta would let happen. Anything else, or
+     * anything while state hashing, is stepped as usual.
+     */
+    @Override
+    public Delta.Builder stepActions() {
+        int instruction = getCurrentInstruction();
+        if(!memoryIsz || isHalted || isStateHashing() || (instruction & (0b111 << 12)) != ISZ) {
+            return super.stepActions();
+        }
+
+        int address = effectiveAddress(instruction);
+        short value = memory.getAndAdd(address, (short) 1);
+        short newValue = (short) (value + 1);
+        memoryWritten();
+        loops.written(address);
+        int oldPc = registers[PROGRAM_COUNTER_REG];
+        int newPc = newValue == 0 ? oldPc + 2 : oldPc + 1;
+        writeRegister(PROGRAM_COUNTER_REG, newPc);
+        retired(1);
+
+        int accValue = registers[ACC_REG];
+        return iszBuilder.clear()
+                .writeMemory(address, value, newValue)
+                .writeRegister(PROGRAM_COUNTER_REG, oldPc, newPc)
+                .writeRegister(ACC_REG, accValue, accValue & 0xFFFF);
+    }
+
+    /**
+     * The address a memory-reference instruction operates on, following the pointer if it
+     * is indirect.
+     */
+    private int effectiveAddress(int instruction) {
+        int address = 0b111111111111 & instruction;
+        if((INDIRECT & instruction) != 0) {
+            address = readMemoryValue(address);
+        }
+
+        return address;
+    }
+
+    /**
+     * Skips over whole trips of a counted loop when the current instruction starts one, see
+     * LinearLoop, such as one counting the accumulator up to 0 with ISZ and going back with
+     * BUN. A trip can be skipped when it only loads, stores, adds and increments, and skips
+     * or branches on the accumulator or the carry. Trips only get skipped while the sums
+     * stay within 16 bits as they are, and while no add sets the carry, so the trip that
+     * wraps or sets it is stepped through like any other instruction.
+     *
+     * Every trip comes back to its start with a branch, so loops are only looked for where
+     * a branch or skip lands, or where stepMany starts. Walking from every instruction costs
+     * more than it saves in code that only runs a few times, or that keeps writing itself.
+     */
+    @Override
+    public int stepMany(int maxSteps) {
+        int pc = registers[PROGRAM_COUNTER_REG];
+        int key = pc * 2 + (hasCarryFlag() ? 1 : 0);
+        if(maxSteps > 1 && !isStateHashing()) {
+            LinearLoop loop = loops.isAnalysed(key) ? loops.get(key)
+                    : pc != fallThroughPc ? findLoop(key) : null;
+            int ran = loop == null ? 0 : loop.run(this, maxSteps);
+            if(ran != 0) {
+                retired(ran);
+                return ran;
+            }
+        }
+
+        step();
+        fallThroughPc = pc + 1;
+        return 1;
+    }
+
+    /**
+     * The loop starting at the current instruction, if there is one, which is then cached
+     * under key.
+     */
+    private LinearLoop findLoop(int key) {
+        LinearLoop loop = mayStartLoop() ? walkLoop() : null;
+        loops.put(key, loop);
+
+        return loop;
+    }
+
+    /**
+     * Whether the instructions from the current one up to the first skip or ISZ are all ones
+     * a loop can have. This is checked for every instruction that is run, so unlike walkLoop
+     * it doesn't allocate.
+     */
+    private boolean mayStartLoop() {
+        int start = registers[PROGRAM_COUNTER_REG];
+        int pc = start;
+        for(int length = 0; length < MAX_LOOP_LENGTH; length++) {
+            loops.code(pc);
+            int instruction = memory.read(pc);
+            int bits14To12 = ((0b111 << 12) & instruction) >> 12;
+            if(bits14To12 != 7) {
+                if((INDIRECT & instruction) != 0) {
+                    return false;
+                }
+                switch (bits14To12 << 12) {
+                    case ADD:
+                    case LDA:
+                    case STA:
+                        pc++;
+                        break;
+                    case BUN:
+                        pc = 0b111111111111 & instruction;
+                        break;
+                    case ISZ:
+                        return !memoryIsz;
+                    default:
+                        return false;
+                }
+            } else {
+                switch (instruction) {
+                    case CLA:
+                    case CLE:
+                    case INC:
+                        pc++;
+                        break;
+                    case SPA:
+                    case SNA:
+                    case SZA:
+                    case SZE:
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+
+            if(pc == start) {
+                return true;
+            }
+            if(pc >= MEMORY_COUNT) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Walks a trip of the loop starting at the current instruction, see LinearLoop.
+     * @return null if it isn't a loop that can be skipped over
+     */
+    private LinearLoop walkLoop() {
+        LinearLoop.Builder builder = new LinearLoop.Builder(this);
+        int accumulator = Location.newRegisterLocation(ACC_REG);
+        int flags = readRegister(FLAG_REG);
+        boolean carry = hasCarryFlag();
+        // the flags are never written on a trip, but the skips depend on them
+        LinearLoop.Value flagsValue = builder.read(Location.newRegisterLocation(FLAG_REG));
+        builder.range(flagsValue, flags, flags);
+        LinearLoop.Value acc = builder.read(accumulator);
+        int[] code = new int[MAX_LOOP_LENGTH];
+        int length = 0;
+        int start = registers[PROGRAM_COUNTER_REG];
+        int pc = start;
+        LinearLoop loop = null;
+
+        walk:
+        while(length < MAX_LOOP_LENGTH) {
+            loops.code(pc);
+            code[length++] = pc;
+            int instruction = memory.read(pc);
+            int next = pc + 1;
+            int bits14To12 = ((0b111 << 12) & instruction) >> 12;
+            if(bits14To12 != 7) {
+                if((INDIRECT & instruction) != 0) {
+                    break;
+                }
+                int cell = Location.newMemoryLocation(0b111111111111 & instruction);
+                switch (bits14To12 << 12) {
+                    case ADD:
+                        acc = acc.plus(builder.read(cell));
+                        builder.range(acc, carry ? Short.MIN_VALUE : 0, Short.MAX_VALUE);
+                        break;
+                    case LDA:
+                        acc = builder.read(cell);
+                        break;
+                    case STA:
+                        builder.write(cell, acc);
+                        break;
+                    case BUN:
+                        next = Location.getAddress(cell);
+                        break;
+                    case ISZ:
+                        if(memoryIsz) {
+                            break walk;
+                        }
+                        acc = acc.plus(1);
+                        builder.range(acc, Short.MIN_VALUE, Short.MAX_VALUE);
+                        if(builder.evaluate(acc) == 0) {
+                            builder.zero(acc);
+                            next = Location.getAddress(cell);
+                        } else {
+                            builder.nonZero(acc);
+                        }
+                        break;
+                    default:
+                        break walk;
+                }
+            } else {
+                switch (instruction) {
+                    case CLA:
+                        // a negative accumulator is put back by the write of the new value
+                        if(builder.evaluate(acc) < 0) {
+                            builder.range(acc, Short.MIN_VALUE, -1);
+                        } else {
+                            builder.range(acc, 0, Short.MAX_VALUE);
+                            acc = LinearLoop.Builder.constant(0);
+                        }
+                        break;
+                    case CLE:
+                        if(carry) {
+                            break walk;
+                        }
+                        break;
+                    case INC:
+                        acc = acc.plus(1);
+                        builder.range(acc, Short.MIN_VALUE, Short.MAX_VALUE);
+                        break;
+                    case SPA:
+                    case SNA:
+                        boolean negative = builder.evaluate(acc) < 0;
+                        if(negative) {
+                            builder.range(acc, Short.MIN_VALUE, -1);
+                        } else {
+                            builder.range(acc, 0, Short.MAX_VALUE);
+                        }
+                        if(negative == (instruction == SNA)) {
+                            next++;
+                        }
+                        break;
+                    case SZA:
+                        if(builder.evaluate(acc) == 0) {
+                            builder.zero(acc);
+                            next++;
+                        } else {
+                            builder.nonZero(acc);
+                        }
+                        break;
+                    case SZE:
+                        if(!carry) {
+                            next++;
+                        }
+                        break;
+                    default:
+                        break walk;
+                }
+            }
+
+            if(next >= MEMORY_COUNT) {
+                break;
+            }
+            pc = next;
+            if(pc == start) {
+                builder.write(accumulator, acc);
+                loop = builder.build(length);
+                break;
+            }
+        }
+
+        for(int i = 0; i < length && loop != null; i++) {
+            if(builder.isWritten(Location.newMemoryLocation(code[i]))) {
+                // the loop changes its own code, so it would be forgotten on every trip, and
+                // starting from any of its instructions would come to the same writes
+                for(int j = 0; j < length; j++) {
+                    loops.giveUp(code[j] * 2);
+                    loops.giveUp(code[j] * 2 + 1);
+                }
+                loop = null;
+            }
+        }
+
+        return loop;
+    }
+
+    /**
+     * The same as MachineUtil.runMachineUntilHalt, but also keeps callStack up to date
+     * with the guest's subroutine calls and program counter so that another thread can
+     * sample it, see SamplingProfiler.
+     */
+    public boolean runUntilHalt(int giveUpCounter, CallStack callStack) {
+        boolean neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        int sliceLength = SLICE_LENGTH;
+        if(getStatePublisher() != null) {
+            sliceLength = Math.min(sliceLength, getStatePublisher().getInterval());
+        }
+        int unreported = 0;
+        try {
+            while(!isHalted) {
+                if(!neverGiveUp && giveUpCounter-- == 0) {
+                    return MachineUtil.DID_GIVE_UP;
+                }
+
+                int instruction = getCurrentInstruction();
+                int opcode = instruction & (0b111 << 12);
+                if(opcode == BSA) {
+                    callStack.call(effectiveAddress(instruction));
+                } else if(opcode == BUN && (instruction & INDIRECT) != 0) {
+                    callStack.jumpIndirect(0b111111111111 & instruction);
+                }
+
+                step();
+                callStack.publishPc(registers[PROGRAM_COUNTER_REG]);
+                if(++unreported == sliceLength) {
+                    MachineUtil.endSlice(this, unreported);
+                    unreported = 0;
+                }
+            }
+        } finally {
+            if(unreported != 0) {
+                MachineUtil.endSlice(this, unreported);
+            }
+        }
+
+        return MachineUtil.DID_NOT_GIVE_UP;
+    }
+
+    @Override
+    public Machine fork(InputStream in, OutputStream out) {
+        Machine fork = new Machine(in, out, memory.fork(), memoryIsz);
+        fork.registers = registers.clone();
+        fork.isHalted = isHalted;
+        forkedInto(fork);
+
+        return fork;
     }
 
     @Override
@@ -235,7 +644,43 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
 
     @Override
     public int getCurrentInstruction() {
-        return memory[registers[PROGRAM_COUNTER_REG]];
+        return memory.read(registers[PROGRAM_COUNTER_REG]);
+    }
+
+    @Override
+    public int getProgramCounter() {
+        return registers[PROGRAM_COUNTER_REG];
+    }
+
+    @Override
+    public int getAddressCount() {
+        return MEMORY_COUNT;
+    }
+
+    @Override
+    public int getOpcodeCount() {
+        return OPCODE_NAMES.length;
+    }
+
+    @Override
+    public int decodeOpcode(int instruction) {
+        int bits14To12 = ((0b111 << 12) & instruction) >> 12;
+        if(bits14To12 != 7) {
+            return bits14To12;
+        }
+
+        for(int i = 0; i < REGISTER_INSTRUCTIONS.length; i++) {
+            if(REGISTER_INSTRUCTIONS[i] == instruction) {
+                return 7 + i;
+            }
+        }
+
+        return UNKNOWN_OPCODE;
+    }
+
+    @Override
+    public String getOpcodeName(int opcode) {
+        return OPCODE_NAMES[opcode];
     }
 
     public boolean hasCarryFlag() {
@@ -243,8 +688,8 @@ public class Machine extends com.keithstellyes.machines.shared.Machine {
     }
 
     public void loadProgram(short[] program) {
-        for(int i = 0; i < MEMORY_COUNT; i++) {
-            memory[i] = program[i];
-        }
+        memory.write(0, program, 0, MEMORY_COUNT);
+        memoryWritten();
+        loops.clear();
     }
 }
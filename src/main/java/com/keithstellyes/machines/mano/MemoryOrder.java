@@ -0,0 +1,19 @@
+package com.keithstellyes.machines.mano;
+
+/**
+ * When the CPUs of a Multiprocessor see each other's writes to memory.
+ */
+public enum MemoryOrder {
+    /**
+     * Every read and write goes straight to the shared memory, so the CPUs see all writes
+     * in the order they were made, as if the CPUs took turns.
+     */
+    SEQUENTIAL,
+    /**
+     * Each CPU's writes wait in a store buffer of its own before they reach the shared
+     * memory, in the order they were made. A CPU reads its own buffered writes, but the
+     * others don't see them until they get there, so a CPU can read a cell before its
+     * earlier writes to other cells show. This is total store order, as on x86 and SPARC.
+     */
+    TOTAL_STORE_ORDER
+}
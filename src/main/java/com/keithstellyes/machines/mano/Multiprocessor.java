@@ -0,0 +1,354 @@
+package com.keithstellyes.machines.mano;
+
+import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.memory.ShortMemory;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Several Mano CPUs sharing one memory of MEMORY_COUNT words. Each CPU is a Machine of its
+ * own, with its own registers, and they all read from in and write to out. Each read or
+ * write of a byte is synchronized on the stream, so the streams needn't be thread safe,
+ * but the bytes of different CPUs come and go in whatever order the CPUs get to them.
+ *
+ * Every read and write of a word is atomic, so a CPU never sees half of another's write.
+ * An instruction that reads and writes memory, or follows an indirect address, does so in
+ * separate accesses, which other CPUs' accesses can come in between. ISZ in this machine
+ * counts the accumulator, so it doesn't touch the shared memory, unless the CPUs are made
+ * with memoryIsz. ISZ then counts the word in memory instead, as in Mano's book, skipping
+ * the next instruction when it comes to 0, and reads and writes the word in one atomic
+ * access, so CPUs can share a counter or take tickets with it. Its pointer, if it is
+ * indirect, is still read on its own, and under TOTAL_STORE_ORDER it drains the CPU's
+ * store buffer first. When the CPUs see each other's writes depends on the MemoryOrder.
+ *
+ * run gives each CPU a thread of its own, so they run as fast as the host lets them, in no
+ * fixed order. runLockstep runs them all on the calling thread, an instruction of each in
+ * turn, so a run goes the same way every time. The CPUs are stepped one instruction at a
+ * time in both, not run with stepMany, since skipping loops assumes no one else writes
+ * the memory in between.
+ *
+ * The memory is one AtomicIntegerArray, so CPUs only slow each other down when they write
+ * words near ones others read or write. Keep each CPU's data in a block of its own.
+ */
+public class Multiprocessor {
+    public static final int DEFAULT_STORE_BUFFER_DEPTH = 8;
+    public static final int DEFAULT_DRAIN_DELAY = 32;
+
+    /**
+     * How often the CPUs report to their metrics and state publishers, and check whether
+     * the run was interrupted.
+     */
+    private static final int SLICE_LENGTH = 1 << 12;
+
+    private final MemoryOrder memoryOrder;
+    private final boolean memoryIsz;
+    private final ShortMemory memory = ShortMemory.atomic(Machine.MEMORY_COUNT);
+    private final Machine[] cpus;
+    /**
+     * Under TOTAL_STORE_ORDER, each CPU's view of the memory, otherwise null.
+     */
+    private final StoreBuffer[] storeBuffers;
+
+    public Multiprocessor(int cpuCount, MemoryOrder memoryOrder, InputStream in, OutputStream out) {
+        this(cpuCount, memoryOrder, DEFAULT_STORE_BUFFER_DEPTH, DEFAULT_DRAIN_DELAY, in, out);
+    }
+
+    public Multiprocessor(int cpuCount, MemoryOrder memoryOrder, int storeBufferDepth,
+                          int drainDelay, InputStream in, OutputStream out) {
+        this(cpuCount, memoryOrder, storeBufferDepth, drainDelay, false, in, out);
+    }
+
+    /**
+     * @param storeBufferDepth how many writes each CPU's store buffer holds, under
+     *                         TOTAL_STORE_ORDER
+     * @param drainDelay how many more of a CPU's own reads and writes a write waits in its
+     *                   store buffer for, at most, under TOTAL_STORE_ORDER
+     * @param memoryIsz whether ISZ atomically counts the word in memory rather than the
+     *                  accumulator
+     */
+    public Multiprocessor(int cpuCount, MemoryOrder memoryOrder, int storeBufferDepth,
+                          int drainDelay, boolean memoryIsz, InputStream in, OutputStream out) {
+        if(cpuCount < 1) {
+            throw new IllegalArgumentException("At least one CPU is needed");
+        }
+        if(storeBufferDepth < 1 || drainDelay < 0) {
+            throw new IllegalArgumentException("Store buffers need a positive depth and a delay of at least 0");
+        }
+        this.memoryOrder = memoryOrder;
+        this.memoryIsz = memoryIsz;
+        in = new SharedInputStream(in);
+        out = new SharedOutputStream(out);
+        cpus = new Machine[cpuCount];
+        storeBuffers = memoryOrder == MemoryOrder.TOTAL_STORE_ORDER ? new StoreBuffer[cpuCount] : null;
+        for(int i = 0; i < cpuCount; i++) {
+            ShortMemory view = memory;
+            if(storeBuffers != null) {
+                view = storeBuffers[i] = new StoreBuffer(memory, storeBufferDepth, drainDelay);
+            }
+            cpus[i] = new Machine(in, out, view, memoryIsz);
+        }
+    }
+
+    public int getCpuCount() {
+        return cpus.length;
+    }
+
+    /**
+     * The CPU's machine, for setting its registers or plugging in metrics, which isn't
+     * safe while a run is going on.
+     */
+    public Machine getCpu(int cpu) {
+        return cpus[cpu];
+    }
+
+    public MemoryOrder getMemoryOrder() {
+        return memoryOrder;
+    }
+
+    public boolean isMemoryIsz() {
+        return memoryIsz;
+    }
+
+    /**
+     * The shared memory, without any CPU's store buffered writes.
+     */
+    public ShortMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Loads the program into the shared memory. Every CPU starts at address 0 unless its
+     * program counter is set otherwise.
+     */
+    public void loadProgram(short[] program) {
+        for(Machine cpu : cpus) {
+            cpu.loadProgram(program);
+        }
+    }
+
+    /**
+     * Runs every CPU on a thread of its own until they've all halted. A CPU that halts
+     * drains its store buffer, and so do the others once the run ends.
+     * @param giveUpCounter the most instructions each CPU runs, or NEVER_GIVE_UP
+     * @return DID_NOT_GIVE_UP if every CPU halted
+     * @throws InterruptedException if the calling thread was interrupted, after the CPUs
+     *                              have stopped
+     */
+    public boolean run(int giveUpCounter) throws InterruptedException {
+        boolean[] results = new boolean[cpus.length];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[cpus.length];
+        for(int i = 0; i < cpus.length; i++) {
+            int cpu = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    results[cpu] = runCpu(cpu, giveUpCounter);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "mano-cpu-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        try {
+            for(Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for(Thread thread : threads) {
+                thread.interrupt();
+            }
+            for(Thread thread : threads) {
+                joinUninterruptibly(thread);
+            }
+            throw e;
+        }
+
+        Throwable t = failure.get();
+        if(t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if(t instanceof Error) {
+            throw (Error) t;
+        }
+
+        boolean result = MachineUtil.DID_NOT_GIVE_UP;
+        for(boolean cpuResult : results) {
+            result &= cpuResult;
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs the CPUs on the calling thread, each running an instruction in turn, lowest
+     * first, until they've all halted. The store buffers drain at the end.
+     * @param giveUpCounter the most turns to take, or NEVER_GIVE_UP
+     * @return DID_NOT_GIVE_UP if every CPU halted
+     */
+    public boolean runLockstep(int giveUpCounter) {
+        boolean neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        long[] reported = new long[cpus.length];
+        for(int i = 0; i < cpus.length; i++) {
+            reported[i] = cpus[i].getStepCount();
+        }
+        int unreported = 0;
+        try {
+            while(true) {
+                boolean running = false;
+                for(Machine cpu : cpus) {
+                    if(!cpu.isHalted()) {
+                        running = true;
+                        break;
+                    }
+                }
+                if(!running) {
+                    return MachineUtil.DID_NOT_GIVE_UP;
+                }
+                if(!neverGiveUp && giveUpCounter-- == 0) {
+                    return MachineUtil.DID_GIVE_UP;
+                }
+
+                for(int i = 0; i < cpus.length; i++) {
+                    if(!cpus[i].isHalted()) {
+                        cpus[i].step();
+                        if(cpus[i].isHalted()) {
+                            drain(i);
+                        }
+                    }
+                }
+                if(++unreported == SLICE_LENGTH) {
+                    endSlice(reported);
+                    unreported = 0;
+                }
+            }
+        } finally {
+            endSlice(reported);
+            for(int i = 0; i < cpus.length; i++) {
+                drain(i);
+            }
+        }
+    }
+
+    private boolean runCpu(int cpu, int giveUpCounter) {
+        Machine machine = cpus[cpu];
+        boolean neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        int unreported = 0;
+        try {
+            while(!machine.isHalted()) {
+                if(!neverGiveUp && giveUpCounter-- == 0) {
+                    return MachineUtil.DID_GIVE_UP;
+                }
+
+                machine.step();
+                if(++unreported == SLICE_LENGTH) {
+                    MachineUtil.endSlice(machine, unreported);
+                    unreported = 0;
+                    if(Thread.currentThread().isInterrupted()) {
+                        return MachineUtil.DID_GIVE_UP;
+                    }
+                }
+            }
+        } finally {
+            if(unreported != 0) {
+                MachineUtil.endSlice(machine, unreported);
+            }
+            drain(cpu);
+        }
+
+        return MachineUtil.DID_NOT_GIVE_UP;
+    }
+
+    /**
+     * Reports a slice of a lockstep run, what each CPU ran since its step count was
+     * reported.
+     */
+    private void endSlice(long[] reported) {
+        for(int i = 0; i < cpus.length; i++) {
+            long stepCount = cpus[i].getStepCount();
+            if(stepCount != reported[i]) {
+                MachineUtil.endSlice(cpus[i], (int) (stepCount - reported[i]));
+                reported[i] = stepCount;
+            }
+        }
+    }
+
+    private void drain(int cpu) {
+        if(storeBuffers != null) {
+            storeBuffers[cpu].drain();
+        }
+    }
+
+    /**
+     * The input the CPUs share, read a byte at a time by one CPU at a time.
+     */
+    private static final class SharedInputStream extends FilterInputStream {
+        SharedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            return in.skip(n);
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return in.available();
+        }
+    }
+
+    /**
+     * The output the CPUs share, written by one CPU at a time.
+     */
+    private static final class SharedOutputStream extends FilterOutputStream {
+        SharedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
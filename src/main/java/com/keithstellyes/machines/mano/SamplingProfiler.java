@@ -0,0 +1,121 @@
+package com.keithstellyes.machines.mano;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Profiles a long-running Mano program by sampling rather than counting every instruction.
+ *
+ * The machine runs on the calling thread and publishes its program counter and guest call
+ * stack (see CallStack), while a timer thread reads them every interval. The samples are
+ * kept as collapsed stacks, one line per distinct stack with how many times it was seen,
+ * which is the input format of flame graph tools:
+ *
+ *   main;sub_010;sub_020;pc_023 42
+ *
+ * Each sub_ frame is named for the address its subroutine starts at, and the last frame
+ * is the program counter, all in hex.
+ */
+public class SamplingProfiler {
+    private final Machine machine;
+    private final CallStack callStack;
+    private final long intervalMicros;
+    private final Map<String, Long> samples = new HashMap<>();
+    private final int[] frameBuffer;
+    private long droppedSamples;
+
+    public SamplingProfiler(Machine machine, long intervalMicros) {
+        this(machine, intervalMicros, new CallStack());
+    }
+
+    public SamplingProfiler(Machine machine, long intervalMicros, CallStack callStack) {
+        this.machine = machine;
+        this.intervalMicros = intervalMicros;
+        this.callStack = callStack;
+        this.frameBuffer = new int[callStack.getMaxDepth() + 1];
+    }
+
+    /**
+     * Runs the machine until it halts or gives up, sampling it the whole time.
+     * @return the same as MachineUtil.runMachineUntilHalt
+     */
+    public boolean run(int giveUpCounter) {
+        callStack.clear();
+        callStack.publishPc(machine.getProgramCounter());
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mano-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::sample, intervalMicros, intervalMicros,
+                TimeUnit.MICROSECONDS);
+
+        try {
+            return machine.runUntilHalt(giveUpCounter, callStack);
+        } finally {
+            timer.shutdownNow();
+            try {
+                timer.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes one sample. This is what the timer thread calls, but it can be called from
+     * anywhere.
+     */
+    public synchronized void sample() {
+        int depth = callStack.read(frameBuffer);
+        if(depth < 0) {
+            droppedSamples++;
+            return;
+        }
+        int pc = frameBuffer[depth];
+
+        StringBuilder sb = new StringBuilder("main");
+        for(int i = 0; i < depth; i++) {
+            sb.append(";sub_").append(toHex(frameBuffer[i] + 1));
+        }
+        sb.append(";pc_").append(toHex(pc));
+
+        samples.merge(sb.toString(), 1L, Long::sum);
+    }
+
+    public synchronized long getSampleCount() {
+        long total = 0;
+        for(long count : samples.values()) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Samples thrown away because the call stack was changing while it was read.
+     */
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public synchronized void writeCollapsed(Appendable out) throws IOException {
+        for(Map.Entry<String, Long> entry : samples.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue()))
+                    .append('\n');
+        }
+    }
+
+    public synchronized void clear() {
+        samples.clear();
+        droppedSamples = 0;
+    }
+
+    private static String toHex(int address) {
+        return String.format("%03X", address & 0xFFF);
+    }
+}
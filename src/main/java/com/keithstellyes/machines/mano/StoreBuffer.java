@@ -0,0 +1,133 @@
+package com.keithstellyes.machines.mano;
+
+import com.keithstellyes.machines.shared.memory.ShortMemory;
+
+/**
+ * One CPU's view of a Multiprocessor's memory under TOTAL_STORE_ORDER. Writes are queued,
+ * and reach the shared memory oldest first once drainDelay more reads and writes of this
+ * CPU have gone by, or sooner when the queue is full. Reads see the newest queued write to
+ * the cell, if there is one, or else the shared memory.
+ *
+ * Time is counted in this CPU's own memory accesses, so what a CPU sees only depends on
+ * the order the CPUs' accesses are made in, which lockstep runs fix.
+ */
+final class StoreBuffer extends ShortMemory {
+    private final ShortMemory shared;
+    private final int drainDelay;
+
+    /**
+     * A ring of the queued writes, oldest at head.
+     */
+    private final int[] addresses;
+    private final short[] values;
+    private final long[] drainAt;
+    private int head;
+    private int size;
+    private long clock;
+
+    StoreBuffer(ShortMemory shared, int depth, int drainDelay) {
+        this.shared = shared;
+        this.drainDelay = drainDelay;
+        addresses = new int[depth];
+        values = new short[depth];
+        drainAt = new long[depth];
+    }
+
+    @Override
+    public int size() {
+        return shared.size();
+    }
+
+    @Override
+    public short read(int address) {
+        tick();
+        for(int i = size - 1; i >= 0; i--) {
+            int slot = slot(i);
+            if(addresses[slot] == address) {
+                return values[slot];
+            }
+        }
+
+        return shared.read(address);
+    }
+
+    @Override
+    public void write(int address, short value) {
+        tick();
+        if(size == addresses.length) {
+            drainOne();
+        }
+        int slot = slot(size++);
+        addresses[slot] = address;
+        values[slot] = value;
+        drainAt[slot] = clock + drainDelay;
+    }
+
+    /**
+     * Drains the queue first, then adds in the shared memory, the same as a locked
+     * instruction on x86, so the add is ordered after all of this CPU's earlier writes.
+     */
+    @Override
+    public short getAndAdd(int address, short delta) {
+        tick();
+        drain();
+
+        return shared.getAndAdd(address, delta);
+    }
+
+    /**
+     * Reads the shared memory as this CPU sees it, queued writes and all.
+     */
+    @Override
+    public void read(int address, short[] dst, int offset, int length) {
+        shared.read(address, dst, offset, length);
+        for(int i = 0; i < size; i++) {
+            int slot = slot(i);
+            int cell = addresses[slot];
+            if(cell >= address && cell < address + length) {
+                dst[offset + cell - address] = values[slot];
+            }
+        }
+    }
+
+    /**
+     * Drains the queue first, then writes straight to the shared memory.
+     */
+    @Override
+    public void write(int address, short[] src, int offset, int length) {
+        drain();
+        shared.write(address, src, offset, length);
+    }
+
+    @Override
+    public void clear() {
+        drain();
+        shared.clear();
+    }
+
+    /**
+     * Writes every queued write to the shared memory.
+     */
+    void drain() {
+        while(size > 0) {
+            drainOne();
+        }
+    }
+
+    private void tick() {
+        clock++;
+        while(size > 0 && drainAt[head] <= clock) {
+            drainOne();
+        }
+    }
+
+    private void drainOne() {
+        shared.write(addresses[head], values[head]);
+        head = slot(1);
+        size--;
+    }
+
+    private int slot(int index) {
+        return (head + index) % addresses.length;
+    }
+}
@@ -0,0 +1,162 @@
+package com.keithstellyes.machines.shared;
+
+/**
+ * Catches a machine that has gone into an infinite loop, so the run loop can stop it long
+ * before its give up counter runs out. See Machine.setCycleDetector.
+ *
+ * Between reads of input a machine is deterministic, so if its registers and memory ever
+ * repeat it will go round the same states forever. Brent's algorithm looks for a repeat
+ * in the machine's state hash, saving the hash at steps 1, 2, 4, 8 and so on, and
+ * comparing each step's hash with the last one saved. Once the hash repeats after
+ * some cycle length, the whole state is copied and the machine is run for that length
+ * again. If the state comes back exactly, the machine provably never halts. A hash
+ * collision only costs that one extra cycle.
+ *
+ * Reading input starts the search over, since what's read can change what happens next.
+ * So does running the machine again after something else changed its memory or stepped it.
+ * A machine whose getMemorySize is 0 doesn't expose its whole state, so it's never caught.
+ */
+public class CycleDetector {
+    private Machine machine;
+    private boolean watching;
+    private long lastStep;
+    private long lastMemoryVersion;
+    private long lastInputCount;
+
+    private long savedHash;
+    private long power;
+    private long length;
+
+    private long verifyLeft;
+    private long verifyHash;
+    private int[] registers;
+    private int[] memory;
+
+    private boolean nonTerminating;
+    private long cycleLength;
+    private long provenAt;
+
+    /**
+     * Called by the run loop before it runs the machine, this carries on from the last run
+     * if nothing has touched the machine since, and starts over otherwise.
+     */
+    public void start(Machine machine) {
+        if(machine == this.machine && machine.isStateHashing()
+                && machine.getStepCount() == lastStep
+                && machine.getMemoryVersion() == lastMemoryVersion) {
+            return;
+        }
+
+        this.machine = machine;
+        watching = machine.getMemorySize() > 0;
+        machine.setStateHashing(true);
+        nonTerminating = false;
+        cycleLength = 0;
+        provenAt = 0;
+        restart();
+    }
+
+    /**
+     * Called by the run loop after each step.
+     * @return true once the machine is known never to halt
+     */
+    public boolean check() {
+        Machine machine = this.machine;
+        lastStep = machine.getStepCount();
+        lastMemoryVersion = machine.getMemoryVersion();
+        if(nonTerminating) {
+            return true;
+        }
+        if(!watching) {
+            return false;
+        }
+        if(machine.getInputCount() != lastInputCount) {
+            restart();
+            return false;
+        }
+
+        long hash = machine.getStateHash();
+        length++;
+        if(verifyLeft != 0) {
+            if(--verifyLeft == 0) {
+                if(hash == verifyHash && isSnapshot(machine)) {
+                    nonTerminating = true;
+                    provenAt = lastStep;
+                    return true;
+                }
+                restart();
+            }
+        } else if(hash == savedHash) {
+            snapshot(machine);
+            verifyHash = hash;
+            verifyLeft = length;
+            cycleLength = length;
+        } else if(length == power) {
+            savedHash = hash;
+            power <<= 1;
+            length = 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the machine was proven to loop forever.
+     */
+    public boolean isNonTerminating() {
+        return nonTerminating;
+    }
+
+    /**
+     * How many steps the machine takes to come back to the same state, once it's proven
+     * non-terminating.
+     */
+    public long getCycleLength() {
+        return nonTerminating ? cycleLength : 0;
+    }
+
+    /**
+     * The step count the machine was at when it was proven non-terminating.
+     */
+    public long getProvenAt() {
+        return provenAt;
+    }
+
+    private void restart() {
+        savedHash = machine.getStateHash();
+        power = 1;
+        length = 0;
+        verifyLeft = 0;
+        lastInputCount = machine.getInputCount();
+    }
+
+    private void snapshot(Machine machine) {
+        if(registers == null || registers.length != machine.getRegisterCount()) {
+            registers = new int[machine.getRegisterCount()];
+        }
+        if(memory == null || memory.length != machine.getMemorySize()) {
+            memory = new int[machine.getMemorySize()];
+        }
+        for(int i = 0; i < registers.length; i++) {
+            registers[i] = machine.readRegister(i);
+        }
+        for(int i = 0; i < memory.length; i++) {
+            memory[i] = machine.readMemoryValue(i);
+        }
+    }
+
+    private boolean isSnapshot(Machine machine) {
+        for(int i = 0; i < registers.length; i++) {
+            if(registers[i] != machine.readRegister(i)) {
+                return false;
+            }
+        }
+        for(int i = 0; i < memory.length; i++) {
+            if(memory[i] != machine.readMemoryValue(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -1,52 +1,36 @@
 package com.keithstellyes.machines.shared;
 
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
-
-public class Location {
-    private final int register;
-    private final int memory;
-    private final boolean isRegister;
-    private final static Map<Integer, Location> registerInstances = new HashMap<>();
-
-    private Location(int register, int memory, boolean isRegister) {
-        if(isRegister) {
-            this.register = register;
-            this.memory = 0;
-        } else {
-            this.register = 0;
-            this.memory = memory;
-        }
-
-        this.isRegister = isRegister;
+/**
+ * Static helpers for a location handle, which is either a register or a memory address
+ * packed into a plain int.
+ *
+ * The high bit marks a register, the remaining 31 bits are the address. Since a location
+ * is just an int, making one never allocates, and there is no shared state so machines on
+ * different threads can freely make them.
+ */
+public final class Location {
+    private final static int REGISTER_BIT = 1 << 31;
+    private final static int ADDRESS_MASK = ~REGISTER_BIT;
+
+    private Location() { }
+
+    public static int newRegisterLocation(int register) {
+        return REGISTER_BIT | (register & ADDRESS_MASK);
     }
 
-    public static Location newRegisterLocation(int register) {
-        if(!registerInstances.containsKey(register)) {
-            registerInstances.put(register, new Location(register, 0, true));
-        }
-
-        return registerInstances.get(register);
+    public static int newMemoryLocation(int memory) {
+        return memory & ADDRESS_MASK;
     }
 
-    public static Location newMemoryLocation(int memory) {
-        return new Location(0, memory, false);
+    public static boolean isRegister(int location) {
+        return (location & REGISTER_BIT) != 0;
     }
 
-    public boolean isRegister() {
-        return isRegister;
+    public static boolean isMemory(int location) {
+        return (location & REGISTER_BIT) == 0;
     }
 
-    public boolean isMemory() {
-        return !isRegister;
-    }
-
-    public int getAddress() {
-        if(isRegister) {
-            return memory;
-        }
-
-        return register;
+    public static int getAddress(int location) {
+        return location & ADDRESS_MASK;
     }
 }
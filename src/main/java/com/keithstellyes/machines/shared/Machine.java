@@ -1,14 +1,15 @@
 package com.keithstellyes.machines.shared;
 
 import com.keithstellyes.machines.shared.exception.NotImplementedException;
+import com.keithstellyes.machines.shared.metrics.MachineMetrics;
+import com.keithstellyes.machines.shared.fuzz.EdgeCoverage;
+import com.keithstellyes.machines.shared.replay.InputLog;
+import com.keithstellyes.machines.shared.trace.TraceWriter;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.function.Consumer;
+import java.util.Arrays;
 
 /**
  * A primitive von Neumann machine, designed for machines with a series of registers
@@ -33,6 +34,21 @@ import java.util.function.Consumer;
 public abstract class Machine {
     protected final InputStream in;
     protected final OutputStream out;
+    private volatile Profiler profiler;
+    private volatile MachineMetrics metrics;
+    private volatile StatePublisher statePublisher;
+    private volatile TraceWriter traceWriter;
+    private volatile InputLog inputLog;
+    private volatile EdgeCoverage coverage;
+    private volatile CycleDetector cycleDetector;
+    private volatile boolean discardOutput;
+    private volatile OutputListener outputListener;
+    private long memoryVersion;
+    private long stepCount;
+    private long inputCount;
+    private boolean stateHashing;
+    private long stateHash;
+    private final Delta.Builder stepBuilder = new Delta.Builder();
 
     public Machine(InputStream in, OutputStream out) {
         this.in = in;
@@ -50,30 +66,91 @@ public abstract class Machine {
 
     public void writeMemory(int address, int value) { }
 
+    /**
+     * How many cells of memory readMemoryValue can read, starting from 0.
+     */
+    public int getMemorySize() {
+        return 0;
+    }
+
     public int readRegister(int address) {
         return 0;
     }
 
     public void writeRegister(int address, int value) { }
 
-    public void writeValue(Location location, int value) { }
+    public int getRegisterCount() {
+        return 0;
+    }
+
+    /**
+     * Goes up every time memory is written, so a changed version means memory may have
+     * changed. Implementations call memoryWritten whenever they write memory.
+     */
+    public long getMemoryVersion() {
+        return memoryVersion;
+    }
+
+    protected final void memoryWritten() {
+        memoryVersion++;
+    }
+
+    /**
+     * How many deltas have been applied to this machine, less those unapplied. While a delta
+     * is being applied, this is the number of the step it is.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @param location a location handle, see {@link Location}
+     */
+    public void writeValue(int location, int value) { }
 
     public void output(int value) {
+        OutputListener outputListener = this.outputListener;
+        if(outputListener != null) outputListener.output(value);
+        if(discardOutput) return;
         try {
             out.write(value);
+            MachineMetrics metrics = this.metrics;
+            if(metrics != null) metrics.byteOut();
         } catch (IOException e) { }
     }
 
-    public void input(Location location) {
+    public void input(int location) {
         try {
-            writeValue(location, in.read());
+            writeValue(location, readInput());
         } catch(IOException e) { }
     }
 
+    /**
+     * Reads the next byte for an input instruction, machines that override input should
+     * read through this so it gets counted.
+     */
+    protected int readInput() throws IOException {
+        InputLog inputLog = this.inputLog;
+        int read = inputLog == null ? in.read() : inputLog.read(stepCount, in);
+        inputCount++;
+        MachineMetrics metrics = this.metrics;
+        if(read != -1 && metrics != null) metrics.byteIn();
+
+        return read;
+    }
+
     public String getName() {
         return "Unimplemented";
     }
 
+    /**
+     * A digest of the loaded program, see ProgramDigest, or null if this machine can't
+     * give one. It doesn't cover registers, only what was loaded.
+     */
+    public byte[] getProgramDigest() {
+        return null;
+    }
+
     /**
      * Creates a Delta that can then
      * be applied t othis machine based off of a parsed instruction. This will usually
@@ -83,13 +160,288 @@ public abstract class Machine {
      * @return
      */
     public Delta parseInstruction(int instruction) {
-        return null;
+        Delta.Builder builder = new Delta.Builder();
+        buildDelta(instruction, builder);
+
+        return builder.build();
+    }
+
+    /**
+     * Adds the actions of instruction to builder, this is what parseInstruction and step
+     * are built on. Implementations shouldn't allocate here, so that step doesn't either.
+     */
+    protected abstract void buildDelta(int instruction, Delta.Builder builder);
+
+    /**
+     * Runs the current instruction, the same as applying the delta parseInstruction gives
+     * for it. The delta is built into a builder this machine keeps, so after the first few
+     * steps this doesn't allocate. MachineUtil's plain run loop uses this.
+     */
+    public void step() {
+        stepActions();
+    }
+
+    /**
+     * Runs the current instruction like step, and gives the builder its delta was built in,
+     * so the instrumented run loop and the output cache can look at the actions without
+     * allocating. The builder is reused by the next step.
+     */
+    public Delta.Builder stepActions() {
+        Delta.Builder builder = stepBuilder;
+        builder.clear();
+        buildDelta(getCurrentInstruction(), builder);
+        Delta.apply(this, builder.size, builder.kinds, builder.addresses, builder.newValues);
+
+        return builder;
+    }
+
+    /**
+     * Runs the current instruction, or for a machine that can tell what a whole run of
+     * instructions does without stepping through them, such as a counted loop, up to maxSteps
+     * of them at once. MachineUtil's plain run loop uses this, while tools that look at every
+     * instruction step instead. Only the current instruction may read input, the ones run
+     * along with it never do, so nextStepReadsInput covers all of them.
+     * @return how many instructions were run, at least 1
+     */
+    public int stepMany(int maxSteps) {
+        step();
+        return 1;
+    }
+
+    /**
+     * Counts instructions that were run without applying their deltas, for stepMany
+     * implementations and for tools that put back the end of a run made before, such as
+     * OutputCache.
+     */
+    public final void retired(long steps) {
+        stepCount += steps;
+    }
+
+    /**
+     * Whether running the current instruction would read input, worked out without running
+     * it or allocating.
+     */
+    public boolean nextStepReadsInput() {
+        return nextStepReads() != 0;
+    }
+
+    /**
+     * How many times running the current instruction would read input, worked out without
+     * running it or allocating.
+     */
+    public int nextStepReads() {
+        Delta.Builder builder = stepBuilder;
+        builder.clear();
+        buildDelta(getCurrentInstruction(), builder);
+        int reads = 0;
+        for(int i = 0; i < builder.size; i++) {
+            if(builder.kinds[i] == Delta.INPUT) {
+                reads++;
+            }
+        }
+
+        return reads;
+    }
+
+    /**
+     * A copy of this machine at the same point, reading from in and writing to out, that
+     * then runs independently of it. Registers are copied and memory is forked, so with
+     * paged memory the two share every page neither has written to, see ByteMemory.fork.
+     * The profiler, metrics and the rest of the plugged in slots aren't carried over.
+     */
+    public abstract Machine fork(InputStream in, OutputStream out);
+
+    /**
+     * A fork that shares this machine's input and output streams.
+     */
+    public Machine fork() {
+        return fork(in, out);
+    }
+
+    /**
+     * For fork implementations, carries over what this class keeps of the run so far.
+     */
+    protected final void forkedInto(Machine fork) {
+        fork.stepCount = stepCount;
+        fork.inputCount = inputCount;
+        fork.stateHashing = stateHashing;
+        fork.stateHash = stateHash;
+        fork.discardOutput = discardOutput;
     }
 
     public int getCurrentInstruction() {
         return 0;
     }
 
+    /**
+     * The address of the current instruction, for machines where that is
+     * more than just a register.
+     */
+    public int getProgramCounter() {
+        return 0;
+    }
+
+    /**
+     * How many distinct values the program counter can take, which is usually the size
+     * of memory.
+     */
+    public int getAddressCount() {
+        return 1;
+    }
+
+    /**
+     * How many distinct values decodeOpcode can return.
+     */
+    public int getOpcodeCount() {
+        return 1;
+    }
+
+    /**
+     * Turns an instruction into a small opcode number, in [0, getOpcodeCount()).
+     * Like parseInstruction, this is based on the current state of the machine, so it should
+     * be called before the instruction is applied.
+     */
+    public int decodeOpcode(int instruction) {
+        return 0;
+    }
+
+    public String getOpcodeName(int opcode) {
+        return Integer.toString(opcode);
+    }
+
+    /**
+     * Sets the profiler used by MachineUtil's run loop, or null to turn profiling off.
+     * Without one, the run loop doesn't do any profiling work at all.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets the counters the run loop and I/O report to, or null for none.
+     * See MachineMetrics.register.
+     */
+    public void setMetrics(MachineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where the run loop publishes this machine's state for other threads to read,
+     * or null for nowhere.
+     */
+    public void setStatePublisher(StatePublisher statePublisher) {
+        this.statePublisher = statePublisher;
+    }
+
+    public StatePublisher getStatePublisher() {
+        return statePublisher;
+    }
+
+    /**
+     * Sets where the run loop records every step, or null to not trace.
+     */
+    public void setTraceWriter(TraceWriter traceWriter) {
+        this.traceWriter = traceWriter;
+    }
+
+    public TraceWriter getTraceWriter() {
+        return traceWriter;
+    }
+
+    /**
+     * Sets what input is read through, for recording or replaying it, or null to read the
+     * input stream directly.
+     */
+    public void setInputLog(InputLog inputLog) {
+        this.inputLog = inputLog;
+    }
+
+    public InputLog getInputLog() {
+        return inputLog;
+    }
+
+    /**
+     * Sets where the run loop records which control flow edges were taken, or null to not
+     * track coverage.
+     */
+    public void setCoverage(EdgeCoverage coverage) {
+        this.coverage = coverage;
+    }
+
+    public EdgeCoverage getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Sets what the run loop checks for the machine repeating itself, or null to not check.
+     * This turns state hashing on or off to go with it.
+     */
+    public void setCycleDetector(CycleDetector cycleDetector) {
+        this.cycleDetector = cycleDetector;
+        setStateHashing(cycleDetector != null);
+    }
+
+    public CycleDetector getCycleDetector() {
+        return cycleDetector;
+    }
+
+    /**
+     * Turns on keeping getStateHash up to date as deltas are applied and unapplied. Turning
+     * it on hashes the whole state, and writes made any other way aren't tracked, so after
+     * those it has to be turned on again.
+     */
+    public void setStateHashing(boolean stateHashing) {
+        if(stateHashing) {
+            stateHash = ZobristHash.of(this);
+        }
+        this.stateHashing = stateHashing;
+    }
+
+    public boolean isStateHashing() {
+        return stateHashing;
+    }
+
+    /**
+     * The ZobristHash of the registers and memory, while state hashing is on.
+     */
+    public long getStateHash() {
+        return stateHash;
+    }
+
+    /**
+     * How many times input has been read.
+     */
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * Whether output is thrown away instead of written, such as for a fast replay.
+     */
+    public void setDiscardOutput(boolean discardOutput) {
+        this.discardOutput = discardOutput;
+    }
+
+    /**
+     * Sets what is told every value this machine outputs, even while output is discarded,
+     * or null for nothing. See OutputIterator.
+     */
+    public void setOutputListener(OutputListener outputListener) {
+        this.outputListener = outputListener;
+    }
+
+    public OutputListener getOutputListener() {
+        return outputListener;
+    }
+
     public void reset() { }
     public void halt() { }
     public void unhalt() { }
@@ -103,52 +455,170 @@ public abstract class Machine {
      * Currently, deltas are not cached, and in the future this would be nice to have.
      *
      * This is also returned by the InstructionParser.
+     *
+     * The actions are kept as plain ints, a kind, an address and the old and new values,
+     * so that tools like tracers can look at what a delta does without applying it.
      */
     public static class Delta {
-        private final List<Consumer<Machine>> applyFunctions;
-        private final List<Consumer<Machine>> unapplyFunctions;
+        public final static int WRITE_MEMORY = 0;
+        public final static int WRITE_REGISTER = 1;
+        /**
+         * The new value is the value written out, the address is unused.
+         */
+        public final static int OUTPUT = 2;
+        /**
+         * The address is the location handle read into, see {@link Location}.
+         */
+        public final static int INPUT = 3;
+        public final static int HALT = 4;
+
+        private final static int[] NONE = new int[0];
+
+        private final int size;
+        private final int[] kinds;
+        private final int[] addresses;
+        private final int[] oldValues;
+        private final int[] newValues;
+
+        public final static Delta EMPTY_DELTA = new Delta(0, NONE, NONE, NONE, NONE);
+
+        private Delta(int size, int[] kinds, int[] addresses, int[] oldValues, int[] newValues) {
+            this.size = size;
+            this.kinds = kinds;
+            this.addresses = addresses;
+            this.oldValues = oldValues;
+            this.newValues = newValues;
+        }
 
-        public final static Delta EMPTY_DELTA = new Delta(Collections.emptyList(),
-                Collections.emptyList());
+        public void apply(Machine machine) {
+            apply(machine, size, kinds, addresses, newValues);
+        }
 
-        private Delta(List<Consumer<Machine>> applyFunctions,
-                      List<Consumer<Machine>> unapplyFunctions) {
-            this.applyFunctions = applyFunctions;
-            this.unapplyFunctions = unapplyFunctions;
+        private static void apply(Machine machine, int size, int[] kinds, int[] addresses,
+                                  int[] newValues) {
+            if(machine.stateHashing) {
+                for(int i = 0; i < size; i++) {
+                    applyHashed(machine, kinds[i], addresses[i], newValues[i]);
+                }
+            } else {
+                for(int i = 0; i < size; i++) {
+                    applyAction(machine, kinds[i], addresses[i], newValues[i]);
+                }
+            }
+            machine.stepCount++;
         }
 
-        public void apply(Machine machine) {
-            for(Consumer<Machine> action : applyFunctions) {
-                action.accept(machine);
+        private static void applyAction(Machine machine, int kind, int address, int value) {
+            switch (kind) {
+                case WRITE_MEMORY:
+                    machine.writeMemory(address, value);
+                    break;
+                case WRITE_REGISTER:
+                    machine.writeRegister(address, value);
+                    break;
+                case OUTPUT:
+                    machine.output(value);
+                    break;
+                case INPUT:
+                    machine.input(address);
+                    break;
+                case HALT:
+                    machine.halt();
+                    break;
+            }
+        }
+
+        /**
+         * Applies the action, updating the machine's state hash with whatever it wrote.
+         * The keys are of what the location holds before and after rather than the delta's
+         * values, since the machine may truncate what it's given.
+         */
+        private static void applyHashed(Machine machine, int kind, int address, int value) {
+            int location;
+            switch (kind) {
+                case WRITE_MEMORY:
+                    location = Location.newMemoryLocation(address);
+                    break;
+                case WRITE_REGISTER:
+                    location = Location.newRegisterLocation(address);
+                    break;
+                case INPUT:
+                    location = address;
+                    break;
+                default:
+                    applyAction(machine, kind, address, value);
+                    return;
             }
+
+            long before = ZobristHash.key(machine, location);
+            applyAction(machine, kind, address, value);
+            machine.stateHash ^= before ^ ZobristHash.key(machine, location);
         }
 
+        /**
+         * Currently, there is no undo of I/O, so that is skipped.
+         */
         public void unapply(Machine machine) {
-            for(Consumer<Machine> action : unapplyFunctions) {
-                action.accept(machine);
+            machine.stepCount--;
+            for(int i = size - 1; i >= 0; i--) {
+                switch (kinds[i]) {
+                    case WRITE_MEMORY:
+                    case WRITE_REGISTER:
+                        if(machine.stateHashing) {
+                            applyHashed(machine, kinds[i], addresses[i], oldValues[i]);
+                        } else {
+                            applyAction(machine, kinds[i], addresses[i], oldValues[i]);
+                        }
+                        break;
+                    case HALT:
+                        machine.unhalt();
+                        break;
+                }
             }
         }
 
+        /**
+         * How many actions this delta has.
+         */
+        public int size() {
+            return size;
+        }
+
+        public int getKind(int action) {
+            return kinds[action];
+        }
+
+        public int getAddress(int action) {
+            return addresses[action];
+        }
+
+        public int getOldValue(int action) {
+            return oldValues[action];
+        }
+
+        public int getNewValue(int action) {
+            return newValues[action];
+        }
+
         public static class Builder {
-            private final static Consumer<Machine> noop = (m) -> {};
+            private final static int INITIAL_CAPACITY = 4;
 
-            private final List<Consumer<Machine>> applyFunctions = new ArrayList<>();
-            private final List<Consumer<Machine>> unapplyFunctions = new ArrayList<>();
+            private int size;
+            private int[] kinds = new int[INITIAL_CAPACITY];
+            private int[] addresses = new int[INITIAL_CAPACITY];
+            private int[] oldValues = new int[INITIAL_CAPACITY];
+            private int[] newValues = new int[INITIAL_CAPACITY];
 
             public Builder writeMemory(int address, int oldValue, int newValue) {
                 if(oldValue == newValue) return this;
-                applyFunctions.add((m) -> m.writeMemory(address, newValue));
-                unapplyFunctions.add((m) -> m.writeMemory(address, oldValue));
 
-                return this;
+                return add(WRITE_MEMORY, address, oldValue, newValue);
             }
 
             public Builder writeRegister(int register, int oldValue, int newValue) {
                 if(oldValue == newValue) return this;
-                applyFunctions.add((m) -> m.writeRegister(register, newValue));
-                unapplyFunctions.add((m) -> m.writeRegister(register, oldValue));
 
-                return this;
+                return add(WRITE_REGISTER, register, oldValue, newValue);
             }
 
             /**
@@ -156,28 +626,70 @@ public abstract class Machine {
              * merely once again either write, or read again.
              */
             public Builder output(int value) {
-                applyFunctions.add((m) -> m.output(value));
-                unapplyFunctions.add(noop);
+                return add(OUTPUT, 0, 0, value);
+            }
 
-                return this;
+            /**
+             * @param location a location handle, see {@link Location}
+             */
+            public Builder input(int location) {
+                return add(INPUT, location, 0, 0);
             }
 
-            public Builder input(Location location) {
-                applyFunctions.add((m) -> m.input(location));
-                unapplyFunctions.add(noop);
+            public Builder halt() {
+                return add(HALT, 0, 0, 0);
+            }
 
+            /**
+             * Starts over with no actions, keeping the arrays.
+             */
+            public Builder clear() {
+                size = 0;
                 return this;
             }
 
-            public Builder halt() {
-                applyFunctions.add(Machine::halt);
-                unapplyFunctions.add(Machine::unhalt);
+            public int size() {
+                return size;
+            }
 
-                return this;
+            public int getKind(int action) {
+                return kinds[action];
             }
 
+            public int getAddress(int action) {
+                return addresses[action];
+            }
+
+            public int getOldValue(int action) {
+                return oldValues[action];
+            }
+
+            public int getNewValue(int action) {
+                return newValues[action];
+            }
+
+            /**
+             * The delta shares this builder's arrays, so the builder shouldn't be used after.
+             */
             public Delta build() {
-                return new Delta(applyFunctions, unapplyFunctions);
+                return new Delta(size, kinds, addresses, oldValues, newValues);
+            }
+
+            private Builder add(int kind, int address, int oldValue, int newValue) {
+                if(size == kinds.length) {
+                    int capacity = size * 2;
+                    kinds = Arrays.copyOf(kinds, capacity);
+                    addresses = Arrays.copyOf(addresses, capacity);
+                    oldValues = Arrays.copyOf(oldValues, capacity);
+                    newValues = Arrays.copyOf(newValues, capacity);
+                }
+                kinds[size] = kind;
+                addresses[size] = address;
+                oldValues[size] = oldValue;
+                newValues[size] = newValue;
+                size++;
+
+                return this;
             }
         }
     }
@@ -1,34 +1,116 @@
 package com.keithstellyes.machines.shared;
 
+import com.keithstellyes.machines.shared.fuzz.EdgeCoverage;
+import com.keithstellyes.machines.shared.metrics.MachineMetrics;
+import com.keithstellyes.machines.shared.trace.TraceWriter;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
 public final class MachineUtil {
     public static final int NEVER_GIVE_UP = 0;
     public static final boolean DID_NOT_GIVE_UP = true;
     public static final boolean DID_GIVE_UP = false;
 
+    /**
+     * How many instructions are run between checks of the machine's profiler.
+     */
+    static final int SLICE_LENGTH = 1 << 12;
+
     /**
      * true if it did not give up, false otherwise
+     *
+     * The machine is run in slices, and which loop runs a slice is picked at the start of it,
+     * so profiling, tracing and coverage cost nothing per instruction when they are off.
+     * Metrics are also counted, and state published, once per slice. Without any of those,
+     * the machine may run several instructions at once, see Machine.stepMany.
+     *
+     * With a cycle detector set on the machine, this gives up as soon as the machine is
+     * proven to loop forever, however much of giveUpCounter is left.
      * @param machine
      * @param giveUpCounter
      * @return
      */
     public static boolean runMachineUntilHalt(Machine machine, int giveUpCounter) {
-        if(giveUpCounter == NEVER_GIVE_UP) {
-            while (!machine.isHalted()) {
-                applyCurrentInstruction(machine);
+        boolean neverGiveUp = giveUpCounter <= NEVER_GIVE_UP;
+        StatePublisher statePublisher = machine.getStatePublisher();
+        CycleDetector cycleDetector = machine.getCycleDetector();
+        if(cycleDetector != null) {
+            cycleDetector.start(machine);
+        }
+        while(!machine.isHalted()) {
+            if(cycleDetector != null && cycleDetector.isNonTerminating()) {
+                return DID_GIVE_UP;
             }
-
-            return DID_NOT_GIVE_UP;
-        } else {
-            while(true) {
-                if(machine.isHalted()) {
-                    return DID_NOT_GIVE_UP;
-                } else if(giveUpCounter-- == 0) {
+            int sliceLength = SLICE_LENGTH;
+            if(statePublisher != null) {
+                sliceLength = Math.min(sliceLength, statePublisher.getInterval());
+            }
+            if(!neverGiveUp) {
+                if(giveUpCounter == 0) {
                     return DID_GIVE_UP;
-                } else {
-                    applyCurrentInstruction(machine);
                 }
+                sliceLength = Math.min(sliceLength, giveUpCounter);
+            }
+
+            Profiler profiler = machine.getProfiler();
+            if(profiler != null && !profiler.isEnabled()) {
+                profiler = null;
+            }
+            TraceWriter traceWriter = machine.getTraceWriter();
+            EdgeCoverage coverage = machine.getCoverage();
+            int ran;
+            if(profiler == null && traceWriter == null && coverage == null
+                    && cycleDetector == null) {
+                ran = runSlice(machine, sliceLength);
+            } else {
+                ran = runInstrumentedSlice(machine, profiler, traceWriter, coverage,
+                        cycleDetector, sliceLength);
+            }
+
+            endSlice(machine, ran);
+
+            if(!neverGiveUp) {
+                giveUpCounter -= ran;
             }
         }
+
+        return DID_NOT_GIVE_UP;
+    }
+
+    /**
+     * The machine's output, running it only as far as needed to produce each value.
+     * @param giveUpCounter the most instructions to run in total, or NEVER_GIVE_UP
+     */
+    public static OutputIterator outputIterator(Machine machine, int giveUpCounter) {
+        return new OutputIterator(machine, giveUpCounter);
+    }
+
+    /**
+     * The machine's output as a lazy stream, so short-circuiting operations like limit,
+     * anyMatch or findFirst stop the machine as soon as they have their answer.
+     * @param giveUpCounter the most instructions to run in total, or NEVER_GIVE_UP
+     */
+    public static IntStream outputStream(Machine machine, int giveUpCounter) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(
+                outputIterator(machine, giveUpCounter), Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Reports a finished slice of the run loop to the machine's metrics and state publisher,
+     * for run loops other than this class's.
+     */
+    public static void endSlice(Machine machine, int ran) {
+        MachineMetrics metrics = machine.getMetrics();
+        if(metrics != null) {
+            metrics.retire(ran);
+        }
+        StatePublisher statePublisher = machine.getStatePublisher();
+        if(statePublisher != null) {
+            statePublisher.publish(machine, ran);
+        }
     }
 
     public static void applyCurrentInstruction(Machine machine) {
@@ -36,4 +118,48 @@ public final class MachineUtil {
         Machine.Delta delta = machine.parseInstruction(instruction);
         delta.apply(machine);
     }
+
+    /**
+     * @return how many instructions were run, fewer than sliceLength if it halted
+     */
+    private static int runSlice(Machine machine, int sliceLength) {
+        int ran = 0;
+        while(ran < sliceLength && !machine.isHalted()) {
+            ran += machine.stepMany(sliceLength - ran);
+        }
+
+        return ran;
+    }
+
+    /**
+     * @param profiler may be null
+     * @param traceWriter may be null
+     * @param coverage may be null
+     * @param cycleDetector may be null, the slice ends early once it catches a cycle
+     */
+    private static int runInstrumentedSlice(Machine machine, Profiler profiler,
+                                            TraceWriter traceWriter, EdgeCoverage coverage,
+                                            CycleDetector cycleDetector, int sliceLength) {
+        int ran = 0;
+        while(ran < sliceLength && !machine.isHalted()) {
+            int pc = machine.getProgramCounter();
+            if(coverage != null) {
+                coverage.visit(pc);
+            }
+            int opcode = machine.decodeOpcode(machine.getCurrentInstruction());
+            Machine.Delta.Builder actions = machine.stepActions();
+            if(profiler != null) {
+                profiler.retire(pc, opcode, machine.getProgramCounter());
+            }
+            if(traceWriter != null) {
+                traceWriter.record(pc, opcode, actions);
+            }
+            ran++;
+            if(cycleDetector != null && cycleDetector.check()) {
+                break;
+            }
+        }
+
+        return ran;
+    }
 }
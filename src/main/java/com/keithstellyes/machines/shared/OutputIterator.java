@@ -0,0 +1,102 @@
+package com.keithstellyes.machines.shared;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A machine's output as it is produced, pulled one value at a time. The machine only runs
+ * until it produces the next value, so a caller that only wants the start of the output
+ * can stop early and never run the rest of the program.
+ *
+ * The values are caught with the machine's output listener, which is only set while the
+ * iterator runs the machine, so the machine runs with stepMany in between, the same as in
+ * MachineUtil's plain run loop. The output is still written to the machine's output stream
+ * as usual unless it is set to discard output. A stepMany that outputs several values
+ * keeps the rest for the following calls to nextInt.
+ *
+ * See MachineUtil.outputIterator and MachineUtil.outputStream.
+ */
+public class OutputIterator implements PrimitiveIterator.OfInt {
+    private final Machine machine;
+    private final boolean neverGiveUp;
+    private int giveUpCounter;
+    private int[] pending = new int[4];
+    private int pendingStart;
+    private int pendingEnd;
+    // whatever listener the machine had, which is still told every value
+    private OutputListener previous;
+    private final OutputListener listener = value -> {
+        push(value);
+        if(previous != null) {
+            previous.output(value);
+        }
+    };
+
+    /**
+     * @param giveUpCounter the most instructions to run in total, or
+     *                      MachineUtil.NEVER_GIVE_UP
+     */
+    public OutputIterator(Machine machine, int giveUpCounter) {
+        this.machine = machine;
+        this.neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        this.giveUpCounter = giveUpCounter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(pendingStart == pendingEnd) {
+            advance();
+        }
+
+        return pendingStart < pendingEnd;
+    }
+
+    @Override
+    public int nextInt() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return pending[pendingStart++];
+    }
+
+    /**
+     * Whether the iterator stopped because the instruction budget ran out rather than
+     * because the machine halted.
+     */
+    public boolean gaveUp() {
+        return !machine.isHalted() && !neverGiveUp && giveUpCounter == 0;
+    }
+
+    private void advance() {
+        pendingStart = 0;
+        pendingEnd = 0;
+        int ran = 0;
+        previous = machine.getOutputListener();
+        machine.setOutputListener(listener);
+        try {
+            while(pendingEnd == 0 && !machine.isHalted() && (neverGiveUp || giveUpCounter > 0)) {
+                int steps = machine.stepMany(neverGiveUp ? MachineUtil.SLICE_LENGTH
+                        : Math.min(giveUpCounter, MachineUtil.SLICE_LENGTH));
+                ran += steps;
+                if(!neverGiveUp) {
+                    giveUpCounter -= steps;
+                }
+            }
+        } finally {
+            machine.setOutputListener(previous);
+        }
+
+        if(ran != 0) {
+            MachineUtil.endSlice(machine, ran);
+        }
+    }
+
+    private void push(int value) {
+        if(pendingEnd == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingEnd++] = value;
+    }
+}
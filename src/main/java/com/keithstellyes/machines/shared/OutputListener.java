@@ -0,0 +1,12 @@
+package com.keithstellyes.machines.shared;
+
+/**
+ * Told every value a machine outputs, see Machine.setOutputListener.
+ */
+@FunctionalInterface
+public interface OutputListener {
+    /**
+     * Called by the thread running the machine, as the value is output.
+     */
+    void output(int value);
+}
@@ -0,0 +1,148 @@
+package com.keithstellyes.machines.shared;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts where a guest program spends its time: how many times each opcode was retired,
+ * how many times each address was executed, and how many times control left each address
+ * for somewhere other than the next one (a taken branch, jump or skip).
+ *
+ * Attach it with Machine.setProfiler, after the program is loaded since it is sized by the
+ * machine's address and opcode counts. It can be switched on and off while the machine
+ * runs, which takes effect at MachineUtil's next slice boundary.
+ */
+public class Profiler {
+    private final Machine machine;
+    private final long[] opcodeCounts;
+    private final long[] addressHits;
+    private final long[] takenBranches;
+    private volatile boolean enabled = true;
+
+    public Profiler(Machine machine) {
+        this.machine = machine;
+        opcodeCounts = new long[machine.getOpcodeCount()];
+        addressHits = new long[machine.getAddressCount()];
+        takenBranches = new long[machine.getAddressCount()];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records one retired instruction.
+     * @param pc address the instruction was at
+     * @param opcode as given by Machine.decodeOpcode
+     * @param nextPc the program counter after it was applied
+     */
+    public void retire(int pc, int opcode, int nextPc) {
+        opcodeCounts[opcode]++;
+        if(pc < addressHits.length) {
+            addressHits[pc]++;
+            if(nextPc != pc + 1) {
+                takenBranches[pc]++;
+            }
+        }
+    }
+
+    public long getOpcodeCount(int opcode) {
+        return opcodeCounts[opcode];
+    }
+
+    public long getAddressHits(int address) {
+        return addressHits[address];
+    }
+
+    public long getTakenBranches(int address) {
+        return takenBranches[address];
+    }
+
+    public long getRetiredCount() {
+        long total = 0;
+        for(long count : opcodeCounts) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    public void clear() {
+        Arrays.fill(opcodeCounts, 0);
+        Arrays.fill(addressHits, 0);
+        Arrays.fill(takenBranches, 0);
+    }
+
+    /**
+     * Prints every opcode that was retired, then the hottest addresses.
+     * @param hotSpotCount how many addresses to list
+     */
+    public void printReport(PrintStream out, int hotSpotCount) {
+        long total = getRetiredCount();
+        out.println(machine.getName() + ": " + total + " instructions retired");
+        out.println();
+        out.println(String.format("%-8s %14s %7s", "opcode", "retired", "%"));
+        for(int op = 0; op < opcodeCounts.length; op++) {
+            if(opcodeCounts[op] == 0) continue;
+            out.println(String.format("%-8s %14d %6.2f%%", machine.getOpcodeName(op),
+                    opcodeCounts[op], percent(opcodeCounts[op], total)));
+        }
+
+        out.println();
+        out.println(String.format("%-8s %14s %7s %14s", "address", "hits", "%", "taken"));
+        for(int address : hotSpots(hotSpotCount)) {
+            out.println(String.format("%-8d %14d %6.2f%% %14d", address, addressHits[address],
+                    percent(addressHits[address], total), takenBranches[address]));
+        }
+    }
+
+    /**
+     * Writes one line per executed address: address,hits,taken
+     */
+    public void writeAddressCsv(Appendable out) throws IOException {
+        out.append("address,hits,taken\n");
+        for(int address = 0; address < addressHits.length; address++) {
+            if(addressHits[address] == 0) continue;
+            out.append(Integer.toString(address)).append(',')
+                    .append(Long.toString(addressHits[address])).append(',')
+                    .append(Long.toString(takenBranches[address])).append('\n');
+        }
+    }
+
+    /**
+     * Writes one line per retired opcode: opcode,mnemonic,retired
+     */
+    public void writeOpcodeCsv(Appendable out) throws IOException {
+        out.append("opcode,mnemonic,retired\n");
+        for(int op = 0; op < opcodeCounts.length; op++) {
+            if(opcodeCounts[op] == 0) continue;
+            out.append(Integer.toString(op)).append(',')
+                    .append(machine.getOpcodeName(op)).append(',')
+                    .append(Long.toString(opcodeCounts[op])).append('\n');
+        }
+    }
+
+    /**
+     * The most executed addresses, hottest first.
+     */
+    public List<Integer> hotSpots(int count) {
+        List<Integer> addresses = new ArrayList<>();
+        for(int address = 0; address < addressHits.length; address++) {
+            if(addressHits[address] != 0) addresses.add(address);
+        }
+        addresses.sort((a, b) -> Long.compare(addressHits[b], addressHits[a]));
+
+        return addresses.subList(0, Math.min(count, addresses.size()));
+    }
+
+    private static double percent(long count, long total) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+}
@@ -0,0 +1,81 @@
+package com.keithstellyes.machines.shared;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SHA-256 of a loaded program, for Machine.getProgramDigest. Two machines of the same
+ * kind with the same digest will run the same way given the same input.
+ */
+public final class ProgramDigest {
+    private final MessageDigest digest;
+    private final ByteBuffer scratch = ByteBuffer.allocate(4);
+
+    public ProgramDigest(String machineName) {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+        update(machineName);
+    }
+
+    public ProgramDigest update(int value) {
+        scratch.clear();
+        scratch.putInt(value);
+        digest.update(scratch.array());
+
+        return this;
+    }
+
+    public ProgramDigest update(int[] values) {
+        update(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        digest.update(buffer.array());
+
+        return this;
+    }
+
+    public ProgramDigest update(byte[] values) {
+        update(values.length);
+        digest.update(values);
+
+        return this;
+    }
+
+    public ProgramDigest update(short[] values) {
+        update(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        buffer.asShortBuffer().put(values);
+        digest.update(buffer.array());
+
+        return this;
+    }
+
+    public ProgramDigest update(CharSequence s) {
+        update(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            digest.update((byte) (c >> 8));
+            digest.update((byte) c);
+        }
+
+        return this;
+    }
+
+    public byte[] finish() {
+        return digest.digest();
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for(byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+}
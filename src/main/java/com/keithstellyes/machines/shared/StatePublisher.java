@@ -0,0 +1,147 @@
+package com.keithstellyes.machines.shared;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lets other threads see a consistent view of a running machine's registers without
+ * pausing or locking the thread that runs it.
+ *
+ * Every interval instructions, the run loop publishes the registers, program counter,
+ * halt status, how many instructions it has run, and the machine's memory version. This is
+ * a seqlock: the sequence is odd while a publish is in progress, and a reader retries if
+ * the sequence was odd or changed while it read. Every store is an ordered lazySet, which
+ * is what keeps the sequence and the state from being reordered around each other.
+ *
+ * A memory version that hasn't changed between two snapshots means memory hasn't been
+ * written in between, so an observer can keep what it last read from memory.
+ */
+public class StatePublisher {
+    public static final int DEFAULT_INTERVAL = 1 << 10;
+
+    private static final int STEPS = 0;
+    private static final int MEMORY_VERSION = 1;
+    private static final int PROGRAM_COUNTER = 2;
+    private static final int HALTED = 3;
+    private static final int FIRST_REGISTER = 4;
+
+    private final int interval;
+    private final int registerCount;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray state;
+    private long writerSequence;
+    private long steps;
+
+    public StatePublisher(Machine machine) {
+        this(machine, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param interval publish at least every this many instructions
+     */
+    public StatePublisher(Machine machine, int interval) {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        this.interval = interval;
+        this.registerCount = machine.getRegisterCount();
+        this.state = new AtomicLongArray(FIRST_REGISTER + registerCount);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Called by the thread running the machine.
+     * @param ran how many instructions were run since the last publish
+     */
+    public void publish(Machine machine, int ran) {
+        steps += ran;
+        sequence.lazySet(++writerSequence);
+        state.lazySet(STEPS, steps);
+        state.lazySet(MEMORY_VERSION, machine.getMemoryVersion());
+        state.lazySet(PROGRAM_COUNTER, machine.getProgramCounter());
+        state.lazySet(HALTED, machine.isHalted() ? 1 : 0);
+        for(int i = 0; i < registerCount; i++) {
+            state.lazySet(FIRST_REGISTER + i, machine.readRegister(i));
+        }
+        sequence.lazySet(++writerSequence);
+    }
+
+    public Snapshot newSnapshot() {
+        return new Snapshot(registerCount);
+    }
+
+    /**
+     * Reads the latest published state into snapshot, spinning if it is being published.
+     */
+    public void read(Snapshot snapshot) {
+        while(!tryRead(snapshot)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return false if a publish was in progress, in which case snapshot may be torn
+     */
+    public boolean tryRead(Snapshot snapshot) {
+        long before = sequence.get();
+        if((before & 1) != 0) {
+            return false;
+        }
+
+        snapshot.steps = state.get(STEPS);
+        snapshot.memoryVersion = state.get(MEMORY_VERSION);
+        snapshot.programCounter = (int) state.get(PROGRAM_COUNTER);
+        snapshot.halted = state.get(HALTED) != 0;
+        for(int i = 0; i < registerCount; i++) {
+            snapshot.registers[i] = (int) state.get(FIRST_REGISTER + i);
+        }
+
+        return sequence.get() == before;
+    }
+
+    /**
+     * A copy of the machine's published state, reusable between reads.
+     */
+    public static class Snapshot {
+        private final int[] registers;
+        private long steps;
+        private long memoryVersion;
+        private int programCounter;
+        private boolean halted;
+
+        private Snapshot(int registerCount) {
+            registers = new int[registerCount];
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        public long getMemoryVersion() {
+            return memoryVersion;
+        }
+
+        public int getProgramCounter() {
+            return programCounter;
+        }
+
+        public boolean isHalted() {
+            return halted;
+        }
+
+        public int readRegister(int register) {
+            return registers[register];
+        }
+
+        @Override
+        public String toString() {
+            return "steps=" + steps + " pc=" + programCounter + " halted=" + halted
+                    + " registers=" + Arrays.toString(registers) + " memoryVersion="
+                    + memoryVersion;
+        }
+    }
+}
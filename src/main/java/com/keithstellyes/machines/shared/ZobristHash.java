@@ -0,0 +1,54 @@
+package com.keithstellyes.machines.shared;
+
+/**
+ * Zobrist-style hashing of a machine's registers and memory: every location holding
+ * every value has its own random-looking key, and the hash of a state is the xor of the
+ * keys of what each location holds. Changing one location then only takes xoring out its
+ * old key and xoring in the new one, which is how Machine keeps its state hash up to date.
+ *
+ * The keys are computed by mixing the location and value rather than kept in a table,
+ * since a table for every value of every cell would be far bigger than the machine.
+ * A location holding 0 has a key of 0, so mostly empty memory hashes quickly.
+ */
+public final class ZobristHash {
+    private ZobristHash() { }
+
+    /**
+     * The hash of the whole of the machine's state, as getStateHash would have it.
+     */
+    public static long of(Machine machine) {
+        long hash = 0;
+        for(int i = 0; i < machine.getRegisterCount(); i++) {
+            hash ^= key(Location.newRegisterLocation(i), machine.readRegister(i));
+        }
+        for(int i = 0; i < machine.getMemorySize(); i++) {
+            hash ^= key(Location.newMemoryLocation(i), machine.readMemoryValue(i));
+        }
+
+        return hash;
+    }
+
+    /**
+     * The key of what the location currently holds.
+     */
+    public static long key(Machine machine, int location) {
+        int address = Location.getAddress(location);
+        int value = Location.isRegister(location) ? machine.readRegister(address)
+                : machine.readMemoryValue(address);
+
+        return key(location, value);
+    }
+
+    public static long key(int location, int value) {
+        if(value == 0) {
+            return 0;
+        }
+
+        // splitmix64's finalizer
+        long z = ((long) location << 32 | (value & 0xFFFFFFFFL)) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+        return z ^ (z >>> 31);
+    }
+}
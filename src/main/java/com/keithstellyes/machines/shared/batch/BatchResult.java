@@ -0,0 +1,38 @@
+package com.keithstellyes.machines.shared.batch;
+
+/**
+ * What one job of a batch gave, see BatchRunner.
+ */
+public class BatchResult {
+    private final byte[] output;
+    private final boolean halted;
+    private final long stepCount;
+
+    BatchResult(byte[] output, boolean halted, long stepCount) {
+        this.output = output;
+        this.halted = halted;
+        this.stepCount = stepCount;
+    }
+
+    /**
+     * Everything the program wrote, including what it wrote before reading input.
+     */
+    public byte[] getOutput() {
+        return output.clone();
+    }
+
+    /**
+     * false if the job gave up before halting.
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * How many instructions the program ran from the start, including any it shared with
+     * other jobs.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+}
@@ -0,0 +1,175 @@
+package com.keithstellyes.machines.shared.batch;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one program over many inputs without running the part that doesn't depend on the
+ * input more than once.
+ *
+ * The first job runs a fork of the prototype up to just before its first read of input,
+ * and every job starts from a fork of that point, see Machine.fork. With a shared prefix
+ * length, jobs also leave forks behind after each read within that many bytes of input,
+ * in a trie keyed by the input read so far, and a later job whose input starts the same
+ * way starts from the deepest of those instead. A fork is only kept while input is left,
+ * since one that has read past the end of the input depends on where the end was.
+ *
+ * Forks are cheapest with paged memory. Each shared prefix holds on to a fork, so keep the
+ * shared prefix length short for machines on heap memory. This isn't thread-safe.
+ */
+public class BatchRunner {
+    private final Machine prototype;
+    private final int giveUpCounter;
+    private final long baseStep;
+    private int sharedPrefixLength;
+    private Node root;
+    private long stepsShared;
+
+    /**
+     * @param prototype the machine with the program loaded, which is only ever forked
+     * @param giveUpCounter the most instructions a job runs, counting the shared ones,
+     *                      or NEVER_GIVE_UP
+     */
+    public BatchRunner(Machine prototype, int giveUpCounter) {
+        this.prototype = prototype;
+        this.giveUpCounter = giveUpCounter;
+        this.baseStep = prototype.getStepCount();
+    }
+
+    /**
+     * How many bytes into the input forks are kept for other jobs to start from, 0 to only
+     * share the run up to the first read.
+     */
+    public void setSharedPrefixLength(int sharedPrefixLength) {
+        this.sharedPrefixLength = sharedPrefixLength;
+    }
+
+    public List<BatchResult> runAll(List<byte[]> inputs) {
+        List<BatchResult> results = new ArrayList<>(inputs.size());
+        for(byte[] input : inputs) {
+            results.add(run(input));
+        }
+
+        return results;
+    }
+
+    public BatchResult run(byte[] input) {
+        Node start = root();
+        Node node = start;
+        for(int i = 0; i < input.length && i < sharedPrefixLength; i++) {
+            node = node.children.get(input[i]);
+            if(node == null) {
+                break;
+            }
+            if(node.machine != null) {
+                start = node;
+            }
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(input, start.consumed,
+                input.length - start.consumed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(start.output, 0, start.output.length);
+        Machine machine = start.machine.fork(in, out);
+        stepsShared += machine.getStepCount() - baseStep;
+
+        node = start;
+        while(!machine.isHalted() && in.available() > 0
+                && input.length - in.available() < sharedPrefixLength) {
+            if(isOutOfSteps(machine)) {
+                return result(machine, out);
+            }
+            long inputCount = machine.getInputCount();
+            machine.step();
+            // a read that emptied the input may have run past its end
+            if(machine.getInputCount() != inputCount && in.available() > 0) {
+                node = remember(node, input, input.length - in.available(), machine, out);
+            }
+        }
+
+        if(!machine.isHalted() && !isOutOfSteps(machine)) {
+            int remaining = giveUpCounter <= MachineUtil.NEVER_GIVE_UP ? MachineUtil.NEVER_GIVE_UP
+                    : (int) (giveUpCounter - (machine.getStepCount() - baseStep));
+            MachineUtil.runMachineUntilHalt(machine, remaining);
+        }
+
+        return result(machine, out);
+    }
+
+    /**
+     * How many instructions jobs didn't have to run because they started from a fork.
+     */
+    public long getStepsShared() {
+        return stepsShared;
+    }
+
+    private Node root() {
+        if(root == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Machine machine = prototype.fork(new ByteArrayInputStream(new byte[0]), out);
+            while(!machine.isHalted() && !isOutOfSteps(machine) && !machine.nextStepReadsInput()) {
+                machine.step();
+            }
+            root = new Node(0);
+            root.machine = machine;
+            root.output = out.toByteArray();
+        }
+
+        return root;
+    }
+
+    /**
+     * Keeps a fork of machine, which has read input up to consumed, under node.
+     * @return the new node
+     */
+    private Node remember(Node node, byte[] input, int consumed, Machine machine,
+                          ByteArrayOutputStream out) {
+        for(int i = node.consumed; i < consumed; i++) {
+            Node parent = node;
+            node = parent.children.get(input[i]);
+            if(node == null) {
+                node = new Node(i + 1);
+                parent.children.put(input[i], node);
+            }
+        }
+        if(node.machine == null) {
+            node.machine = machine.fork(new ByteArrayInputStream(new byte[0]),
+                    new ByteArrayOutputStream());
+            node.output = out.toByteArray();
+        }
+
+        return node;
+    }
+
+    private boolean isOutOfSteps(Machine machine) {
+        return giveUpCounter > MachineUtil.NEVER_GIVE_UP
+                && machine.getStepCount() - baseStep >= giveUpCounter;
+    }
+
+    private BatchResult result(Machine machine, ByteArrayOutputStream out) {
+        return new BatchResult(out.toByteArray(), machine.isHalted(),
+                machine.getStepCount() - baseStep);
+    }
+
+    /**
+     * A point in the input, and if a job has reached it right after a read, a fork of the
+     * machine there that is never run itself, only forked again.
+     */
+    private static class Node {
+        private final int consumed;
+        private final Map<Byte, Node> children = new HashMap<>();
+        private Machine machine;
+        private byte[] output;
+
+        private Node(int consumed) {
+            this.consumed = consumed;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.keithstellyes.machines.shared.cache;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.ProgramDigest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the output of programs that never read input, since their output only depends
+ * on what was loaded, and serves repeat runs without running them.
+ *
+ * Runs are keyed by the machine's program digest and registers, so a machine should be run
+ * through here straight after loading. A hit puts back the registers, the memory the run
+ * wrote and its step count, writes the same output through the machine and halts it, the
+ * same as a real run would. Machines that are state hashing are always run for real, since
+ * putting memory back doesn't update the hash.
+ *
+ * Entries are kept in memory, least recently used first out once they take more than
+ * maxBytes, and optionally also in a directory that outlives the JVM.
+ */
+public class OutputCache {
+    private final static int ENTRY_OVERHEAD_BYTES = 64;
+    private final static int FILE_MAGIC = 0x4D4F5554; // "MOUT"
+    private final static int FILE_VERSION = 2;
+
+    private final long maxBytes;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public OutputCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.directory = null;
+    }
+
+    /**
+     * @param directory where entries are also written, and looked for on a miss in memory
+     */
+    public OutputCache(long maxBytes, Path directory) throws IOException {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Runs the machine like MachineUtil.runMachineUntilHalt, from the cache if possible.
+     */
+    public boolean run(Machine machine, int giveUpCounter) {
+        String key = key(machine);
+        if(key == null) {
+            return MachineUtil.runMachineUntilHalt(machine, giveUpCounter);
+        }
+
+        boolean neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        Entry entry = lookup(key);
+        // a run that took longer than we're allowed now would have given up
+        if(entry != null && (neverGiveUp || entry.steps <= giveUpCounter)) {
+            synchronized (this) {
+                hits++;
+            }
+            for(int i = 0; i < entry.registers.length; i++) {
+                machine.writeRegister(i, entry.registers[i]);
+            }
+            for(int i = 0; i < entry.addresses.length; i++) {
+                machine.writeMemory(entry.addresses[i], entry.values[i]);
+            }
+            machine.retired(entry.steps);
+            for(int value : entry.output) {
+                machine.output(value);
+            }
+            machine.halt();
+
+            return MachineUtil.DID_NOT_GIVE_UP;
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+        return record(machine, key, giveUpCounter);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Runs the machine for real, watching its actions for output and memory writes, and
+     * caches them if it halts without reading any input. Only which addresses were written
+     * is kept while it runs, their final values are read once it halts.
+     */
+    private boolean record(Machine machine, String key, int giveUpCounter) {
+        boolean neverGiveUp = giveUpCounter <= MachineUtil.NEVER_GIVE_UP;
+        int[] output = new int[16];
+        int outputCount = 0;
+        BitSet written = new BitSet();
+        int steps = 0;
+
+        try {
+            while(!machine.isHalted()) {
+                if(!neverGiveUp && giveUpCounter == 0) {
+                    return MachineUtil.DID_GIVE_UP;
+                }
+                if(machine.nextStepReadsInput()) {
+                    // depends on input, so finish the run without caching it
+                    return MachineUtil.runMachineUntilHalt(machine,
+                            neverGiveUp ? MachineUtil.NEVER_GIVE_UP : giveUpCounter);
+                }
+
+                Machine.Delta.Builder actions = machine.stepActions();
+                steps++;
+                if(!neverGiveUp) {
+                    giveUpCounter--;
+                }
+
+                for(int i = 0; i < actions.size(); i++) {
+                    int kind = actions.getKind(i);
+                    if(kind == Machine.Delta.OUTPUT) {
+                        if(outputCount == output.length) {
+                            output = Arrays.copyOf(output, outputCount * 2);
+                        }
+                        output[outputCount++] = actions.getNewValue(i);
+                    } else if(kind == Machine.Delta.WRITE_MEMORY) {
+                        written.set(actions.getAddress(i));
+                    }
+                }
+            }
+        } finally {
+            MachineUtil.endSlice(machine, steps);
+        }
+
+        int[] registers = new int[machine.getRegisterCount()];
+        for(int i = 0; i < registers.length; i++) {
+            registers[i] = machine.readRegister(i);
+        }
+        int[] addresses = new int[written.cardinality()];
+        int[] values = new int[addresses.length];
+        int address = written.nextSetBit(0);
+        for(int i = 0; i < addresses.length; i++) {
+            addresses[i] = address;
+            values[i] = machine.readMemoryValue(address);
+            address = written.nextSetBit(address + 1);
+        }
+        store(key, new Entry(Arrays.copyOf(output, outputCount), steps, registers, addresses, values));
+
+        return MachineUtil.DID_NOT_GIVE_UP;
+    }
+
+    private String key(Machine machine) {
+        byte[] programDigest = machine.getProgramDigest();
+        if(programDigest == null || machine.isHalted() || machine.isStateHashing()) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder(ProgramDigest.toHex(programDigest));
+        for(int i = 0; i < machine.getRegisterCount(); i++) {
+            key.append(':').append(machine.readRegister(i));
+        }
+
+        return key.toString();
+    }
+
+    private Entry lookup(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if(entry != null || directory == null) {
+                return entry;
+            }
+        }
+
+        Entry entry = readFile(key);
+        if(entry != null) {
+            putInMemory(key, entry);
+        }
+
+        return entry;
+    }
+
+    private void store(String key, Entry entry) {
+        putInMemory(key, entry);
+        if(directory != null) {
+            writeFile(key, entry);
+        }
+    }
+
+    private synchronized void putInMemory(String key, Entry entry) {
+        if(entry.bytes() > maxBytes) {
+            return;
+        }
+
+        Entry old = entries.put(key, entry);
+        if(old != null) {
+            bytes -= old.bytes();
+        }
+        bytes += entry.bytes();
+
+        java.util.Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while(bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(ProgramDigest.toHex(new ProgramDigest("output cache").update(key).finish()) + ".out");
+    }
+
+    private Entry readFile(String key) {
+        Path path = file(key);
+        if(!Files.exists(path)) {
+            return null;
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            long steps = in.readLong();
+            int[] output = readInts(in, in.readInt());
+            int[] registers = readInts(in, in.readInt());
+            int writes = in.readInt();
+            int[] addresses = readInts(in, writes);
+            int[] values = readInts(in, writes);
+
+            return new Entry(output, steps, registers, addresses, values);
+        } catch (IOException e) {
+            // a damaged entry is just a miss
+            return null;
+        }
+    }
+
+    private void writeFile(String key, Entry entry) {
+        Path path = file(key);
+        try {
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeLong(entry.steps);
+                out.writeInt(entry.output.length);
+                writeInts(out, entry.output);
+                out.writeInt(entry.registers.length);
+                writeInts(out, entry.registers);
+                out.writeInt(entry.addresses.length);
+                writeInts(out, entry.addresses);
+                writeInts(out, entry.values);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for(int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for(int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static class Entry {
+        private final int[] output;
+        private final long steps;
+        /**
+         * The registers the run ended with, and the last value it wrote to each address.
+         */
+        private final int[] registers;
+        private final int[] addresses;
+        private final int[] values;
+
+        private Entry(int[] output, long steps, int[] registers, int[] addresses, int[] values) {
+            this.output = output;
+            this.steps = steps;
+            this.registers = registers;
+            this.addresses = addresses;
+            this.values = values;
+        }
+
+        private long bytes() {
+            return ENTRY_OVERHEAD_BYTES
+                    + 4L * (output.length + registers.length + addresses.length + values.length);
+        }
+    }
+}
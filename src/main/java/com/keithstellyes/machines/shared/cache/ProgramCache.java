@@ -0,0 +1,152 @@
+package com.keithstellyes.machines.shared.cache;
+
+import com.keithstellyes.machines.shared.ProgramDigest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A directory of loaded programs, so that loading the same source again, even from another
+ * JVM, maps the result of the last load instead of redoing it. What a machine keeps is up
+ * to it, for example the Brainfuck instructions with their jump targets filled in, or the
+ * whole of Malbolge memory after the crazy fill.
+ *
+ * Files are named for the SHA-256 of the machine name and source, and look like:
+ *
+ *   int magic, int version, int image version, int length, int crc, byte[32] digest,
+ *   int[length] image
+ *
+ * A file is only used if all of that checks out, otherwise it is a miss and gets written
+ * again. A machine should bump its image version whenever it changes what it stores.
+ */
+public class ProgramCache {
+    private final static int MAGIC = 0x4D505247; // "MPRG"
+    private final static int VERSION = 1;
+    private final static int DIGEST_BYTES = 32;
+    private final static int HEADER_BYTES = 20 + DIGEST_BYTES;
+    private final static String SUFFIX = ".prog";
+
+    private final Path directory;
+    private long hits;
+    private long misses;
+
+    public ProgramCache(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return the image stored for this source, mapped read-only, or null if there isn't a
+     *         valid one
+     */
+    public IntBuffer get(String machineName, int imageVersion, CharSequence source) {
+        byte[] digest = digest(machineName, source);
+        Path path = file(digest);
+        if(!Files.exists(path)) {
+            return miss();
+        }
+
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_BYTES) {
+                return miss();
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return miss();
+        }
+
+        int length = buffer.getInt(12);
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != imageVersion || length < 0
+                || buffer.capacity() != HEADER_BYTES + 4L * length) {
+            return miss();
+        }
+
+        ByteBuffer storedDigest = buffer.duplicate();
+        storedDigest.position(20).limit(HEADER_BYTES);
+        if(!storedDigest.equals(ByteBuffer.wrap(digest))) {
+            return miss();
+        }
+
+        ByteBuffer image = buffer.duplicate();
+        image.position(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(image.duplicate());
+        if((int) crc.getValue() != buffer.getInt(16)) {
+            return miss();
+        }
+
+        synchronized (this) {
+            hits++;
+        }
+        return image.slice().asIntBuffer().asReadOnlyBuffer();
+    }
+
+    public void put(String machineName, int imageVersion, CharSequence source, int[] image) {
+        put(machineName, imageVersion, source, image, image.length);
+    }
+
+    public void put(String machineName, int imageVersion, CharSequence source, int[] image,
+                    int length) {
+        byte[] digest = digest(machineName, source);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * length);
+        buffer.position(HEADER_BYTES);
+        buffer.asIntBuffer().put(image, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(imageVersion).putInt(length)
+                .putInt((int) crc.getValue()).put(digest);
+        buffer.clear();
+
+        Path path = file(digest);
+        try {
+            Path temp = Files.createTempFile(directory, "program", ".tmp");
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized IntBuffer miss() {
+        misses++;
+        return null;
+    }
+
+    private Path file(byte[] digest) {
+        return directory.resolve(ProgramDigest.toHex(digest) + SUFFIX);
+    }
+
+    private static byte[] digest(String machineName, CharSequence source) {
+        return new ProgramDigest(machineName).update(source).finish();
+    }
+}
@@ -0,0 +1,190 @@
+package com.keithstellyes.machines.shared.diff;
+
+import com.keithstellyes.machines.shared.Machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Runs the same program on two machines, one with a reference engine and one with a
+ * candidate, and finds the first instruction where they disagree.
+ *
+ * The machines are run side by side and compared every checkInterval steps by StateHash,
+ * their output, and whatever they threw. Once a check fails, the tester goes back and
+ * bisects between it and the last check that passed, starting fresh machines for each
+ * probe, so newMachine must give the same machine with the same input every time.
+ */
+public class DifferentialTester<M extends Machine> {
+    public static final int DEFAULT_CHECK_INTERVAL = 1 << 10;
+
+    /**
+     * How many differing memory cells a divergence lists at most.
+     */
+    private static final int MAX_MEMORY_DIFFERENCES = 16;
+
+    private final Function<OutputStream, M> newMachine;
+    private final Engine reference;
+    private final Engine candidate;
+    private final int checkInterval;
+
+    /**
+     * @param newMachine makes a machine with the program and input under test, writing to
+     *                   the given output
+     */
+    public DifferentialTester(Function<OutputStream, M> newMachine, Engine reference,
+                              Engine candidate) {
+        this(newMachine, reference, candidate, DEFAULT_CHECK_INTERVAL);
+    }
+
+    public DifferentialTester(Function<OutputStream, M> newMachine, Engine reference,
+                              Engine candidate, int checkInterval) {
+        if(checkInterval <= 0) {
+            throw new IllegalArgumentException("Check interval must be positive");
+        }
+        this.newMachine = newMachine;
+        this.reference = reference;
+        this.candidate = candidate;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return where the engines first disagree within maxSteps steps, or null if they agree
+     *         until both halt, both throw the same way, or maxSteps runs out
+     */
+    public Divergence run(long maxSteps) {
+        Run expected = new Run(reference);
+        Run actual = new Run(candidate);
+        long agreed = 0;
+        while(agreed < maxSteps) {
+            int length = (int) Math.min(checkInterval, maxSteps - agreed);
+            expected.advance(length);
+            actual.advance(length);
+            if(!expected.sameAs(actual)) {
+                return bisect(agreed, length);
+            }
+            if(expected.isFinished()) {
+                return null;
+            }
+            agreed += length;
+        }
+
+        return null;
+    }
+
+    /**
+     * The engines agree after agreed steps and disagree after agreed + length.
+     */
+    private Divergence bisect(long agreed, int length) {
+        int low = 0;
+        int high = length;
+        while(high - low > 1) {
+            int mid = (low + high) >>> 1;
+            Run expected = new Run(reference);
+            Run actual = new Run(candidate);
+            expected.advance(agreed + mid);
+            actual.advance(agreed + mid);
+            if(expected.sameAs(actual)) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+
+        long step = agreed + low;
+        Run expected = new Run(reference);
+        Run actual = new Run(candidate);
+        expected.advance(step);
+        actual.advance(step);
+        int pc = expected.machine.getProgramCounter();
+        int instruction = expected.machine.getCurrentInstruction();
+        String opcodeName = expected.machine.getOpcodeName(expected.machine.decodeOpcode(instruction));
+        expected.advance(1);
+        actual.advance(1);
+
+        return new Divergence(step, pc, instruction, opcodeName, expected.differencesFrom(actual));
+    }
+
+    private class Run {
+        private final Engine engine;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final M machine;
+        private RuntimeException failure;
+
+        private Run(Engine engine) {
+            this.engine = engine;
+            this.machine = newMachine.apply(out);
+        }
+
+        private void advance(long steps) {
+            while(steps > 0 && !isFinished()) {
+                int length = (int) Math.min(steps, checkInterval);
+                try {
+                    engine.run(machine, length);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                steps -= length;
+            }
+        }
+
+        private boolean isFinished() {
+            return failure != null || machine.isHalted();
+        }
+
+        private String failureName() {
+            return failure == null ? null : failure.getClass().getName();
+        }
+
+        private boolean sameAs(Run other) {
+            return Objects.equals(failureName(), other.failureName())
+                    && StateHash.of(machine) == StateHash.of(other.machine)
+                    && Arrays.equals(out.toByteArray(), other.out.toByteArray());
+        }
+
+        private List<String> differencesFrom(Run other) {
+            List<String> differences = new ArrayList<>();
+            if(!Objects.equals(failureName(), other.failureName())) {
+                differences.add("threw: " + failure + " != " + other.failure);
+            }
+            if(machine.isHalted() != other.machine.isHalted()) {
+                differences.add("halted: " + machine.isHalted() + " != " + other.machine.isHalted());
+            }
+            for(int i = 0; i < machine.getRegisterCount(); i++) {
+                int a = machine.readRegister(i);
+                int b = other.machine.readRegister(i);
+                if(a != b) {
+                    differences.add("register " + i + ": " + a + " != " + b);
+                }
+            }
+            int memoryDifferences = 0;
+            for(int i = 0; i < machine.getMemorySize(); i++) {
+                int a = machine.readMemoryValue(i);
+                int b = other.machine.readMemoryValue(i);
+                if(a != b && memoryDifferences++ < MAX_MEMORY_DIFFERENCES) {
+                    differences.add("memory " + i + ": " + a + " != " + b);
+                }
+            }
+            if(memoryDifferences > MAX_MEMORY_DIFFERENCES) {
+                differences.add("and " + (memoryDifferences - MAX_MEMORY_DIFFERENCES)
+                        + " more memory cells");
+            }
+            byte[] output = out.toByteArray();
+            byte[] otherOutput = other.out.toByteArray();
+            if(!Arrays.equals(output, otherOutput)) {
+                int at = 0;
+                while(at < output.length && at < otherOutput.length && output[at] == otherOutput[at]) {
+                    at++;
+                }
+                differences.add("output: " + output.length + " bytes != " + otherOutput.length
+                        + " bytes, first differing at " + at);
+            }
+
+            return differences;
+        }
+    }
+}
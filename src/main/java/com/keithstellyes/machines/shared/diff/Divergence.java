@@ -0,0 +1,63 @@
+package com.keithstellyes.machines.shared.diff;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The first instruction two engines disagree on, and how the machines differ after it.
+ */
+public class Divergence {
+    private final long step;
+    private final int programCounter;
+    private final int instruction;
+    private final String opcodeName;
+    private final List<String> differences;
+
+    Divergence(long step, int programCounter, int instruction, String opcodeName,
+               List<String> differences) {
+        this.step = step;
+        this.programCounter = programCounter;
+        this.instruction = instruction;
+        this.opcodeName = opcodeName;
+        this.differences = differences;
+    }
+
+    /**
+     * How many instructions both engines ran and agreed on before this one.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    public int getProgramCounter() {
+        return programCounter;
+    }
+
+    public int getInstruction() {
+        return instruction;
+    }
+
+    public String getOpcodeName() {
+        return opcodeName;
+    }
+
+    /**
+     * Each difference after the instruction, reference first, like "register 1: 5 != 6".
+     */
+    public List<String> getDifferences() {
+        return Collections.unmodifiableList(differences);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Diverged at step ").append(step)
+                .append(", pc=").append(programCounter)
+                .append(", instruction=").append(instruction)
+                .append(" (").append(opcodeName).append(')');
+        for(String difference : differences) {
+            sb.append("\n  ").append(difference);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package com.keithstellyes.machines.shared.diff;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+/**
+ * A way of running a machine, for DifferentialTester to compare against another.
+ */
+@FunctionalInterface
+public interface Engine {
+    /**
+     * The reference semantics: parse each instruction into a delta and apply it.
+     */
+    Engine REFERENCE = (machine, steps) -> {
+        for(int i = 0; i < steps && !machine.isHalted(); i++) {
+            machine.parseInstruction(machine.getCurrentInstruction()).apply(machine);
+        }
+    };
+
+    /**
+     * Machine.step, which builds its deltas in place.
+     */
+    Engine STEP = (machine, steps) -> {
+        for(int i = 0; i < steps && !machine.isHalted(); i++) {
+            machine.step();
+        }
+    };
+
+    /**
+     * MachineUtil's run loop, whichever slice loop it picks.
+     */
+    Engine RUN_LOOP = (machine, steps) -> {
+        if(steps > 0) {
+            MachineUtil.runMachineUntilHalt(machine, steps);
+        }
+    };
+
+    /**
+     * Runs exactly steps instructions, or fewer if the machine halts first.
+     */
+    void run(Machine machine, int steps);
+}
@@ -0,0 +1,37 @@
+package com.keithstellyes.machines.shared.diff;
+
+import com.keithstellyes.machines.shared.Machine;
+
+/**
+ * A 64-bit FNV-1a hash of everything that makes up a machine's state: whether it halted,
+ * its registers and its memory. Two machines with different hashes are in different states,
+ * and with the same hash almost certainly aren't.
+ */
+public final class StateHash {
+    private static final long OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long PRIME = 0x100000001B3L;
+
+    private StateHash() { }
+
+    public static long of(Machine machine) {
+        long hash = OFFSET_BASIS;
+        hash = mix(hash, machine.isHalted() ? 1 : 0);
+        for(int i = 0; i < machine.getRegisterCount(); i++) {
+            hash = mix(hash, machine.readRegister(i));
+        }
+        for(int i = 0; i < machine.getMemorySize(); i++) {
+            hash = mix(hash, machine.readMemoryValue(i));
+        }
+
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        for(int shift = 0; shift < 32; shift += 8) {
+            hash ^= (value >>> shift) & 0xFF;
+            hash *= PRIME;
+        }
+
+        return hash;
+    }
+}
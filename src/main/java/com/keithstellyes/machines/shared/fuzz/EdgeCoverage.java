@@ -0,0 +1,106 @@
+package com.keithstellyes.machines.shared.fuzz;
+
+import java.util.Arrays;
+
+/**
+ * AFL-style edge coverage for one run of a machine, see Machine.setCoverage.
+ *
+ * Every step hashes the edge from the previous program counter to the current one into a
+ * fixed-size map of hit counts. Collisions just merge edges, which is fine for telling
+ * whether a run did something new. The previous location is shifted right by one so that
+ * A to B and B to A, and tight loops from A to A, don't all land on the same cell.
+ *
+ * Counts are compared in buckets (1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128+), so a loop that
+ * runs a few more times isn't new, but one that runs an order of magnitude more is.
+ */
+public class EdgeCoverage {
+    public static final int DEFAULT_SIZE = 1 << 16;
+
+    private final byte[] counts;
+    private final int mask;
+    private int previous;
+
+    public EdgeCoverage() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size a power of two
+     */
+    public EdgeCoverage(int size) {
+        if(size <= 0 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Size must be a power of two");
+        }
+        counts = new byte[size];
+        mask = size - 1;
+    }
+
+    public void visit(int pc) {
+        // program counters are small and consecutive, spread them over the map
+        int hash = pc * 0x9E3779B1;
+        int current = (hash ^ hash >>> 16) & mask;
+        int index = current ^ previous;
+        // saturate rather than wrap back to looking like a cold edge
+        if(counts[index] != -1) {
+            counts[index]++;
+        }
+        previous = current >>> 1;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, (byte) 0);
+        previous = 0;
+    }
+
+    public int size() {
+        return counts.length;
+    }
+
+    /**
+     * @return how many cells of the map have been hit
+     */
+    public int countEdges() {
+        int edges = 0;
+        for(byte count : counts) {
+            if(count != 0) {
+                edges++;
+            }
+        }
+
+        return edges;
+    }
+
+    /**
+     * Adds this run's bucketed counts to seen, a map of the same size with one bit per bucket
+     * ever hit in each cell.
+     * @return whether anything was added, that is whether this run did something new
+     */
+    public boolean addTo(byte[] seen) {
+        if(seen.length != counts.length) {
+            throw new IllegalArgumentException("Map sizes differ");
+        }
+
+        boolean added = false;
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] == 0) {
+                continue;
+            }
+            int bucket = bucket(counts[i] & 0xFF);
+            if((seen[i] & bucket) == 0) {
+                seen[i] |= bucket;
+                added = true;
+            }
+        }
+
+        return added;
+    }
+
+    static int bucket(int count) {
+        if(count <= 3) return 1 << (count - 1);
+        if(count <= 7) return 1 << 3;
+        if(count <= 15) return 1 << 4;
+        if(count <= 31) return 1 << 5;
+        if(count <= 127) return 1 << 6;
+        return 1 << 7;
+    }
+}
@@ -0,0 +1,46 @@
+package com.keithstellyes.machines.shared.fuzz;
+
+/**
+ * An input the fuzzer found a problem with.
+ */
+public class Finding {
+    public enum Kind {
+        /**
+         * Still running when the instruction budget ran out.
+         */
+        HANG,
+        /**
+         * The machine threw.
+         */
+        CRASH,
+        /**
+         * Halted, but the fuzzer's oracle rejected the result.
+         */
+        BAD_OUTPUT
+    }
+
+    private final Kind kind;
+    private final byte[] input;
+    private final RuntimeException cause;
+
+    Finding(Kind kind, byte[] input, RuntimeException cause) {
+        this.kind = kind;
+        this.input = input;
+        this.cause = cause;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public byte[] getInput() {
+        return input.clone();
+    }
+
+    /**
+     * @return what the machine threw, or null if it isn't a crash
+     */
+    public RuntimeException getCause() {
+        return cause;
+    }
+}
@@ -0,0 +1,23 @@
+package com.keithstellyes.machines.shared.fuzz;
+
+import com.keithstellyes.machines.shared.replay.InputLog;
+
+import java.io.InputStream;
+
+/**
+ * Feeds a machine the current test case instead of its input stream.
+ */
+final class FuzzInput implements InputLog {
+    private byte[] data = new byte[0];
+    private int position;
+
+    void reset(byte[] data) {
+        this.data = data;
+        this.position = 0;
+    }
+
+    @Override
+    public int read(long step, InputStream in) {
+        return position < data.length ? data[position++] & 0xFF : -1;
+    }
+}
@@ -0,0 +1,286 @@
+package com.keithstellyes.machines.shared.fuzz;
+
+import com.keithstellyes.machines.shared.CycleDetector;
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Fuzzes a guest program's input, looking for inputs that make it hang, crash the machine,
+ * or produce a result the oracle rejects.
+ *
+ * Each worker thread has its own machine and coverage map, and between runs resets the
+ * machine and loads the program again. Inputs come from a shared corpus, which starts as the
+ * seeds, and are mutated AFL-style. A run that covers something no run has covered before
+ * has its input added to the corpus. A run that still hasn't halted after giveUpCounter
+ * instructions is a hang, as is one caught in a cycle, which is usually found long before.
+ *
+ * Findings are kept when they cover something new for their kind, so there are a handful
+ * of distinct hangs rather than thousands of the same one.
+ */
+public class Fuzzer<M extends Machine> {
+    public static final int DEFAULT_MAX_INPUT_LENGTH = 1 << 10;
+
+    private static final byte[] INTERESTING = {0, 1, -1, 0x7F, -0x80, '\n', '0', '9', 'A', 'a'};
+
+    private final Supplier<M> newMachine;
+    private final Consumer<M> loadProgram;
+    private final int giveUpCounter;
+    private final int mapSize;
+    private BiPredicate<byte[], M> oracle;
+    private int maxInputLength = DEFAULT_MAX_INPUT_LENGTH;
+    private long seed = System.nanoTime();
+
+    private final List<byte[]> corpus = new ArrayList<>();
+    private final List<Finding> findings = new ArrayList<>();
+    private final byte[] seen;
+    private final Map<Finding.Kind, byte[]> seenByKind = new EnumMap<>(Finding.Kind.class);
+    private final AtomicLong executions = new AtomicLong();
+
+    /**
+     * @param newMachine makes a machine for each worker thread
+     * @param loadProgram loads the program under test into a freshly reset machine
+     * @param giveUpCounter how many instructions a run gets before it counts as a hang
+     */
+    public Fuzzer(Supplier<M> newMachine, Consumer<M> loadProgram, int giveUpCounter) {
+        this(newMachine, loadProgram, giveUpCounter, EdgeCoverage.DEFAULT_SIZE);
+    }
+
+    public Fuzzer(Supplier<M> newMachine, Consumer<M> loadProgram, int giveUpCounter,
+                  int mapSize) {
+        if(giveUpCounter <= MachineUtil.NEVER_GIVE_UP) {
+            throw new IllegalArgumentException("A fuzzer has to give up to find hangs");
+        }
+        this.newMachine = newMachine;
+        this.loadProgram = loadProgram;
+        this.giveUpCounter = giveUpCounter;
+        this.mapSize = mapSize;
+        this.seen = new byte[mapSize];
+        for(Finding.Kind kind : Finding.Kind.values()) {
+            seenByKind.put(kind, new byte[mapSize]);
+        }
+    }
+
+    /**
+     * Sets what decides whether a halted run's result is right, given the input and the
+     * machine after the run. Without one, only hangs and crashes are found.
+     */
+    public void setOracle(BiPredicate<byte[], M> oracle) {
+        this.oracle = oracle;
+    }
+
+    public void setMaxInputLength(int maxInputLength) {
+        this.maxInputLength = maxInputLength;
+    }
+
+    /**
+     * Seeds the random mutations, each worker's is derived from this.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public synchronized void addSeed(byte[] input) {
+        corpus.add(input.clone());
+    }
+
+    /**
+     * Fuzzes until about this many runs have been done in total.
+     */
+    public void run(int threads, long runs) {
+        synchronized (this) {
+            if(corpus.isEmpty()) {
+                corpus.add(new byte[0]);
+            }
+        }
+
+        long target = executions.get() + runs;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fuzzer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                long workerSeed = seed + i * 0x9E3779B97F4A7C15L;
+                workers.add(executor.submit(() -> work(new Random(workerSeed), target)));
+            }
+            for(Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Fuzzing failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public synchronized List<byte[]> getCorpus() {
+        List<byte[]> copy = new ArrayList<>(corpus.size());
+        for(byte[] input : corpus) {
+            copy.add(input.clone());
+        }
+
+        return copy;
+    }
+
+    public synchronized List<Finding> getFindings() {
+        return new ArrayList<>(findings);
+    }
+
+    /**
+     * @return how many cells of the coverage map any run has hit
+     */
+    public synchronized int getEdgeCount() {
+        int edges = 0;
+        for(byte bits : seen) {
+            if(bits != 0) {
+                edges++;
+            }
+        }
+
+        return edges;
+    }
+
+    private void work(Random random, long target) {
+        M machine = newMachine.get();
+        EdgeCoverage coverage = new EdgeCoverage(mapSize);
+        FuzzInput input = new FuzzInput();
+        machine.setCoverage(coverage);
+        machine.setInputLog(input);
+        machine.setCycleDetector(new CycleDetector());
+        // only this worker's discoveries, always a subset of the shared map, so a run that
+        // is nothing new here needn't take the lock
+        byte[] localSeen = new byte[mapSize];
+
+        while(executions.getAndIncrement() < target) {
+            byte[] data = mutate(pick(random), random);
+
+            machine.reset();
+            loadProgram.accept(machine);
+            coverage.clear();
+            input.reset(data);
+
+            Finding.Kind kind = null;
+            RuntimeException cause = null;
+            try {
+                if(!MachineUtil.runMachineUntilHalt(machine, giveUpCounter)) {
+                    kind = Finding.Kind.HANG;
+                } else if(oracle != null && !oracle.test(data, machine)) {
+                    kind = Finding.Kind.BAD_OUTPUT;
+                }
+            } catch (RuntimeException e) {
+                kind = Finding.Kind.CRASH;
+                cause = e;
+            }
+
+            if(kind != null || coverage.addTo(localSeen)) {
+                record(coverage, data, kind, cause);
+            }
+        }
+    }
+
+    private synchronized void record(EdgeCoverage coverage, byte[] data, Finding.Kind kind,
+                                     RuntimeException cause) {
+        if(kind == null) {
+            if(coverage.addTo(seen)) {
+                corpus.add(data);
+            }
+        } else if(coverage.addTo(seenByKind.get(kind))) {
+            findings.add(new Finding(kind, data, cause));
+        }
+    }
+
+    private synchronized byte[] pick(Random random) {
+        return corpus.get(random.nextInt(corpus.size()));
+    }
+
+    /**
+     * Stacks a few random mutations, like AFL's havoc stage.
+     */
+    private byte[] mutate(byte[] parent, Random random) {
+        byte[] data = parent.clone();
+        int mutations = 1 << random.nextInt(4);
+        for(int m = 0; m < mutations; m++) {
+            if(data.length == 0) {
+                data = new byte[] {(byte) random.nextInt(256)};
+                continue;
+            }
+
+            int at = random.nextInt(data.length);
+            switch (random.nextInt(8)) {
+                case 0:
+                    data[at] ^= 1 << random.nextInt(8);
+                    break;
+                case 1:
+                    data[at] = INTERESTING[random.nextInt(INTERESTING.length)];
+                    break;
+                case 2:
+                    data[at] = (byte) random.nextInt(256);
+                    break;
+                case 3:
+                    data[at] += random.nextInt(35) - 17;
+                    break;
+                case 4:
+                    if(data.length > 1) {
+                        int length = 1 + random.nextInt(Math.min(data.length - at, 16));
+                        byte[] shorter = new byte[data.length - length];
+                        System.arraycopy(data, 0, shorter, 0, at);
+                        System.arraycopy(data, at + length, shorter, at, shorter.length - at);
+                        data = shorter;
+                    }
+                    break;
+                case 5:
+                    data = insert(data, at, new byte[] {(byte) random.nextInt(256)});
+                    break;
+                case 6: {
+                    int length = 1 + random.nextInt(Math.min(data.length - at, 16));
+                    data = insert(data, random.nextInt(data.length + 1),
+                            Arrays.copyOfRange(data, at, at + length));
+                    break;
+                }
+                default: {
+                    byte[] other = pick(random);
+                    if(other.length > 0) {
+                        int from = random.nextInt(other.length);
+                        data = insert(Arrays.copyOf(data, at), at,
+                                Arrays.copyOfRange(other, from, other.length));
+                    }
+                    break;
+                }
+            }
+        }
+
+        return data.length > maxInputLength ? Arrays.copyOf(data, maxInputLength) : data;
+    }
+
+    private static byte[] insert(byte[] data, int at, byte[] inserted) {
+        byte[] longer = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, longer, 0, at);
+        System.arraycopy(inserted, 0, longer, at, inserted.length);
+        System.arraycopy(data, at, longer, at + inserted.length, data.length - at);
+
+        return longer;
+    }
+}
@@ -0,0 +1,398 @@
+package com.keithstellyes.machines.shared.loop;
+
+import com.keithstellyes.machines.shared.Location;
+import com.keithstellyes.machines.shared.Machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A loop whose every trip adds the same amount to each location it carries over to the
+ * next trip, so that any number of trips can be worked out in one go instead of run, like
+ * a counter counted down to zero along with a running total. See LoopCache for keeping
+ * them.
+ *
+ * A machine builds one by walking the instructions of a single trip through a Builder,
+ * reading and writing Values, each of which is a sum of what some locations held at the
+ * start of the trip plus a constant. Everything that makes a trip go the way it went, such
+ * as which way a branch goes or an add not overflowing, is added as a condition, and trips
+ * says how many trips in a row they all hold for. The machine then skips over those with
+ * run and steps through whatever comes after itself.
+ *
+ * Nothing is kept here of what memory holds, only which locations to look at, so a loop
+ * can be kept for as long as the instructions it was built from aren't written. Running
+ * one doesn't allocate, and it isn't thread-safe.
+ */
+public final class LinearLoop {
+    private static final int RANGE = 0;
+    private static final int NON_ZERO = 1;
+    private static final int ZERO = 2;
+
+    private final int length;
+    private final int[] carried;
+    private final Value[] increments;
+    private final int[] conditionKinds;
+    private final Value[] conditionValues;
+    private final int[] conditionMins;
+    private final int[] conditionMaxes;
+    private final int[] writeLocations;
+    private final Value[] writeValues;
+    private final long[] steps;
+    private final long[] lastValues;
+
+    private LinearLoop(int length, int[] carried, Value[] increments, int[] conditionKinds,
+                       Value[] conditionValues, int[] conditionMins, int[] conditionMaxes,
+                       int[] writeLocations, Value[] writeValues) {
+        this.length = length;
+        this.carried = carried;
+        this.increments = increments;
+        this.conditionKinds = conditionKinds;
+        this.conditionValues = conditionValues;
+        this.conditionMins = conditionMins;
+        this.conditionMaxes = conditionMaxes;
+        this.writeLocations = writeLocations;
+        this.writeValues = writeValues;
+        this.steps = new long[carried.length];
+        this.lastValues = new long[writeLocations.length];
+    }
+
+    /**
+     * How many instructions one trip runs.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * How many trips in a row, starting from the machine's current state, go the same way
+     * as the one the loop was built from.
+     * @param maxTrips the most to count
+     */
+    public int trips(Machine machine, int maxTrips) {
+        for(int i = 0; i < carried.length; i++) {
+            steps[i] = increments[i].evaluate(machine);
+        }
+
+        long trips = maxTrips;
+        for(int i = 0; i < conditionKinds.length && trips > 0; i++) {
+            Value value = conditionValues[i];
+            long first = value.evaluate(machine);
+            long step = value.slope(carried, steps);
+            switch (conditionKinds[i]) {
+                case RANGE:
+                    long min = conditionMins[i];
+                    long max = conditionMaxes[i];
+                    if(first < min || first > max) {
+                        return 0;
+                    }
+                    if(step > 0) {
+                        trips = Math.min(trips, (max - first) / step + 1);
+                    } else if(step < 0) {
+                        trips = Math.min(trips, (first - min) / -step + 1);
+                    }
+                    break;
+                case NON_ZERO:
+                    if(first == 0) {
+                        return 0;
+                    }
+                    if(step != 0 && -first % step == 0 && -first / step > 0) {
+                        trips = Math.min(trips, -first / step);
+                    }
+                    break;
+                case ZERO:
+                    if(first != 0) {
+                        return 0;
+                    }
+                    if(step != 0) {
+                        trips = Math.min(trips, 1);
+                    }
+                    break;
+            }
+        }
+
+        return (int) trips;
+    }
+
+    /**
+     * Runs as many trips as go the same way as the one the loop was built from, as long as
+     * they fit in maxSteps, by working out where they leave the machine. The machine
+     * counts the instructions itself.
+     * @return how many instructions that was, 0 if not even one trip could be run
+     */
+    public int run(Machine machine, int maxSteps) {
+        int trips = trips(machine, maxSteps / length);
+        if(trips == 0) {
+            return 0;
+        }
+
+        // everything is read before anything is written, the values are of the last trip
+        for(int i = 0; i < writeLocations.length; i++) {
+            Value value = writeValues[i];
+            lastValues[i] = value.evaluate(machine) + value.slope(carried, steps) * (trips - 1);
+        }
+        for(int i = 0; i < writeLocations.length; i++) {
+            machine.writeValue(writeLocations[i], (int) lastValues[i]);
+        }
+
+        return trips * length;
+    }
+
+    /**
+     * A sum of what some locations held at the start of a trip, each some number of times,
+     * plus a constant.
+     */
+    public static final class Value {
+        private static final int[] NONE = new int[0];
+
+        // in ascending order
+        private final int[] locations;
+        private final int[] coefficients;
+        private final int offset;
+
+        private Value(int[] locations, int[] coefficients, int offset) {
+            this.locations = locations;
+            this.coefficients = coefficients;
+            this.offset = offset;
+        }
+
+        private static Value of(int location) {
+            return new Value(new int[]{location}, new int[]{1}, 0);
+        }
+
+        public boolean isConstant() {
+            return locations.length == 0;
+        }
+
+        public Value plus(int amount) {
+            return new Value(locations, coefficients, offset + amount);
+        }
+
+        public Value plus(Value other) {
+            return combine(other, 1);
+        }
+
+        public Value minus(Value other) {
+            return combine(other, -1);
+        }
+
+        /**
+         * Both values' locations are in ascending order, so they are merged like sorted
+         * lists, which keeps the result's in order too.
+         */
+        private Value combine(Value other, int sign) {
+            int[] newLocations = new int[locations.length + other.locations.length];
+            int[] newCoefficients = new int[newLocations.length];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while(i < locations.length || j < other.locations.length) {
+                int location;
+                int coefficient;
+                if(j == other.locations.length
+                        || (i < locations.length && locations[i] < other.locations[j])) {
+                    location = locations[i];
+                    coefficient = coefficients[i++];
+                } else if(i == locations.length || other.locations[j] < locations[i]) {
+                    location = other.locations[j];
+                    coefficient = sign * other.coefficients[j++];
+                } else {
+                    location = locations[i];
+                    coefficient = coefficients[i++] + sign * other.coefficients[j++];
+                }
+                if(coefficient != 0) {
+                    newLocations[count] = location;
+                    newCoefficients[count] = coefficient;
+                    count++;
+                }
+            }
+
+            return new Value(Arrays.copyOf(newLocations, count),
+                    Arrays.copyOf(newCoefficients, count), offset + sign * other.offset);
+        }
+
+        private int coefficient(int location) {
+            for(int i = 0; i < locations.length; i++) {
+                if(locations[i] == location) {
+                    return coefficients[i];
+                }
+            }
+
+            return 0;
+        }
+
+        private long evaluate(Machine machine) {
+            long value = offset;
+            for(int i = 0; i < locations.length; i++) {
+                int address = Location.getAddress(locations[i]);
+                int held = Location.isRegister(locations[i]) ? machine.readRegister(address)
+                        : machine.readMemoryValue(address);
+                value += (long) coefficients[i] * held;
+            }
+
+            return value;
+        }
+
+        /**
+         * How much this goes up by every trip.
+         */
+        private long slope(int[] carried, long[] steps) {
+            long slope = 0;
+            for(int i = 0; i < carried.length; i++) {
+                slope += coefficient(carried[i]) * steps[i];
+            }
+
+            return slope;
+        }
+    }
+
+    /**
+     * Walks one trip of a loop, see LinearLoop. The Builder also knows the machine's
+     * current state, so that the walk can tell which way each branch goes on this trip.
+     */
+    public static final class Builder {
+        private final Machine machine;
+        private final Map<Integer, Value> written = new LinkedHashMap<>();
+        private final List<Integer> kinds = new ArrayList<>();
+        private final List<Value> values = new ArrayList<>();
+        private final List<Integer> mins = new ArrayList<>();
+        private final List<Integer> maxes = new ArrayList<>();
+
+        public Builder(Machine machine) {
+            this.machine = machine;
+        }
+
+        public static Value constant(int value) {
+            return new Value(Value.NONE, Value.NONE, value);
+        }
+
+        /**
+         * What the location holds at this point of the trip.
+         * @param location a location handle, see {@link Location}
+         */
+        public Value read(int location) {
+            Value value = written.get(location);
+
+            return value == null ? Value.of(location) : value;
+        }
+
+        /**
+         * @param location a location handle, see {@link Location}
+         */
+        public void write(int location, Value value) {
+            written.put(location, value);
+        }
+
+        /**
+         * Whether anything was written to the location so far in the trip.
+         */
+        public boolean isWritten(int location) {
+            return written.containsKey(location);
+        }
+
+        /**
+         * What the value is on this trip.
+         */
+        public long evaluate(Value value) {
+            return value.evaluate(machine);
+        }
+
+        /**
+         * The value has to be in [min, max] on every trip.
+         */
+        public void range(Value value, int min, int max) {
+            condition(RANGE, value, min, max);
+        }
+
+        /**
+         * The value has to be other than 0 on every trip.
+         */
+        public void nonZero(Value value) {
+            condition(NON_ZERO, value, 0, 0);
+        }
+
+        /**
+         * The value has to be 0 on every trip.
+         */
+        public void zero(Value value) {
+            condition(ZERO, value, 0, 0);
+        }
+
+        /**
+         * The loop, once the walk is back where it started, or null if some location it
+         * carries over doesn't go up by the same amount every trip.
+         * @param length how many instructions the trip ran
+         */
+        public LinearLoop build(int length) {
+            TreeSet<Integer> read = new TreeSet<>();
+            for(Value value : values) {
+                addLocations(read, value);
+            }
+            for(Value value : written.values()) {
+                addLocations(read, value);
+            }
+
+            List<Integer> carried = new ArrayList<>();
+            List<Value> increments = new ArrayList<>();
+            for(int location : read) {
+                Value value = written.get(location);
+                if(value == null) {
+                    continue;
+                }
+                if(value.coefficient(location) != 1) {
+                    return null;
+                }
+                // what a trip adds has to be the same every trip
+                Value increment = value.minus(Value.of(location));
+                for(int other : increment.locations) {
+                    if(written.containsKey(other)) {
+                        return null;
+                    }
+                }
+                carried.add(location);
+                increments.add(increment);
+            }
+
+            int[] carriedLocations = new int[carried.size()];
+            for(int i = 0; i < carriedLocations.length; i++) {
+                carriedLocations[i] = carried.get(i);
+            }
+            int[] writeLocations = new int[written.size()];
+            Value[] writeValues = new Value[written.size()];
+            int i = 0;
+            for(Map.Entry<Integer, Value> entry : written.entrySet()) {
+                writeLocations[i] = entry.getKey();
+                writeValues[i] = entry.getValue();
+                i++;
+            }
+            int[] conditionKinds = new int[kinds.size()];
+            int[] conditionMins = new int[kinds.size()];
+            int[] conditionMaxes = new int[kinds.size()];
+            for(int j = 0; j < conditionKinds.length; j++) {
+                conditionKinds[j] = kinds.get(j);
+                conditionMins[j] = mins.get(j);
+                conditionMaxes[j] = maxes.get(j);
+            }
+
+            return new LinearLoop(length, carriedLocations, increments.toArray(new Value[0]),
+                    conditionKinds, values.toArray(new Value[0]), conditionMins, conditionMaxes,
+                    writeLocations, writeValues);
+        }
+
+        private void condition(int kind, Value value, int min, int max) {
+            kinds.add(kind);
+            values.add(value);
+            mins.add(min);
+            maxes.add(max);
+        }
+    }
+
+    private static void addLocations(TreeSet<Integer> locations, Value value) {
+        for(int location : value.locations) {
+            locations.add(location);
+        }
+    }
+}
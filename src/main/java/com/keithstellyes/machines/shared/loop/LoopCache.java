@@ -0,0 +1,175 @@
+package com.keithstellyes.machines.shared.loop;
+
+import java.util.Arrays;
+
+/**
+ * What a machine found out about the loops starting at each of its program counters, so
+ * it only walks each one once. A machine tells the cache about every write to its memory,
+ * and a write to an instruction a loop was built from forgets that loop, along with
+ * anything else built from the same instruction, since the program changed there.
+ *
+ * Self-modifying code can write to a loop's instructions on every trip, so a key that
+ * keeps being forgotten is given up on after MAX_INVALIDATIONS, and is then left as having
+ * no loop until the cache is cleared, instead of being walked again and again.
+ *
+ * Whether a trip comes back to where it started can depend on what the machine holds when
+ * it is walked, such as on the last trip of a loop, so finding no loop at a key counts the
+ * same as it being forgotten, and the key is walked again the next time it is reached until
+ * it is given up on.
+ */
+public final class LoopCache {
+    /**
+     * How many times a key's analysis can be forgotten, or find no loop, before it is given
+     * up on.
+     */
+    public static final int MAX_INVALIDATIONS = 2;
+
+    private static final int NONE = -1;
+
+    private final LinearLoop[] loops;
+    private final boolean[] analysed;
+    private final byte[] invalidations;
+    // for every address, a list through edgeKeys and edgeNexts of the keys built from it
+    private final int[] heads;
+    private final int maxEdges;
+    private int[] edgeKeys = new int[64];
+    private int[] edgeNexts = new int[64];
+    private int edgeCount;
+    // the addresses marked by code since the last put
+    private int[] pending = new int[16];
+    private int pendingCount;
+    private boolean empty = true;
+
+    /**
+     * @param keys how many program counters, or whatever else the machine keys loops by
+     * @param memorySize how many cells instructions can be read from
+     */
+    public LoopCache(int keys, int memorySize) {
+        loops = new LinearLoop[keys];
+        analysed = new boolean[keys];
+        invalidations = new byte[keys];
+        heads = new int[memorySize];
+        Arrays.fill(heads, NONE);
+        maxEdges = Math.max(keys, memorySize) * 32;
+    }
+
+    public boolean isAnalysed(int key) {
+        return analysed[key];
+    }
+
+    /**
+     * The loop starting at key, or null if there isn't one or it wasn't analysed yet.
+     */
+    public LinearLoop get(int key) {
+        return loops[key];
+    }
+
+    /**
+     * Keeps what was found at key, built from the instructions marked with code since the
+     * last put.
+     * @param loop null if there is no loop starting at key
+     */
+    public void put(int key, LinearLoop loop) {
+        loops[key] = loop;
+        if(loop == null && !isGivenUp(key)) {
+            invalidations[key]++;
+        }
+        analysed[key] = loop != null || isGivenUp(key);
+        empty = false;
+        if(invalidations[key] < MAX_INVALIDATIONS) {
+            for(int i = 0; i < pendingCount; i++) {
+                link(pending[i], key);
+            }
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Stops analysing key until the cache is cleared, such as for a loop that writes its own
+     * instructions, which would only be forgotten again on its next trip.
+     */
+    public void giveUp(int key) {
+        invalidations[key] = MAX_INVALIDATIONS;
+    }
+
+    /**
+     * Marks address as one whose instruction was looked at to find a loop, or to find
+     * there isn't one, for the next put.
+     */
+    public void code(int address) {
+        if(pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = address;
+    }
+
+    /**
+     * Called by the machine on every write to memory.
+     */
+    public void written(int address) {
+        for(int edge = heads[address]; edge != NONE; edge = edgeNexts[edge]) {
+            forget(edgeKeys[edge]);
+        }
+        heads[address] = NONE;
+    }
+
+    public void clear() {
+        pendingCount = 0;
+        if(empty) {
+            return;
+        }
+        Arrays.fill(loops, null);
+        Arrays.fill(analysed, false);
+        Arrays.fill(invalidations, (byte) 0);
+        Arrays.fill(heads, NONE);
+        edgeCount = 0;
+        empty = true;
+    }
+
+    private void link(int address, int key) {
+        int head = heads[address];
+        // walking a trip often marks the same instruction more than once
+        if(head != NONE && edgeKeys[head] == key) {
+            return;
+        }
+        if(edgeCount == edgeKeys.length) {
+            if(edgeCount < maxEdges) {
+                edgeKeys = Arrays.copyOf(edgeKeys, edgeCount * 2);
+                edgeNexts = Arrays.copyOf(edgeNexts, edgeCount * 2);
+            } else {
+                // rather than keep track of which edges are free, start over
+                forgetAll();
+            }
+        }
+        edgeKeys[edgeCount] = key;
+        edgeNexts[edgeCount] = heads[address];
+        heads[address] = edgeCount++;
+    }
+
+    private void forget(int key) {
+        if(!analysed[key] || isGivenUp(key)) {
+            return;
+        }
+        invalidations[key]++;
+        loops[key] = null;
+        // a given up key is kept as analysed, with no loop
+        analysed[key] = isGivenUp(key);
+    }
+
+    private boolean isGivenUp(int key) {
+        return invalidations[key] >= MAX_INVALIDATIONS;
+    }
+
+    /**
+     * Forgets every analysis, but not how often each key was forgotten.
+     */
+    private void forgetAll() {
+        Arrays.fill(loops, null);
+        Arrays.fill(analysed, false);
+        Arrays.fill(heads, NONE);
+        edgeCount = 0;
+        for(int key = 0; key < invalidations.length; key++) {
+            analysed[key] = isGivenUp(key);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Memory that any number of threads can read and write at once. Every read and write of a
+ * cell is a volatile access of its own, so a read sees the last write to that cell from any
+ * thread, and all threads see the writes to all cells in the same order. getAndAdd is one
+ * access too. Bulk reads and writes are a cell at a time, not all at once.
+ */
+final class AtomicShortMemory extends ShortMemory {
+    private final AtomicIntegerArray cells;
+
+    AtomicShortMemory(int size) {
+        this.cells = new AtomicIntegerArray(size);
+    }
+
+    @Override
+    public int size() {
+        return cells.length();
+    }
+
+    @Override
+    public short read(int address) {
+        return (short) cells.get(address);
+    }
+
+    @Override
+    public void write(int address, short value) {
+        cells.set(address, value);
+    }
+
+    @Override
+    public short getAndAdd(int address, short delta) {
+        while(true) {
+            int value = cells.get(address);
+            if(cells.compareAndSet(address, value, (short) (value + delta))) {
+                return (short) value;
+            }
+        }
+    }
+
+    @Override
+    public void read(int address, short[] dst, int offset, int length) {
+        checkRange(address, length, size());
+        for(int i = 0; i < length; i++) {
+            dst[offset + i] = (short) cells.get(address + i);
+        }
+    }
+
+    @Override
+    public void write(int address, short[] src, int offset, int length) {
+        checkRange(address, length, size());
+        for(int i = 0; i < length; i++) {
+            cells.set(address + i, src[offset + i]);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for(int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
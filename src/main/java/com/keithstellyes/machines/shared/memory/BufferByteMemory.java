@@ -0,0 +1,58 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.nio.ByteBuffer;
+
+final class BufferByteMemory extends ByteMemory {
+    private final ByteBuffer buffer;
+    private final int size;
+
+    BufferByteMemory(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.capacity() / BYTES_PER_CELL;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte read(int address) {
+        return buffer.get(address);
+    }
+
+    @Override
+    public void write(int address, byte value) {
+        buffer.put(address, value);
+    }
+
+    @Override
+    public void read(int address, byte[] dst, int offset, int length) {
+        ByteBuffer view = view();
+        view.position(address);
+        view.get(dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        ByteBuffer view = view();
+        view.position(address);
+        view.put(src, offset, length);
+    }
+
+    @Override
+    public void clear() {
+        MemoryBuffers.clear(buffer);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    private ByteBuffer view() {
+        ByteBuffer duplicate = buffer.duplicate().order(buffer.order());
+        duplicate.clear();
+        return duplicate;
+    }
+}
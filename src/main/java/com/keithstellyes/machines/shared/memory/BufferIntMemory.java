@@ -0,0 +1,59 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+final class BufferIntMemory extends IntMemory {
+    private final ByteBuffer buffer;
+    private final int size;
+
+    BufferIntMemory(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.capacity() / BYTES_PER_CELL;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int read(int address) {
+        return buffer.getInt(address << 2);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        buffer.putInt(address << 2, value);
+    }
+
+    @Override
+    public void read(int address, int[] dst, int offset, int length) {
+        IntBuffer view = view();
+        view.position(address);
+        view.get(dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, int[] src, int offset, int length) {
+        IntBuffer view = view();
+        view.position(address);
+        view.put(src, offset, length);
+    }
+
+    @Override
+    public void clear() {
+        MemoryBuffers.clear(buffer);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    private IntBuffer view() {
+        ByteBuffer duplicate = buffer.duplicate().order(buffer.order());
+        duplicate.clear();
+        return duplicate.asIntBuffer();
+    }
+}
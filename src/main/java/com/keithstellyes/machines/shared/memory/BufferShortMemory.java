@@ -0,0 +1,59 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+final class BufferShortMemory extends ShortMemory {
+    private final ByteBuffer buffer;
+    private final int size;
+
+    BufferShortMemory(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.capacity() / BYTES_PER_CELL;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public short read(int address) {
+        return buffer.getShort(address << 1);
+    }
+
+    @Override
+    public void write(int address, short value) {
+        buffer.putShort(address << 1, value);
+    }
+
+    @Override
+    public void read(int address, short[] dst, int offset, int length) {
+        ShortBuffer view = view();
+        view.position(address);
+        view.get(dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, short[] src, int offset, int length) {
+        ShortBuffer view = view();
+        view.position(address);
+        view.put(src, offset, length);
+    }
+
+    @Override
+    public void clear() {
+        MemoryBuffers.clear(buffer);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    private ShortBuffer view() {
+        ByteBuffer duplicate = buffer.duplicate().order(buffer.order());
+        duplicate.clear();
+        return duplicate.asShortBuffer();
+    }
+}
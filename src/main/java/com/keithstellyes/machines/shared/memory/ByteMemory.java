@@ -0,0 +1,104 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Memory with 8-bit cells.
+ */
+public abstract class ByteMemory extends Memory {
+    public final static int BYTES_PER_CELL = 1;
+
+    public abstract byte read(int address);
+
+    public abstract void write(int address, byte value);
+
+    /**
+     * Copies length cells starting at address into dst, starting at offset.
+     */
+    public abstract void read(int address, byte[] dst, int offset, int length);
+
+    /**
+     * Copies length cells from src, starting at offset, into this memory starting at address.
+     */
+    public abstract void write(int address, byte[] src, int offset, int length);
+
+    public void read(int address, byte[] dst) {
+        read(address, dst, 0, dst.length);
+    }
+
+    public void write(int address, byte[] src) {
+        write(address, src, 0, src.length);
+    }
+
+    @Override
+    public int readValue(int address) {
+        return read(address);
+    }
+
+    @Override
+    public void writeValue(int address, int value) {
+        write(address, (byte) value);
+    }
+
+    /**
+     * A copy of this memory, where writes to either don't show in the other. Paged memory
+     * shares its pages with the fork until they're written, read-only memory is shared
+     * as it is, and anything else is copied whole onto the heap.
+     *
+     * Paged memory also marks its own pages as shared, so fork it from the thread that
+     * writes it.
+     */
+    public ByteMemory fork() {
+        if(isReadOnly()) {
+            return this;
+        }
+        byte[] copy = new byte[size()];
+        read(0, copy);
+
+        return heap(copy);
+    }
+
+    public static ByteMemory heap(int size) {
+        return new HeapByteMemory(new byte[size]);
+    }
+
+    /**
+     * Uses the given array as the memory, without copying it.
+     */
+    public static ByteMemory heap(byte[] array) {
+        return new HeapByteMemory(array);
+    }
+
+    /**
+     * Memory whose forks share pages until they write to them, see fork. Pages are only
+     * allocated once written, so untouched memory costs nothing.
+     */
+    public static ByteMemory paged(int size) {
+        return new PagedByteMemory(size);
+    }
+
+    /**
+     * Off-heap memory, in the platform's native byte order.
+     */
+    public static ByteMemory direct(int size) {
+        return new BufferByteMemory(MemoryBuffers.direct((long) size * BYTES_PER_CELL));
+    }
+
+    /**
+     * Uses the given buffer as the memory, from index 0 up to its capacity, in whatever byte
+     * order the buffer is set to.
+     */
+    public static ByteMemory wrap(ByteBuffer buffer) {
+        return new BufferByteMemory(buffer);
+    }
+
+    /**
+     * Memory mapped from the start of a file, in big-endian byte order.
+     * A read-only mapping can be shared by any number of machines.
+     */
+    public static ByteMemory mapped(Path path, int size, boolean readOnly) throws IOException {
+        return new BufferByteMemory(MemoryBuffers.map(path, (long) size * BYTES_PER_CELL, readOnly));
+    }
+}
@@ -0,0 +1,41 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.util.Arrays;
+
+final class HeapByteMemory extends ByteMemory {
+    private final byte[] cells;
+
+    HeapByteMemory(byte[] cells) {
+        this.cells = cells;
+    }
+
+    @Override
+    public int size() {
+        return cells.length;
+    }
+
+    @Override
+    public byte read(int address) {
+        return cells[address];
+    }
+
+    @Override
+    public void write(int address, byte value) {
+        cells[address] = value;
+    }
+
+    @Override
+    public void read(int address, byte[] dst, int offset, int length) {
+        System.arraycopy(cells, address, dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        System.arraycopy(src, offset, cells, address, length);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, (byte) 0);
+    }
+}
@@ -0,0 +1,41 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.util.Arrays;
+
+final class HeapIntMemory extends IntMemory {
+    private final int[] cells;
+
+    HeapIntMemory(int[] cells) {
+        this.cells = cells;
+    }
+
+    @Override
+    public int size() {
+        return cells.length;
+    }
+
+    @Override
+    public int read(int address) {
+        return cells[address];
+    }
+
+    @Override
+    public void write(int address, int value) {
+        cells[address] = value;
+    }
+
+    @Override
+    public void read(int address, int[] dst, int offset, int length) {
+        System.arraycopy(cells, address, dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, int[] src, int offset, int length) {
+        System.arraycopy(src, offset, cells, address, length);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, 0);
+    }
+}
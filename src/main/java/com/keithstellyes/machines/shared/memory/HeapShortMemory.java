@@ -0,0 +1,41 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.util.Arrays;
+
+final class HeapShortMemory extends ShortMemory {
+    private final short[] cells;
+
+    HeapShortMemory(short[] cells) {
+        this.cells = cells;
+    }
+
+    @Override
+    public int size() {
+        return cells.length;
+    }
+
+    @Override
+    public short read(int address) {
+        return cells[address];
+    }
+
+    @Override
+    public void write(int address, short value) {
+        cells[address] = value;
+    }
+
+    @Override
+    public void read(int address, short[] dst, int offset, int length) {
+        System.arraycopy(cells, address, dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, short[] src, int offset, int length) {
+        System.arraycopy(src, offset, cells, address, length);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, (short) 0);
+    }
+}
@@ -0,0 +1,104 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Memory with 32-bit cells.
+ */
+public abstract class IntMemory extends Memory {
+    public final static int BYTES_PER_CELL = 4;
+
+    public abstract int read(int address);
+
+    public abstract void write(int address, int value);
+
+    /**
+     * Copies length cells starting at address into dst, starting at offset.
+     */
+    public abstract void read(int address, int[] dst, int offset, int length);
+
+    /**
+     * Copies length cells from src, starting at offset, into this memory starting at address.
+     */
+    public abstract void write(int address, int[] src, int offset, int length);
+
+    public void read(int address, int[] dst) {
+        read(address, dst, 0, dst.length);
+    }
+
+    public void write(int address, int[] src) {
+        write(address, src, 0, src.length);
+    }
+
+    @Override
+    public int readValue(int address) {
+        return read(address);
+    }
+
+    @Override
+    public void writeValue(int address, int value) {
+        write(address, value);
+    }
+
+    /**
+     * A copy of this memory, where writes to either don't show in the other. Paged memory
+     * shares its pages with the fork until they're written, read-only memory is shared
+     * as it is, and anything else is copied whole onto the heap.
+     *
+     * Paged memory also marks its own pages as shared, so fork it from the thread that
+     * writes it.
+     */
+    public IntMemory fork() {
+        if(isReadOnly()) {
+            return this;
+        }
+        int[] copy = new int[size()];
+        read(0, copy);
+
+        return heap(copy);
+    }
+
+    public static IntMemory heap(int size) {
+        return new HeapIntMemory(new int[size]);
+    }
+
+    /**
+     * Uses the given array as the memory, without copying it.
+     */
+    public static IntMemory heap(int[] array) {
+        return new HeapIntMemory(array);
+    }
+
+    /**
+     * Memory whose forks share pages until they write to them, see fork. Pages are only
+     * allocated once written, so untouched memory costs nothing.
+     */
+    public static IntMemory paged(int size) {
+        return new PagedIntMemory(size);
+    }
+
+    /**
+     * Off-heap memory, in the platform's native byte order.
+     */
+    public static IntMemory direct(int size) {
+        return new BufferIntMemory(MemoryBuffers.direct((long) size * BYTES_PER_CELL));
+    }
+
+    /**
+     * Uses the given buffer as the memory, from index 0 up to its capacity, in whatever byte
+     * order the buffer is set to.
+     */
+    public static IntMemory wrap(ByteBuffer buffer) {
+        return new BufferIntMemory(buffer);
+    }
+
+    /**
+     * Memory mapped from the start of a file, in big-endian byte order.
+     * A read-only mapping can be shared by any number of machines.
+     */
+    public static IntMemory mapped(Path path, int size, boolean readOnly) throws IOException {
+        return new BufferIntMemory(MemoryBuffers.map(path, (long) size * BYTES_PER_CELL, readOnly));
+    }
+}
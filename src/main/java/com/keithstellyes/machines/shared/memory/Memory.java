@@ -0,0 +1,63 @@
+package com.keithstellyes.machines.shared.memory;
+
+/**
+ * A fixed number of cells that a machine reads and writes by address.
+ *
+ * This is the common parent of the width-specialized memories ({@link ByteMemory},
+ * {@link ShortMemory} and {@link IntMemory}), which is where the typed single-cell and
+ * bulk operations live. Machines should hold on to one of those rather than this class,
+ * as they only ever have one implementation loaded at a time and the JIT can then
+ * devirtualize the calls in the hot loop.
+ *
+ * Each width comes in two backends, a plain Java array on the heap, or a ByteBuffer, which
+ * may be direct (off-heap) or mapped from a file. A read-only mapped memory is a cheap way
+ * for many machines to share one program image. There is also paged memory, which is
+ * slower to read and write but cheap to fork, see fork in each width.
+ */
+public abstract class Memory {
+    /**
+     * Paged memory has 2^PAGE_BITS cells to a page.
+     */
+    public static final int PAGE_BITS = 10;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    public abstract int size();
+
+    /**
+     * Reads a cell widened to an int, sign-extended the same as a Java cast would be.
+     */
+    public abstract int readValue(int address);
+
+    /**
+     * Writes a cell, narrowing the value the same as a Java cast would.
+     */
+    public abstract void writeValue(int address, int value);
+
+    /**
+     * Sets every cell to 0.
+     */
+    public abstract void clear();
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    static int pageCount(int size) {
+        return (size + PAGE_MASK) >>> PAGE_BITS;
+    }
+
+    /**
+     * How many cells the page holds, which is less than PAGE_SIZE for a last partial page.
+     */
+    static int pageLength(int index, int size) {
+        return Math.min(PAGE_SIZE, size - (index << PAGE_BITS));
+    }
+
+    static void checkRange(int address, int length, int size) {
+        if(address < 0 || length < 0 || address > size - length) {
+            throw new IndexOutOfBoundsException("Cells " + address + " to " + (address + length)
+                    + " are outside of memory of " + size + " cells");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Creating and clearing the ByteBuffers behind the buffer backed memories.
+ */
+final class MemoryBuffers {
+    private MemoryBuffers() { }
+
+    static ByteBuffer direct(long bytes) {
+        return ByteBuffer.allocateDirect(checkedSize(bytes)).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Maps the first bytes of a file. When writable, the file is created or grown as needed.
+     * A read-only file has to already be big enough.
+     *
+     * The mapping stays valid after the channel is closed, so the channel isn't kept around.
+     */
+    static ByteBuffer map(Path path, long bytes, boolean readOnly) throws IOException {
+        checkedSize(bytes);
+        if(readOnly) {
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if(channel.size() < bytes) {
+                    throw new IOException(path + " is smaller than " + bytes + " bytes");
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+            }
+        }
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    static void clear(ByteBuffer buffer) {
+        int limit = buffer.capacity();
+        int i = 0;
+        for(; i + 8 <= limit; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        for(; i < limit; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private static int checkedSize(long bytes) {
+        if(bytes < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Memory of " + bytes + " bytes is not supported");
+        }
+
+        return (int) bytes;
+    }
+}
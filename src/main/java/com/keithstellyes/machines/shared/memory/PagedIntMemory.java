@@ -0,0 +1,102 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.util.Arrays;
+
+/**
+ * Memory split into pages that forks share until one of them writes to a page, when the
+ * writer takes its own copy of just that page. A page that has never been written is null
+ * and reads as 0.
+ */
+final class PagedIntMemory extends IntMemory {
+    private final int size;
+    private final int[][] pages;
+    /**
+     * Whether each page is only this memory's, so it can be written in place, rather than
+     * possibly shared with a fork.
+     */
+    private final boolean[] owned;
+
+    PagedIntMemory(int size) {
+        this.size = size;
+        this.pages = new int[pageCount(size)][];
+        this.owned = new boolean[pages.length];
+    }
+
+    private PagedIntMemory(PagedIntMemory parent) {
+        this.size = parent.size;
+        this.pages = parent.pages.clone();
+        this.owned = new boolean[pages.length];
+        // the parent's pages are now shared too
+        Arrays.fill(parent.owned, false);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int read(int address) {
+        int[] page = pages[address >>> PAGE_BITS];
+        return page == null ? 0 : page[address & PAGE_MASK];
+    }
+
+    @Override
+    public void write(int address, int value) {
+        writablePage(address >>> PAGE_BITS)[address & PAGE_MASK] = value;
+    }
+
+    @Override
+    public void read(int address, int[] dst, int offset, int length) {
+        checkRange(address, length, size);
+        while(length > 0) {
+            int index = address >>> PAGE_BITS;
+            int at = address & PAGE_MASK;
+            int chunk = Math.min(length, PAGE_SIZE - at);
+            int[] page = pages[index];
+            if(page == null) {
+                Arrays.fill(dst, offset, offset + chunk, 0);
+            } else {
+                System.arraycopy(page, at, dst, offset, chunk);
+            }
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void write(int address, int[] src, int offset, int length) {
+        checkRange(address, length, size);
+        while(length > 0) {
+            int at = address & PAGE_MASK;
+            int chunk = Math.min(length, PAGE_SIZE - at);
+            System.arraycopy(src, offset, writablePage(address >>> PAGE_BITS), at, chunk);
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(pages, null);
+        Arrays.fill(owned, false);
+    }
+
+    @Override
+    public IntMemory fork() {
+        return new PagedIntMemory(this);
+    }
+
+    private int[] writablePage(int index) {
+        int[] page = pages[index];
+        if(!owned[index]) {
+            page = page == null ? new int[pageLength(index, size)] : page.clone();
+            pages[index] = page;
+            owned[index] = true;
+        }
+
+        return page;
+    }
+}
@@ -0,0 +1,123 @@
+package com.keithstellyes.machines.shared.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Memory with 16-bit cells.
+ */
+public abstract class ShortMemory extends Memory {
+    public final static int BYTES_PER_CELL = 2;
+
+    public abstract short read(int address);
+
+    public abstract void write(int address, short value);
+
+    /**
+     * Copies length cells starting at address into dst, starting at offset.
+     */
+    public abstract void read(int address, short[] dst, int offset, int length);
+
+    /**
+     * Copies length cells from src, starting at offset, into this memory starting at address.
+     */
+    public abstract void write(int address, short[] src, int offset, int length);
+
+    public void read(int address, short[] dst) {
+        read(address, dst, 0, dst.length);
+    }
+
+    public void write(int address, short[] src) {
+        write(address, src, 0, src.length);
+    }
+
+    /**
+     * Adds delta to the cell, wrapping around at 16 bits, and returns what it held before.
+     * Atomic memory does this in a single access, so no other thread's write to the cell
+     * can come between the read and the write, anything else reads and then writes.
+     */
+    public short getAndAdd(int address, short delta) {
+        short value = read(address);
+        write(address, (short) (value + delta));
+
+        return value;
+    }
+
+    @Override
+    public int readValue(int address) {
+        return read(address);
+    }
+
+    @Override
+    public void writeValue(int address, int value) {
+        write(address, (short) value);
+    }
+
+    /**
+     * A copy of this memory, where writes to either don't show in the other. Paged memory
+     * shares its pages with the fork until they're written, read-only memory is shared
+     * as it is, and anything else is copied whole onto the heap.
+     *
+     * Paged memory also marks its own pages as shared, so fork it from the thread that
+     * writes it.
+     */
+    public ShortMemory fork() {
+        if(isReadOnly()) {
+            return this;
+        }
+        short[] copy = new short[size()];
+        read(0, copy);
+
+        return heap(copy);
+    }
+
+    public static ShortMemory heap(int size) {
+        return new HeapShortMemory(new short[size]);
+    }
+
+    /**
+     * Uses the given array as the memory, without copying it.
+     */
+    public static ShortMemory heap(short[] array) {
+        return new HeapShortMemory(array);
+    }
+
+    /**
+     * Memory whose forks share pages until they write to them, see fork. Pages are only
+     * allocated once written, so untouched memory costs nothing.
+     */
+    public static ShortMemory paged(int size) {
+        return new PagedShortMemory(size);
+    }
+
+    /**
+     * Memory that many threads can share, see AtomicShortMemory. Its forks are on the heap.
+     */
+    public static ShortMemory atomic(int size) {
+        return new AtomicShortMemory(size);
+    }
+
+    /**
+     * Off-heap memory, in the platform's native byte order.
+     */
+    public static ShortMemory direct(int size) {
+        return new BufferShortMemory(MemoryBuffers.direct((long) size * BYTES_PER_CELL));
+    }
+
+    /**
+     * Uses the given buffer as the memory, from index 0 up to its capacity, in whatever byte
+     * order the buffer is set to.
+     */
+    public static ShortMemory wrap(ByteBuffer buffer) {
+        return new BufferShortMemory(buffer);
+    }
+
+    /**
+     * Memory mapped from the start of a file, in big-endian byte order.
+     * A read-only mapping can be shared by any number of machines.
+     */
+    public static ShortMemory mapped(Path path, int size, boolean readOnly) throws IOException {
+        return new BufferShortMemory(MemoryBuffers.map(path, (long) size * BYTES_PER_CELL, readOnly));
+    }
+}
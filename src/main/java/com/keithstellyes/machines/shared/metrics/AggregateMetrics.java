@@ -0,0 +1,110 @@
+package com.keithstellyes.machines.shared.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals over a batch of machines, each counting into this through its MachineMetrics.
+ */
+public class AggregateMetrics implements AggregateMetricsMXBean {
+    private final String name;
+    private final Set<MachineMetrics> machines = ConcurrentHashMap.newKeySet();
+    private final LongAdder instructionsRetired = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final RateMeter rateMeter = new RateMeter();
+    private final long startNanos = System.nanoTime();
+    private ObjectName objectName;
+
+    public AggregateMetrics(String name) {
+        this.name = name;
+    }
+
+    public static AggregateMetrics register(String name) throws JMException {
+        AggregateMetrics metrics = new AggregateMetrics(name);
+        metrics.objectName = new ObjectName(MachineMetrics.DOMAIN + ":type=Aggregate,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metrics.objectName);
+
+        return metrics;
+    }
+
+    public void unregister() throws JMException {
+        if(objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    void add(MachineMetrics metrics) {
+        machines.add(metrics);
+    }
+
+    void remove(MachineMetrics metrics) {
+        machines.remove(metrics);
+    }
+
+    void retire(int count) {
+        instructionsRetired.add(count);
+    }
+
+    void byteIn() {
+        bytesIn.increment();
+    }
+
+    void byteOut() {
+        bytesOut.increment();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public int getMachineCount() {
+        return machines.size();
+    }
+
+    @Override
+    public int getHaltedCount() {
+        int halted = 0;
+        for(MachineMetrics metrics : machines) {
+            if(metrics.isHalted()) halted++;
+        }
+
+        return halted;
+    }
+
+    @Override
+    public long getInstructionsRetired() {
+        return instructionsRetired.sum();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return rateMeter.update(instructionsRetired.sum());
+    }
+
+    @Override
+    public long getMillisSinceStart() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+}
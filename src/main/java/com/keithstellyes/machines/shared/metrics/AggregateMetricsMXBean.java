@@ -0,0 +1,20 @@
+package com.keithstellyes.machines.shared.metrics;
+
+/**
+ * What a batch of machines exposes over JMX, see AggregateMetrics.
+ */
+public interface AggregateMetricsMXBean {
+    int getMachineCount();
+
+    int getHaltedCount();
+
+    long getInstructionsRetired();
+
+    double getInstructionsPerSecond();
+
+    long getMillisSinceStart();
+
+    long getBytesIn();
+
+    long getBytesOut();
+}
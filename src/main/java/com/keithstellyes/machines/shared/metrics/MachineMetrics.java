@@ -0,0 +1,180 @@
+package com.keithstellyes.machines.shared.metrics;
+
+import com.keithstellyes.machines.shared.Machine;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operational counters for one machine, which can be registered as an MBean.
+ *
+ * The counters are LongAdders, which stripe their cells per thread, so the thread running
+ * the machine never contends with the JMX thread reading them, nor with other machines
+ * adding to the same AggregateMetrics. The run loop adds retired instructions once per
+ * slice rather than per instruction.
+ *
+ * The program counter, current instruction and halt status are taken by the thread running
+ * the machine at the end of each slice too, so the JMX thread never reads the machine while
+ * it runs, which could see it half way through an instruction.
+ */
+public class MachineMetrics implements MachineMetricsMXBean {
+    public final static String DOMAIN = "com.keithstellyes.machines";
+
+    /**
+     * The program counter and current instruction of a machine that is halted, or that
+     * hasn't finished a slice yet.
+     */
+    public final static int NONE = Integer.MIN_VALUE;
+
+    private final static AtomicLong ids = new AtomicLong();
+
+    private final Machine machine;
+    private final AggregateMetrics aggregate;
+    private final long id = ids.incrementAndGet();
+    private final LongAdder instructionsRetired = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final RateMeter rateMeter = new RateMeter();
+    private volatile long startNanos;
+    // the program counter in the high half and the instruction in the low half, so the two
+    // are always read together
+    private volatile long position = position(NONE, NONE);
+    private volatile boolean halted;
+    private ObjectName objectName;
+
+    /**
+     * @param aggregate also counts into this, may be null
+     */
+    public MachineMetrics(Machine machine, AggregateMetrics aggregate) {
+        this.machine = machine;
+        this.aggregate = aggregate;
+        if(aggregate != null) {
+            aggregate.add(this);
+        }
+    }
+
+    /**
+     * Creates metrics for the machine, attaches them to it, and registers them with the
+     * platform MBean server.
+     * @param aggregate may be null
+     */
+    public static MachineMetrics register(Machine machine, AggregateMetrics aggregate)
+            throws JMException {
+        MachineMetrics metrics = new MachineMetrics(machine, aggregate);
+        metrics.objectName = new ObjectName(DOMAIN + ":type=Machine,name="
+                + ObjectName.quote(machine.getName()) + ",id=" + metrics.id);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metrics.objectName);
+        machine.setMetrics(metrics);
+
+        return metrics;
+    }
+
+    /**
+     * Detaches these metrics from the machine and the MBean server. The aggregate keeps
+     * what was counted.
+     */
+    public void unregister() throws JMException {
+        if(machine.getMetrics() == this) {
+            machine.setMetrics(null);
+        }
+        if(aggregate != null) {
+            aggregate.remove(this);
+        }
+        if(objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Called by the thread running the machine at the end of every slice.
+     */
+    public void retire(int count) {
+        if(startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        instructionsRetired.add(count);
+        if(aggregate != null) {
+            aggregate.retire(count);
+        }
+        boolean halted = machine.isHalted();
+        position = halted ? position(NONE, NONE)
+                : position(machine.getProgramCounter(), machine.getCurrentInstruction());
+        this.halted = halted;
+    }
+
+    private static long position(int programCounter, int instruction) {
+        return (long) programCounter << 32 | (instruction & 0xFFFFFFFFL);
+    }
+
+    public void byteIn() {
+        bytesIn.increment();
+        if(aggregate != null) {
+            aggregate.byteIn();
+        }
+    }
+
+    public void byteOut() {
+        bytesOut.increment();
+        if(aggregate != null) {
+            aggregate.byteOut();
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public String getMachineName() {
+        return machine.getName();
+    }
+
+    @Override
+    public long getInstructionsRetired() {
+        return instructionsRetired.sum();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return rateMeter.update(instructionsRetired.sum());
+    }
+
+    @Override
+    public long getMillisSinceStart() {
+        long start = startNanos;
+        return start == 0 ? 0 : (System.nanoTime() - start) / 1_000_000;
+    }
+
+    @Override
+    public boolean isHalted() {
+        return halted;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getProgramCounter() {
+        return (int) (position >> 32);
+    }
+
+    @Override
+    public int getCurrentInstruction() {
+        return (int) position;
+    }
+}
@@ -0,0 +1,41 @@
+package com.keithstellyes.machines.shared.metrics;
+
+/**
+ * What a running machine exposes over JMX, see MachineMetrics.
+ */
+public interface MachineMetricsMXBean {
+    String getMachineName();
+
+    long getInstructionsRetired();
+
+    /**
+     * An exponentially weighted moving average, so it follows the recent rate rather than
+     * the rate over the whole run.
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * Time since the machine first ran an instruction, 0 if it hasn't yet.
+     */
+    long getMillisSinceStart();
+
+    /**
+     * As of the end of the last slice the machine ran, like the program counter and current
+     * instruction.
+     */
+    boolean isHalted();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * MachineMetrics.NONE when halted or before the first slice.
+     */
+    int getProgramCounter();
+
+    /**
+     * MachineMetrics.NONE when halted or before the first slice.
+     */
+    int getCurrentInstruction();
+}
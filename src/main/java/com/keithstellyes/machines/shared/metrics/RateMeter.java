@@ -0,0 +1,42 @@
+package com.keithstellyes.machines.shared.metrics;
+
+/**
+ * An exponentially weighted moving average of how fast a counter goes up.
+ *
+ * Rather than having a thread tick it, it is brought up to date whenever it is read, so it
+ * costs the counting side nothing.
+ */
+final class RateMeter {
+    private final static double TIME_CONSTANT_NANOS = 5e9;
+    private final static long MIN_TICK_NANOS = 100_000_000L;
+
+    private long lastNanos = System.nanoTime();
+    private long lastCount;
+    private double rate;
+    private boolean hasRate;
+
+    /**
+     * @param count the counter's current value
+     * @return the average rate per second
+     */
+    synchronized double update(long count) {
+        long now = System.nanoTime();
+        long elapsed = now - lastNanos;
+        if(elapsed < MIN_TICK_NANOS) {
+            return rate;
+        }
+
+        double instantRate = (count - lastCount) * 1e9 / elapsed;
+        if(hasRate) {
+            double alpha = 1 - Math.exp(-elapsed / TIME_CONSTANT_NANOS);
+            rate += alpha * (instantRate - rate);
+        } else {
+            rate = instantRate;
+            hasRate = true;
+        }
+        lastNanos = now;
+        lastCount = count;
+
+        return rate;
+    }
+}
@@ -0,0 +1,235 @@
+package com.keithstellyes.machines.shared.pipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A byte stream from one thread to another without locks, for connecting one machine's
+ * output to another's input. Use it in place of PipedOutputStream and PipedInputStream.
+ *
+ * It is a single-producer, single-consumer ring buffer. Each side only writes its own
+ * position, publishing it with an ordered lazySet, and keeps a cached copy of the other
+ * side's position, only reading the real one when the cache says it's full or empty. So a
+ * reader that falls behind takes everything written since in one go.
+ *
+ * A full pipe makes the writer wait, which is the backpressure. Either side waits by
+ * spinning, then yielding, then parking briefly. Closing the output stream ends the input
+ * stream once it has been read, and closing the input stream makes writes fail, like
+ * PipedOutputStream does when its reader is gone.
+ */
+public class BytePipe {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int SPINS = 64;
+    private static final int YIELDS = 128;
+    private static final long PARK_NANOS = 50_000;
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean writerClosed;
+    private volatile boolean readerClosed;
+
+    private long writerTail;
+    private long cachedHead;
+    private long readerHead;
+    private long cachedTail;
+
+    private final OutputStream outputStream = new PipeOutputStream();
+    private final InputStream inputStream = new PipeInputStream();
+
+    public BytePipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity a power of two
+     */
+    public BytePipe(int capacity) {
+        if(capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * The writing end, for one thread only.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * The reading end, for one thread only.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return how many bytes could be written without waiting, at least
+     */
+    private int writable(int wanted, int idles) throws IOException {
+        int free = buffer.length - (int) (writerTail - cachedHead);
+        if(free < wanted) {
+            cachedHead = head.get();
+            free = buffer.length - (int) (writerTail - cachedHead);
+        }
+        if(free == 0) {
+            if(readerClosed) {
+                throw new IOException("Pipe reader closed");
+            }
+            idle(idles);
+        }
+
+        return free;
+    }
+
+    /**
+     * @return how many bytes could be read without waiting, or -1 at the end of the stream
+     */
+    private int readable(int idles) throws IOException {
+        int available = (int) (cachedTail - readerHead);
+        if(available == 0) {
+            // closed has to be read before tail, or the last bytes could be missed
+            boolean closed = writerClosed;
+            cachedTail = tail.get();
+            available = (int) (cachedTail - readerHead);
+            if(available == 0) {
+                if(closed) {
+                    return -1;
+                }
+                idle(idles);
+            }
+        }
+
+        return available;
+    }
+
+    private static void idle(int idles) throws IOException {
+        if(idles < SPINS) {
+            return;
+        } else if(idles < YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        if(Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            for(int idles = 0; writable(1, idles) == 0; idles++) { }
+
+            buffer[(int) writerTail & mask] = (byte) b;
+            tail.lazySet(++writerTail);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            int idles = 0;
+            while(len > 0) {
+                int n = Math.min(writable(len, idles), len);
+                if(n == 0) {
+                    idles++;
+                    continue;
+                }
+                idles = 0;
+
+                int index = (int) writerTail & mask;
+                int first = Math.min(n, buffer.length - index);
+                System.arraycopy(b, off, buffer, index, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                writerTail += n;
+                tail.lazySet(writerTail);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Ends the stream, the reader sees -1 once it has read everything before this.
+         */
+        @Override
+        public void close() {
+            writerClosed = true;
+        }
+
+        private void checkOpen() throws IOException {
+            if(writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if(readerClosed) {
+                throw new IOException("Pipe reader closed");
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            int available;
+            for(int idles = 0; (available = readable(idles)) == 0; idles++) { }
+            if(available < 0) {
+                return -1;
+            }
+
+            int b = buffer[(int) readerHead & mask] & 0xFF;
+            head.lazySet(++readerHead);
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+
+            int available;
+            for(int idles = 0; (available = readable(idles)) == 0; idles++) { }
+            if(available < 0) {
+                return -1;
+            }
+
+            int n = Math.min(available, len);
+            int index = (int) readerHead & mask;
+            int first = Math.min(n, buffer.length - index);
+            System.arraycopy(buffer, index, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            readerHead += n;
+            head.lazySet(readerHead);
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) (tail.get() - readerHead);
+        }
+
+        /**
+         * Tells the writer nobody is reading any more, so it fails instead of waiting forever
+         * on a full pipe.
+         */
+        @Override
+        public void close() {
+            readerClosed = true;
+        }
+    }
+}
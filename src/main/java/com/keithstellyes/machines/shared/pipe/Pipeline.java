@@ -0,0 +1,151 @@
+package com.keithstellyes.machines.shared.pipe;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Machines chained output to input through BytePipes, each running on its own thread.
+ *
+ * When a stage halts, or gives up, its output pipe is closed, so the next stage reads the
+ * end of input once it has read everything before it. Its input pipe is closed too, so the
+ * stage before it doesn't wait forever on a pipe nobody reads.
+ */
+public class Pipeline {
+    private final List<Machine> machines;
+    private final List<BytePipe> pipes;
+    private final OutputStream out;
+
+    private Pipeline(List<Machine> machines, List<BytePipe> pipes, OutputStream out) {
+        this.machines = machines;
+        this.pipes = pipes;
+        this.out = out;
+    }
+
+    public List<Machine> getMachines() {
+        return Collections.unmodifiableList(machines);
+    }
+
+    /**
+     * Runs every stage until it halts or gives up, and waits for them all.
+     * @param giveUpCounter for each stage, as in MachineUtil.runMachineUntilHalt
+     * @return true if every stage halted
+     */
+    public boolean run(int giveUpCounter) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(machines.size(), runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Boolean>> stages = new ArrayList<>();
+            for(int i = 0; i < machines.size(); i++) {
+                int stage = i;
+                stages.add(executor.submit(() -> runStage(stage, giveUpCounter)));
+            }
+
+            boolean allHalted = true;
+            for(Future<Boolean> stage : stages) {
+                allHalted &= stage.get();
+            }
+
+            return allHalted;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pipeline stage failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean runStage(int stage, int giveUpCounter) throws IOException {
+        try {
+            return MachineUtil.runMachineUntilHalt(machines.get(stage), giveUpCounter);
+        } finally {
+            if(stage < pipes.size()) {
+                pipes.get(stage).getOutputStream().close();
+            } else {
+                out.flush();
+            }
+            if(stage > 0) {
+                pipes.get(stage - 1).getInputStream().close();
+            }
+        }
+    }
+
+    public static class Builder {
+        private final InputStream in;
+        private final OutputStream out;
+        private final List<BiFunction<InputStream, OutputStream, Machine>> stages = new ArrayList<>();
+        private int capacity = BytePipe.DEFAULT_CAPACITY;
+
+        /**
+         * @param in the first stage's input
+         * @param out the last stage's output
+         */
+        public Builder(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * Sets the capacity of each pipe between stages, a power of two.
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Adds a stage after the others.
+         * @param newMachine makes the stage's machine given its input and output, such as a
+         *                   machine's two argument constructor
+         * @param loadProgram loads the stage's program into its new machine
+         */
+        public <M extends Machine> Builder stage(BiFunction<InputStream, OutputStream, M> newMachine,
+                                                 Consumer<? super M> loadProgram) {
+            stages.add((stageIn, stageOut) -> {
+                M machine = newMachine.apply(stageIn, stageOut);
+                loadProgram.accept(machine);
+                return machine;
+            });
+            return this;
+        }
+
+        public Pipeline build() {
+            if(stages.isEmpty()) {
+                throw new IllegalStateException("A pipeline needs at least one stage");
+            }
+
+            List<Machine> machines = new ArrayList<>();
+            List<BytePipe> pipes = new ArrayList<>();
+            InputStream stageIn = in;
+            for(int i = 0; i < stages.size(); i++) {
+                OutputStream stageOut = out;
+                BytePipe pipe = null;
+                if(i < stages.size() - 1) {
+                    pipe = new BytePipe(capacity);
+                    pipes.add(pipe);
+                    stageOut = pipe.getOutputStream();
+                }
+                machines.add(stages.get(i).apply(stageIn, stageOut));
+                if(pipe != null) {
+                    stageIn = pipe.getInputStream();
+                }
+            }
+
+            return new Pipeline(machines, pipes, out);
+        }
+    }
+}
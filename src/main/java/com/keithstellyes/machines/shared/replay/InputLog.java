@@ -0,0 +1,25 @@
+package com.keithstellyes.machines.shared.replay;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sits between a machine and its input stream, see Machine.setInputLog.
+ *
+ * A log file is a header of int magic, int version, then one entry per byte an input
+ * instruction consumed: long step, int value. The value is -1 where the stream had ended.
+ */
+public interface InputLog {
+    int MAGIC = 0x4D494F4C; // "MIOL"
+    int VERSION = 1;
+    int HEADER_BYTES = 8;
+    int ENTRY_BYTES = 12;
+
+    /**
+     * Reads the next input.
+     * @param step the machine's step count, the step doing the reading
+     * @param in the machine's input stream
+     * @return the byte read, or -1 at the end of input
+     */
+    int read(long step, InputStream in) throws IOException;
+}
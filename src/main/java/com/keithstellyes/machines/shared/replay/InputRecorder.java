@@ -0,0 +1,41 @@
+package com.keithstellyes.machines.shared.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads input from the machine's input stream as usual, logging each byte along with the
+ * step that read it, so the run can be replayed with InputReplayer.
+ */
+public class InputRecorder implements InputLog, Closeable {
+    private final DataOutputStream log;
+
+    public InputRecorder(Path path) throws IOException {
+        log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        log.writeInt(MAGIC);
+        log.writeInt(VERSION);
+    }
+
+    @Override
+    public int read(long step, InputStream in) throws IOException {
+        int read = in.read();
+        log.writeLong(step);
+        log.writeInt(read);
+
+        return read;
+    }
+
+    public void flush() throws IOException {
+        log.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,57 @@
+package com.keithstellyes.machines.shared.replay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Feeds a machine the input logged by InputRecorder, from a memory-mapped log, instead of
+ * reading its input stream. Given the same program, the machine then does exactly what it
+ * did when it was recorded.
+ *
+ * Each read is checked against the step it was logged at, and if they don't match the
+ * machine isn't doing the same thing as when it was recorded, which is reported with an
+ * IllegalStateException. Once the log runs out, the input reads as ended.
+ */
+public class InputReplayer implements InputLog {
+    private final Path path;
+    private final MappedByteBuffer log;
+
+    public InputReplayer(Path path) throws IOException {
+        this.path = path;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if(log.remaining() < HEADER_BYTES || log.getInt() != MAGIC) {
+            throw new IOException(path + " is not an input log");
+        }
+        if(log.getInt() != VERSION) {
+            throw new IOException(path + " is from an unsupported input log version");
+        }
+    }
+
+    @Override
+    public int read(long step, InputStream in) {
+        if(log.remaining() < ENTRY_BYTES) {
+            return -1;
+        }
+
+        long loggedStep = log.getLong();
+        if(loggedStep != step) {
+            throw new IllegalStateException("Replay of " + path + " diverged, input was read at step "
+                    + step + " but was logged at step " + loggedStep);
+        }
+
+        return log.getInt();
+    }
+
+    /**
+     * Whether every logged input has been replayed.
+     */
+    public boolean isFinished() {
+        return log.remaining() < ENTRY_BYTES;
+    }
+}
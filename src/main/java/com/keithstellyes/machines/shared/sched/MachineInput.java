@@ -0,0 +1,90 @@
+package com.keithstellyes.machines.shared.sched;
+
+import com.keithstellyes.machines.shared.replay.InputLog;
+
+import java.io.InputStream;
+
+/**
+ * Input for a machine run by a Scheduler. It is written to from any thread, and the
+ * scheduler suspends the machine instead of letting it read while there is nothing to read.
+ *
+ * Once it is closed and everything written has been read, reads give -1 like the end of a
+ * stream.
+ */
+public class MachineInput implements InputLog {
+    private int[] buffer = new int[16];
+    private int head;
+    private int count;
+    private boolean closed;
+    private Runnable onReady;
+
+    public void write(int value) {
+        Runnable onReady;
+        synchronized (this) {
+            if(closed) {
+                throw new IllegalStateException("Input is closed");
+            }
+            if(count == buffer.length) {
+                int[] grown = new int[buffer.length * 2];
+                for(int i = 0; i < count; i++) {
+                    grown[i] = buffer[(head + i) % buffer.length];
+                }
+                buffer = grown;
+                head = 0;
+            }
+            buffer[(head + count++) % buffer.length] = value & 0xFF;
+            onReady = this.onReady;
+        }
+        if(onReady != null) {
+            onReady.run();
+        }
+    }
+
+    public void write(byte[] values) {
+        for(byte value : values) {
+            write(value);
+        }
+    }
+
+    public void close() {
+        Runnable onReady;
+        synchronized (this) {
+            closed = true;
+            onReady = this.onReady;
+        }
+        if(onReady != null) {
+            onReady.run();
+        }
+    }
+
+    /**
+     * Whether a read would return straight away, with a value or the end of input.
+     */
+    public boolean isReady() {
+        return isReady(1);
+    }
+
+    /**
+     * Whether that many reads would all return straight away, with values or the end of
+     * input, as an instruction that reads more than once needs.
+     */
+    public synchronized boolean isReady(int reads) {
+        return count >= reads || closed;
+    }
+
+    @Override
+    public synchronized int read(long step, InputStream in) {
+        if(count == 0) {
+            return -1;
+        }
+        int value = buffer[head];
+        head = (head + 1) % buffer.length;
+        count--;
+
+        return value;
+    }
+
+    synchronized void setOnReady(Runnable onReady) {
+        this.onReady = onReady;
+    }
+}
@@ -0,0 +1,225 @@
+package com.keithstellyes.machines.shared.sched;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A machine submitted to a Scheduler, see Scheduler.schedule.
+ *
+ * Its future completes with MachineUtil.DID_NOT_GIVE_UP once the machine halts, or
+ * DID_GIVE_UP once it runs out of either quota, or exceptionally if the machine throws.
+ */
+public class ScheduledMachine {
+    public enum State {
+        /**
+         * Waiting for a worker thread.
+         */
+        RUNNABLE,
+        RUNNING,
+        /**
+         * Suspended until its input has enough for the next instruction to read.
+         */
+        WAITING,
+        HALTED,
+        GAVE_UP,
+        FAILED,
+        CANCELLED
+    }
+
+    private final Machine machine;
+    private final MachineInput input;
+    private final int priority;
+    private final long instructionQuota;
+    private final long deadline;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    private State state = State.RUNNABLE;
+    private volatile long instructionsRun;
+
+    /**
+     * Where this is in the run queue among machines of the same priority.
+     */
+    long sequence;
+
+    private ScheduledMachine(Builder builder) {
+        this.machine = builder.machine;
+        this.input = builder.input;
+        this.priority = builder.priority;
+        this.instructionQuota = builder.instructionQuota;
+        this.deadline = builder.wallClockNanos > 0 ? System.nanoTime() + builder.wallClockNanos : 0;
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    /**
+     * @return the input given to the builder, or null
+     */
+    public MachineInput getInput() {
+        return input;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getInstructionsRun() {
+        return instructionsRun;
+    }
+
+    public CompletableFuture<Boolean> getFuture() {
+        return future;
+    }
+
+    /**
+     * Stops scheduling the machine, it is left as it was after its last quantum.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if(isDone()) {
+                return;
+            }
+            state = State.CANCELLED;
+        }
+        future.cancel(false);
+    }
+
+    synchronized boolean isDone() {
+        return state == State.HALTED || state == State.GAVE_UP || state == State.FAILED
+                || state == State.CANCELLED;
+    }
+
+    /**
+     * @return whether it was runnable, in which case it is now running
+     */
+    synchronized boolean startRunning() {
+        if(state != State.RUNNABLE) {
+            return false;
+        }
+        state = State.RUNNING;
+
+        return true;
+    }
+
+    /**
+     * @return whether it was waiting, in which case it is now runnable
+     */
+    synchronized boolean wake() {
+        if(state != State.WAITING) {
+            return false;
+        }
+        state = State.RUNNABLE;
+
+        return true;
+    }
+
+    /**
+     * @return whether it was still running, it stays put if it was cancelled meanwhile
+     */
+    synchronized boolean stopRunning(State newState) {
+        if(state != State.RUNNING) {
+            return false;
+        }
+        state = newState;
+
+        return true;
+    }
+
+    void retired(int ran) {
+        instructionsRun += ran;
+    }
+
+    /**
+     * @return how many instructions it may run before it gives up, capped at max
+     */
+    int remainingInstructions(int max) {
+        if(instructionQuota <= 0) {
+            return max;
+        }
+
+        return (int) Math.min(max, instructionQuota - instructionsRun);
+    }
+
+    boolean isPastDeadline() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    long nanosUntilDeadline() {
+        return deadline == 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+    }
+
+    void finish(State finalState) {
+        if(stopRunning(finalState)) {
+            future.complete(finalState == State.HALTED ? MachineUtil.DID_NOT_GIVE_UP
+                    : MachineUtil.DID_GIVE_UP);
+        }
+    }
+
+    void fail(RuntimeException e) {
+        if(stopRunning(State.FAILED)) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    public static class Builder {
+        private final Scheduler scheduler;
+        private final Machine machine;
+        private MachineInput input;
+        private int priority;
+        private long instructionQuota;
+        private long wallClockNanos;
+
+        Builder(Scheduler scheduler, Machine machine) {
+            this.scheduler = scheduler;
+            this.machine = machine;
+        }
+
+        /**
+         * Sets the machine's input, which it is suspended waiting on rather than blocking
+         * a worker. This replaces the machine's input log.
+         */
+        public Builder input(MachineInput input) {
+            this.input = input;
+            return this;
+        }
+
+        /**
+         * Higher runs first, machines of the same priority take turns. The default is 0.
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param instructionQuota the most instructions to run in total, or 0 for no limit
+         */
+        public Builder instructionQuota(long instructionQuota) {
+            this.instructionQuota = instructionQuota;
+            return this;
+        }
+
+        /**
+         * How long from submitting the machine it may take, including time spent waiting.
+         */
+        public Builder wallClockQuota(long duration, TimeUnit unit) {
+            this.wallClockNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public ScheduledMachine submit() {
+            ScheduledMachine scheduled = new ScheduledMachine(this);
+            scheduler.start(scheduled);
+
+            return scheduled;
+        }
+    }
+}
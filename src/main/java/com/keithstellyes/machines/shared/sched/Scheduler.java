@@ -0,0 +1,206 @@
+package com.keithstellyes.machines.shared.sched;
+
+import com.keithstellyes.machines.shared.Machine;
+import com.keithstellyes.machines.shared.MachineUtil;
+
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many machines on a few threads, a quantum of instructions at a time.
+ *
+ * A worker takes the highest priority runnable machine, the one that has waited longest
+ * among equals, runs it for a quantum and puts it back at the end of the queue. All of a
+ * machine's state is in its registers and memory, so nothing needs saving in between.
+ *
+ * A machine with a MachineInput is suspended when its next instruction would read more
+ * input than has been written, and goes back on the queue when more is written. Machines without one
+ * read their input stream as usual, which blocks a worker while it waits.
+ *
+ * Quanta are run with stepMany, the same as the plain run loop, so profilers, tracers and
+ * coverage aren't updated, but metrics and state publishers are. With a MachineInput, every
+ * instruction stepMany starts from is checked for reads first.
+ */
+public class Scheduler implements AutoCloseable {
+    public static final int DEFAULT_QUANTUM = 1 << 12;
+
+    private static final Comparator<ScheduledMachine> ORDER =
+            Comparator.comparingInt((ScheduledMachine m) -> -m.getPriority())
+                    .thenComparingLong(m -> m.sequence);
+
+    private final int quantum;
+    private final PriorityBlockingQueue<ScheduledMachine> runQueue =
+            new PriorityBlockingQueue<>(64, ORDER);
+    private final Set<ScheduledMachine> live = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    public Scheduler(int threads) {
+        this(threads, DEFAULT_QUANTUM);
+    }
+
+    public Scheduler(int threads, int quantum) {
+        if(quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.quantum = quantum;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "scheduler-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for(int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    /**
+     * Starts building the machine's schedule, it runs once the builder's submit is called.
+     */
+    public ScheduledMachine.Builder schedule(Machine machine) {
+        return new ScheduledMachine.Builder(this, machine);
+    }
+
+    /**
+     * Runs the machine at the default priority with no quotas.
+     */
+    public ScheduledMachine submit(Machine machine) {
+        return schedule(machine).submit();
+    }
+
+    /**
+     * How many machines haven't finished.
+     */
+    public int getLiveCount() {
+        live.removeIf(ScheduledMachine::isDone);
+        return live.size();
+    }
+
+    /**
+     * Stops the workers and cancels every machine that hasn't finished.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        timer.shutdownNow();
+        for(ScheduledMachine scheduled : live) {
+            scheduled.cancel();
+        }
+        live.clear();
+        runQueue.clear();
+    }
+
+    void start(ScheduledMachine scheduled) {
+        if(closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        live.add(scheduled);
+
+        MachineInput input = scheduled.getInput();
+        if(input != null) {
+            scheduled.getMachine().setInputLog(input);
+            input.setOnReady(() -> wake(scheduled));
+        }
+        long untilDeadline = scheduled.nanosUntilDeadline();
+        if(untilDeadline >= 0) {
+            // so that a machine waiting on input still gives up on time
+            timer.schedule(() -> wake(scheduled), untilDeadline, TimeUnit.NANOSECONDS);
+        }
+
+        enqueue(scheduled);
+    }
+
+    private void wake(ScheduledMachine scheduled) {
+        synchronized (scheduled) {
+            if(scheduled.wake()) {
+                enqueue(scheduled);
+            }
+        }
+    }
+
+    private void enqueue(ScheduledMachine scheduled) {
+        scheduled.sequence = sequence.getAndIncrement();
+        runQueue.add(scheduled);
+    }
+
+    private void work() {
+        while(!closed) {
+            ScheduledMachine scheduled;
+            try {
+                scheduled = runQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if(scheduled.startRunning()) {
+                runQuantum(scheduled);
+                if(scheduled.isDone()) {
+                    live.remove(scheduled);
+                }
+            } else if(scheduled.isDone()) {
+                live.remove(scheduled);
+            }
+        }
+    }
+
+    private void runQuantum(ScheduledMachine scheduled) {
+        if(scheduled.isPastDeadline()) {
+            scheduled.finish(ScheduledMachine.State.GAVE_UP);
+            return;
+        }
+
+        Machine machine = scheduled.getMachine();
+        MachineInput input = scheduled.getInput();
+        int length = scheduled.remainingInstructions(quantum);
+        int ran = 0;
+        // how many reads the instruction it stopped at needs, if it stopped for input
+        int blockedOn = 0;
+        try {
+            while(ran < length && !machine.isHalted()) {
+                int reads = input == null ? 0 : machine.nextStepReads();
+                if(reads != 0 && !input.isReady(reads)) {
+                    blockedOn = reads;
+                    break;
+                }
+                ran += machine.stepMany(length - ran);
+            }
+        } catch (RuntimeException e) {
+            scheduled.retired(ran);
+            MachineUtil.endSlice(machine, ran);
+            scheduled.fail(e);
+            return;
+        }
+        scheduled.retired(ran);
+        MachineUtil.endSlice(machine, ran);
+
+        if(machine.isHalted()) {
+            scheduled.finish(ScheduledMachine.State.HALTED);
+        } else if(scheduled.remainingInstructions(quantum) <= 0 || scheduled.isPastDeadline()) {
+            scheduled.finish(ScheduledMachine.State.GAVE_UP);
+        } else {
+            synchronized (scheduled) {
+                // checked again under the lock, so a write in between can't be missed
+                if(blockedOn != 0 && !input.isReady(blockedOn)) {
+                    scheduled.stopRunning(ScheduledMachine.State.WAITING);
+                } else if(scheduled.stopRunning(ScheduledMachine.State.RUNNABLE)) {
+                    enqueue(scheduled);
+                }
+            }
+        }
+    }
+}
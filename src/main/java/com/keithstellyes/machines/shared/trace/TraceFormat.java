@@ -0,0 +1,143 @@
+package com.keithstellyes.machines.shared.trace;
+
+import com.keithstellyes.machines.shared.Machine;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The layout of trace segment files.
+ *
+ * A trace is a series of segment files, prefix-000000.trace, prefix-000001.trace and so on.
+ * Each one starts with a header:
+ *
+ *   int magic, int version, long first step, long end offset, long reserved
+ *
+ * where the end offset is how many bytes of the file are used. Then there is one record per
+ * step, a step header followed by its actions:
+ *
+ *   step:   pc delta tagged with the action count, [action count - 7], opcode
+ *   action: address delta tagged with the kind and AT_PC, [old value], new value - old value
+ *
+ * Every field is a varint, 7 bits a byte with the top bit set on all but the last, and all
+ * but the action count are zigzag encoded first so small negative numbers stay short. A
+ * tagged field is a varint of the value shifted up past its tag: the step's tag is the
+ * action count, or 7 for 7 and more, when the count follows in a field of its own, and an
+ * action's tag is its kind, with AT_PC set when its old value is the step's pc, as it is
+ * for the write of the program counter, when the old value is left out.
+ *
+ * The pc delta is from the previous step's pc, and the address delta from the address of
+ * the previous action of the same kind, both in the same segment (from 0 for the first),
+ * so that each segment can be read on its own.
+ */
+final class TraceFormat {
+    static final int MAGIC = 0x4D545243; // "MTRC"
+    static final int VERSION = 3;
+
+    static final int HEADER_BYTES = 32;
+    static final int FIRST_STEP_OFFSET = 8;
+    static final int END_OFFSET_OFFSET = 16;
+
+    /**
+     * The most bytes a step header or an action takes.
+     */
+    static final int MAX_STEP_BYTES = 16;
+    static final int MAX_ACTION_BYTES = 16;
+
+    /**
+     * The bits of the step's and each action's tag.
+     */
+    static final int STEP_TAG_BITS = 3;
+    static final int ACTION_TAG_BITS = 4;
+    /**
+     * The step's tag when the action count is in a field of its own.
+     */
+    static final int MANY_ACTIONS = 7;
+    static final int KIND_MASK = 7;
+    static final int AT_PC = 8;
+
+    /**
+     * How many action kinds there are, see Machine.Delta, each with its own previous address.
+     */
+    static final int KINDS = Machine.Delta.HALT + 1;
+
+    static final String SUFFIX = ".trace";
+
+    private TraceFormat() { }
+
+    static Path segmentPath(Path directory, String prefix, int index) {
+        return directory.resolve(String.format("%s-%06d%s", prefix, index, SUFFIX));
+    }
+
+    /**
+     * Writes value into buffer at position.
+     * @return the position after it
+     */
+    static int putVarint(byte[] buffer, int position, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+
+        return position;
+    }
+
+    static int putSigned(byte[] buffer, int position, int value) {
+        return putVarint(buffer, position, zigzag(value));
+    }
+
+    /**
+     * Writes value, zigzag encoded, shifted up past a tag of tagBits.
+     * @return the position after it
+     */
+    static int putTagged(byte[] buffer, int position, int tag, int tagBits, int value) {
+        int zigzag = zigzag(value);
+        int first = tag | (zigzag << tagBits) & 0x7F;
+        zigzag >>>= 7 - tagBits;
+        if(zigzag == 0) {
+            buffer[position] = (byte) first;
+            return position + 1;
+        }
+        buffer[position] = (byte) (first | 0x80);
+
+        return putVarint(buffer, position + 1, zigzag);
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while(b < 0);
+
+        return value;
+    }
+
+    static int getSigned(ByteBuffer buffer) {
+        return unzigzag(getVarint(buffer));
+    }
+
+    /**
+     * The value of a tagged field whose first byte, with the tag in it, was already read.
+     */
+    static int getTagged(ByteBuffer buffer, int first, int tagBits) {
+        int zigzag = (first & 0x7F) >>> tagBits;
+        if(first < 0) {
+            zigzag |= getVarint(buffer) << (7 - tagBits);
+        }
+
+        return unzigzag(zigzag);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,131 @@
+package com.keithstellyes.machines.shared.trace;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams a trace written by TraceWriter back one step at a time, mapping one segment at a
+ * time so the trace is never loaded whole.
+ *
+ * If the oldest segments were rolled away, reading starts at the oldest one left.
+ */
+public class TraceReader {
+    private final Path directory;
+    private final String prefix;
+
+    private int segmentIndex;
+    private MappedByteBuffer segment;
+    private long end;
+    private long step;
+    private int previousPc;
+    private final int[] previousAddresses = new int[TraceFormat.KINDS];
+
+    public TraceReader(Path directory, String prefix) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentIndex = firstSegment();
+        openSegment();
+    }
+
+    /**
+     * Reads the next step into record.
+     * @return false if there are no more steps
+     */
+    public boolean next(TraceRecord record) throws IOException {
+        while(segment == null || segment.position() >= end) {
+            if(segment == null) {
+                return false;
+            }
+            segmentIndex++;
+            openSegment();
+        }
+
+        record.step = step++;
+        int first = segment.get();
+        record.pc = previousPc + TraceFormat.getTagged(segment, first, TraceFormat.STEP_TAG_BITS);
+        int size = first & TraceFormat.MANY_ACTIONS;
+        if(size == TraceFormat.MANY_ACTIONS) {
+            size += TraceFormat.getVarint(segment);
+        }
+        record.opcode = TraceFormat.getSigned(segment);
+        record.size = size;
+        record.ensureCapacity(size);
+        for(int i = 0; i < size; i++) {
+            int tagged = segment.get();
+            int kind = tagged & TraceFormat.KIND_MASK;
+            if(kind >= TraceFormat.KINDS) {
+                throw new IOException("Unknown action kind " + kind + " at step " + record.step);
+            }
+            record.kinds[i] = kind;
+            record.addresses[i] = previousAddresses[kind]
+                    + TraceFormat.getTagged(segment, tagged, TraceFormat.ACTION_TAG_BITS);
+            if((tagged & TraceFormat.AT_PC) != 0) {
+                record.oldValues[i] = record.pc;
+            } else {
+                record.oldValues[i] = TraceFormat.getSigned(segment);
+            }
+            record.newValues[i] = record.oldValues[i] + TraceFormat.getSigned(segment);
+            previousAddresses[kind] = record.addresses[i];
+        }
+        previousPc = record.pc;
+
+        return true;
+    }
+
+    /**
+     * The lowest numbered segment in the directory, since rolling may have deleted the
+     * oldest ones.
+     */
+    private int firstSegment() throws IOException {
+        String start = prefix + "-";
+        int first = Integer.MAX_VALUE;
+        try(DirectoryStream<Path> paths = Files.newDirectoryStream(directory,
+                start + "*" + TraceFormat.SUFFIX)) {
+            for(Path path : paths) {
+                String name = path.getFileName().toString();
+                try {
+                    first = Math.min(first, Integer.parseInt(name.substring(start.length(),
+                            name.length() - TraceFormat.SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // a segment of another trace whose prefix starts with ours, such as
+                    // prefix-b-000000.trace, which isn't one of ours to read
+                }
+            }
+        }
+
+        if(first == Integer.MAX_VALUE) {
+            throw new IOException("No trace " + prefix + " in " + directory);
+        }
+
+        return first;
+    }
+
+    private void openSegment() throws IOException {
+        Path path = TraceFormat.segmentPath(directory, prefix, segmentIndex);
+        if(!Files.exists(path)) {
+            segment = null;
+            return;
+        }
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if(segment.getInt() != TraceFormat.MAGIC) {
+            throw new IOException(path + " is not a trace");
+        }
+        if(segment.getInt() != TraceFormat.VERSION) {
+            throw new IOException(path + " is from an unsupported trace version");
+        }
+        step = segment.getLong();
+        end = segment.getLong();
+        segment.position(TraceFormat.HEADER_BYTES);
+        previousPc = 0;
+        Arrays.fill(previousAddresses, 0);
+    }
+}
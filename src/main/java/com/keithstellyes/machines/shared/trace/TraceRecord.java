@@ -0,0 +1,60 @@
+package com.keithstellyes.machines.shared.trace;
+
+import java.util.Arrays;
+
+/**
+ * One step read back from a trace. TraceReader reuses it for every step it reads.
+ *
+ * The actions use the same kinds as Machine.Delta.
+ */
+public class TraceRecord {
+    long step;
+    int pc;
+    int opcode;
+    int size;
+    int[] kinds = new int[4];
+    int[] addresses = new int[4];
+    int[] oldValues = new int[4];
+    int[] newValues = new int[4];
+
+    public long getStep() {
+        return step;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int action) {
+        return kinds[action];
+    }
+
+    public int getAddress(int action) {
+        return addresses[action];
+    }
+
+    public int getOldValue(int action) {
+        return oldValues[action];
+    }
+
+    public int getNewValue(int action) {
+        return newValues[action];
+    }
+
+    void ensureCapacity(int capacity) {
+        if(kinds.length < capacity) {
+            kinds = Arrays.copyOf(kinds, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+            oldValues = Arrays.copyOf(oldValues, capacity);
+            newValues = Arrays.copyOf(newValues, capacity);
+        }
+    }
+}
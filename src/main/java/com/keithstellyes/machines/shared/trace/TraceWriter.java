@@ -0,0 +1,204 @@
+package com.keithstellyes.machines.shared.trace;
+
+import com.keithstellyes.machines.shared.Machine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Records every step a machine takes, with the actions of its delta, into memory-mapped
+ * segment files, see TraceFormat for the layout.
+ *
+ * Attach it with Machine.setTraceWriter and MachineUtil's run loop will record each step.
+ * When a segment is full the next one is started, and when there are more than maxSegments
+ * the oldest is taken out of the trace and reused as the next one, so a trace of a long run
+ * keeps its most recent steps.
+ *
+ * Input actions record the location read into, but not the value read, since that is only
+ * known once the delta is applied.
+ *
+ * Records are encoded into a buffer on the heap and copied into the segment a buffer at a
+ * time, as putting them into the mapping a byte at a time costs more than running the
+ * step does. Call flush for a reader to see the buffered steps.
+ */
+public class TraceWriter implements Closeable {
+    private final Path directory;
+    private final String prefix;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    /**
+     * How many bytes of records are buffered before they're copied into the segment.
+     */
+    private static final int BUFFER_BYTES = 1 << 13;
+
+    private int segmentIndex = -1;
+    private MappedByteBuffer segment;
+    private byte[] buffer = new byte[BUFFER_BYTES];
+    private int buffered;
+    private long step;
+    private int previousPc;
+    private final int[] previousAddresses = new int[TraceFormat.KINDS];
+
+    /**
+     * @param segmentBytes the size of each file
+     * @param maxSegments how many files to keep, 0 to keep all of them
+     */
+    public TraceWriter(Path directory, String prefix, int segmentBytes, int maxSegments)
+            throws IOException {
+        if(segmentBytes < TraceFormat.HEADER_BYTES + TraceFormat.MAX_STEP_BYTES) {
+            throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes are too small");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        nextSegment();
+    }
+
+    public void record(int pc, int opcode, Machine.Delta delta) {
+        int actions = delta.size();
+        int position = startStep(pc, opcode, actions);
+        for(int i = 0; i < actions; i++) {
+            position = recordAction(position, pc, delta.getKind(i), delta.getAddress(i),
+                    delta.getOldValue(i), delta.getNewValue(i));
+        }
+        buffered = position;
+    }
+
+    /**
+     * Like record with a delta, for the run loop, which steps without building one.
+     */
+    public void record(int pc, int opcode, Machine.Delta.Builder actions) {
+        int size = actions.size();
+        int position = startStep(pc, opcode, size);
+        for(int i = 0; i < size; i++) {
+            position = recordAction(position, pc, actions.getKind(i), actions.getAddress(i),
+                    actions.getOldValue(i), actions.getNewValue(i));
+        }
+        buffered = position;
+    }
+
+    /**
+     * Makes room for the step and writes its header into the buffer.
+     * @return the position in the buffer after the header
+     */
+    private int startStep(int pc, int opcode, int actions) {
+        // the most the step could take, most take far less
+        int recordBytes = TraceFormat.MAX_STEP_BYTES + actions * TraceFormat.MAX_ACTION_BYTES;
+        if(segment.remaining() - buffered < recordBytes) {
+            try {
+                nextSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if(segment.remaining() < recordBytes) {
+                throw new IllegalStateException("A step of " + recordBytes
+                        + " bytes doesn't fit in a segment");
+            }
+        }
+        if(buffer.length - buffered < recordBytes) {
+            copyBuffer();
+            if(buffer.length < recordBytes) {
+                buffer = new byte[recordBytes];
+            }
+        }
+
+        int position = TraceFormat.putTagged(buffer, buffered,
+                Math.min(actions, TraceFormat.MANY_ACTIONS), TraceFormat.STEP_TAG_BITS,
+                pc - previousPc);
+        if(actions >= TraceFormat.MANY_ACTIONS) {
+            position = TraceFormat.putVarint(buffer, position, actions - TraceFormat.MANY_ACTIONS);
+        }
+        position = TraceFormat.putSigned(buffer, position, opcode);
+        previousPc = pc;
+        step++;
+
+        return position;
+    }
+
+    private int recordAction(int position, int pc, int kind, int address, int oldValue,
+                             int newValue) {
+        boolean atPc = oldValue == pc;
+        position = TraceFormat.putTagged(buffer, position, atPc ? kind | TraceFormat.AT_PC : kind,
+                TraceFormat.ACTION_TAG_BITS, address - previousAddresses[kind]);
+        if(!atPc) {
+            position = TraceFormat.putSigned(buffer, position, oldValue);
+        }
+        position = TraceFormat.putSigned(buffer, position, newValue - oldValue);
+        previousAddresses[kind] = address;
+
+        return position;
+    }
+
+    private void copyBuffer() {
+        segment.put(buffer, 0, buffered);
+        buffered = 0;
+    }
+
+    /**
+     * How many steps have been recorded.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Copies the buffered steps into the current segment and updates its header, so a
+     * reader sees every step recorded so far.
+     */
+    public void flush() {
+        copyBuffer();
+        segment.putLong(TraceFormat.END_OFFSET_OFFSET, segment.position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(segment != null) {
+            flush();
+            segment.force();
+            segment = null;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        if(segment != null) {
+            flush();
+        }
+
+        segmentIndex++;
+        Path path = TraceFormat.segmentPath(directory, prefix, segmentIndex);
+        OpenOption truncate = StandardOpenOption.TRUNCATE_EXISTING;
+        if(maxSegments > 0 && segmentIndex >= maxSegments) {
+            // reuse the oldest segment, whose pages are already in the page cache, instead of
+            // deleting it and having the system allocate and zero new ones as they're written
+            Path oldest = TraceFormat.segmentPath(directory, prefix, segmentIndex - maxSegments);
+            if(Files.exists(oldest)) {
+                Files.move(oldest, path, StandardCopyOption.REPLACE_EXISTING);
+                // it's already segmentBytes long, and the header says how much of it is used
+                truncate = StandardOpenOption.WRITE;
+            }
+        }
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, truncate,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segment.putInt(TraceFormat.MAGIC);
+        segment.putInt(TraceFormat.VERSION);
+        segment.putLong(step);
+        segment.putLong(TraceFormat.HEADER_BYTES);
+        segment.putLong(0);
+        previousPc = 0;
+        Arrays.fill(previousAddresses, 0);
+    }
+}
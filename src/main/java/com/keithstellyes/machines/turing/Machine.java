@@ -0,0 +1,479 @@
+package com.keithstellyes.machines.turing;
+
+import com.keithstellyes.machines.shared.Location;
+import com.keithstellyes.machines.shared.ProgramDigest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A single tape Turing machine, with up to 10 symbols, 0 the blank, and up to 26 states,
+ * A the one it starts in. Programs are written in the usual busy beaver format, a row of
+ * transitions for each state, one for each symbol read, with rows split by underscores.
+ * A transition is the symbol to write, L or R for which way to move and the state to go
+ * to, such as 1RB, and going to a state that has no row, like Z, halts the machine after
+ * that transition. --- leaves the transition out, so reading that symbol in that state
+ * halts without writing or moving.
+ *
+ * The registers are the state and the head's position. Memory is the tape, which goes on
+ * forever both ways, with positions zig-zagged onto addresses so that 0 is where the head
+ * started, 1 the cell left of it, 2 the one right of it, 3 two to the left and so on. Only
+ * as much of it as the head has been near counts towards getMemorySize.
+ *
+ * The current instruction is the transition the head is about to take, numbered by state
+ * and symbol, so a profiler counts how often each transition is taken.
+ *
+ * The tape is kept in blocks of blockSize cells, see Tape. stepMany treats each block as
+ * one symbol of a bigger machine: it works out once what the head does to a block it walks
+ * into from one side in some state, and where it leaves it, and after that does it in one
+ * go. When the head walks on into more of the same blocks and does the same to each, which
+ * is what most of a long run is, it does all of them at once, so that runs of billions of
+ * steps take a few thousand block transitions. Which block size works best depends on the
+ * machine, though bigger ones mostly do better, so blocks are as big as the block size
+ * asked for, as long as the transitions of every block still fit in MAX_MACRO_ENTRIES.
+ */
+public class Machine extends com.keithstellyes.machines.shared.Machine {
+    public final static int REG_COUNT = 2;
+    public final static int STATE_REG = 0;
+    public final static int HEAD_REG = 1;
+
+    public final static int MAX_SYMBOLS = 10;
+    public final static int MAX_STATES = 26;
+    public final static int DEFAULT_BLOCK_SIZE = 6;
+
+    /**
+     * The instruction of a halted machine, or one without a program.
+     */
+    public final static int HALTED = -1;
+
+    /**
+     * A transition is packed into an int as the symbol to write in bits 0 to 7, whether it
+     * moves right in bit 8 and the state to go to from bit 16 up.
+     */
+    private final static int UNDEFINED = -1;
+    private final static int RIGHT_BIT = 1 << 8;
+
+    /**
+     * The most block transitions kept for a program.
+     */
+    public final static int MAX_MACRO_ENTRIES = 1 << 20;
+    private final static int MACRO_UNKNOWN = -2;
+    private final static int MACRO_NONE = -1;
+
+    private final int maxBlockSize;
+    private int blockSize;
+    private Tape tape;
+    private int[] registers = new int[REG_COUNT];
+    private boolean isHalted = false;
+
+    private int stateCount;
+    private int symbolCount;
+    private int[] transitions;
+
+    /**
+     * What the head does to a block it walks into, indexed by state, block and which side
+     * it came in from, 0 for the left. macroResults is the state it leaves in times 2, plus
+     * 1 if it leaves to the right, or MACRO_NONE if it halts or never leaves.
+     */
+    private int[] macroResults;
+    private int[] macroBlocks;
+    private int[] macroSteps;
+
+    public Machine() {
+        super();
+        this.maxBlockSize = DEFAULT_BLOCK_SIZE;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+    }
+
+    public Machine(InputStream in, OutputStream out) {
+        this(in, out, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize the most cells stepMany takes at a time
+     */
+    public Machine(InputStream in, OutputStream out, int blockSize) {
+        super(in, out);
+        if(blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.maxBlockSize = blockSize;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public String getName() {
+        return "Turing Machine";
+    }
+
+    /**
+     * The tape, as far as the head has been near, is digested along with the program, and
+     * so are the state and the head's position, since any of them may have been set before
+     * the run.
+     */
+    @Override
+    public byte[] getProgramDigest() {
+        if(transitions == null) return null;
+        int lowest = tape.getLowestPosition();
+        int[] cells = new int[tape.getHighestPosition() - lowest + 1];
+        for(int i = 0; i < cells.length; i++) {
+            cells[i] = tape.read(lowest + i);
+        }
+
+        return new ProgramDigest(getName()).update(symbolCount).update(transitions)
+                .update(registers[STATE_REG]).update(registers[HEAD_REG])
+                .update(lowest).update(cells).finish();
+    }
+
+    public void loadProgram(CharSequence program) {
+        String[] rows = program.toString().trim().split("_");
+        if(rows.length > MAX_STATES) {
+            throw new IllegalArgumentException("More than " + MAX_STATES + " states");
+        }
+        int symbols = rows[0].length() / 3;
+        if(symbols < 2 || symbols > MAX_SYMBOLS) {
+            throw new IllegalArgumentException("Between 2 and " + MAX_SYMBOLS + " symbols are needed");
+        }
+
+        int[] table = new int[rows.length * symbols];
+        for(int state = 0; state < rows.length; state++) {
+            String row = rows[state];
+            if(row.length() != symbols * 3) {
+                throw new IllegalArgumentException("State " + stateName(state) + " has "
+                        + row.length() / 3 + " transitions, not " + symbols);
+            }
+            for(int symbol = 0; symbol < symbols; symbol++) {
+                table[state * symbols + symbol] = parseTransition(row.substring(symbol * 3, symbol * 3 + 3), symbols);
+            }
+        }
+
+        stateCount = rows.length;
+        symbolCount = symbols;
+        transitions = table;
+        registers = new int[REG_COUNT];
+        isHalted = false;
+        memoryWritten();
+
+        long entries = stateCount * 2L * symbols;
+        blockSize = 1;
+        while(blockSize < maxBlockSize && entries * symbols <= MAX_MACRO_ENTRIES) {
+            entries *= symbols;
+            blockSize++;
+        }
+        tape = new Tape(symbols, blockSize);
+        macroResults = new int[(int) entries];
+        Arrays.fill(macroResults, MACRO_UNKNOWN);
+        macroBlocks = new int[(int) entries];
+        macroSteps = new int[(int) entries];
+    }
+
+    private static int parseTransition(String transition, int symbols) {
+        if(transition.equals("---")) {
+            return UNDEFINED;
+        }
+        int write = transition.charAt(0) - '0';
+        char move = transition.charAt(1);
+        int next = transition.charAt(2) - 'A';
+        if(write < 0 || write >= symbols || (move != 'L' && move != 'R') || next < 0 || next >= 26) {
+            throw new IllegalArgumentException("Bad transition " + transition);
+        }
+
+        return write | (move == 'R' ? RIGHT_BIT : 0) | next << 16;
+    }
+
+    private static String stateName(int state) {
+        return String.valueOf((char) ('A' + state));
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    public int getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * How many cells stepMany takes at a time for the loaded program.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * How many cells of the tape aren't blank, the score of a busy beaver.
+     */
+    public long countNonBlank() {
+        return tape == null ? 0 : tape.countNonBlank();
+    }
+
+    /**
+     * The tape cell at position, counted from where the head started.
+     */
+    public int readTape(int position) {
+        return tape == null ? 0 : tape.read(position);
+    }
+
+    @Override
+    public int getMemorySize() {
+        if(tape == null) {
+            return 0;
+        }
+
+        return Math.max(address(tape.getLowestPosition()), address(tape.getHighestPosition())) + 1;
+    }
+
+    /**
+     * The memory address of a tape position, see the class comment.
+     */
+    public static int address(int position) {
+        return position >= 0 ? position * 2 : -position * 2 - 1;
+    }
+
+    public static int position(int address) {
+        return (address & 1) == 0 ? address / 2 : -(address + 1) / 2;
+    }
+
+    @Override
+    public int readMemoryValue(int address) {
+        return readTape(position(address));
+    }
+
+    @Override
+    public void writeMemory(int address, int value) {
+        int position = position(address);
+        if(position == tape.getPosition()) {
+            tape.write(value);
+        } else {
+            tape.write(position, value);
+        }
+        memoryWritten();
+    }
+
+    @Override
+    public int readRegister(int address) {
+        return registers[address];
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        registers[address] = value;
+        if(address == HEAD_REG) {
+            tape.seek(value);
+        }
+    }
+
+    @Override
+    public int getRegisterCount() {
+        return REG_COUNT;
+    }
+
+    @Override
+    public void writeValue(int location, int value) {
+        int addr = Location.getAddress(location);
+        if(Location.isRegister(location)) writeRegister(addr, value);
+        else writeMemory(addr, value);
+    }
+
+    @Override
+    protected void buildDelta(int instruction, Delta.Builder builder) {
+        int transition = instruction == HALTED ? UNDEFINED : transitions[instruction];
+        if(transition == UNDEFINED) {
+            builder.halt();
+            return;
+        }
+
+        int head = registers[HEAD_REG];
+        int state = registers[STATE_REG];
+        int next = transition >>> 16;
+        builder.writeMemory(address(head), tape.read(), transition & 0xFF);
+        builder.writeRegister(HEAD_REG, head, (transition & RIGHT_BIT) != 0 ? head + 1 : head - 1);
+        builder.writeRegister(STATE_REG, state, next);
+        if(next >= stateCount) {
+            builder.halt();
+        }
+    }
+
+    /**
+     * Takes a whole block transition, or as many of the same one in a row as fit in
+     * maxSteps, when the head is at the edge of a block, see the class comment.
+     */
+    @Override
+    public int stepMany(int maxSteps) {
+        if(maxSteps > 1 && macroResults != null && !isStateHashing() && !isHalted) {
+            int ran = macroStep(maxSteps);
+            if(ran != 0) {
+                registers[HEAD_REG] = tape.getPosition();
+                memoryWritten();
+                retired(ran);
+                return ran;
+            }
+        }
+
+        step();
+        return 1;
+    }
+
+    private int macroStep(int maxSteps) {
+        int offset = tape.getOffset();
+        int side;
+        if(offset == 0) {
+            side = 0;
+        } else if(offset == blockSize - 1) {
+            side = 1;
+        } else {
+            return 0;
+        }
+
+        int state = registers[STATE_REG];
+        int block = tape.getCurrent();
+        int index = ((state * tape.getBlockCount()) + block) * 2 + side;
+        if(macroResults[index] == MACRO_UNKNOWN) {
+            simulate(index, state, block, offset);
+        }
+        int result = macroResults[index];
+        int steps = macroSteps[index];
+        if(result == MACRO_NONE || steps > maxSteps) {
+            return 0;
+        }
+
+        int next = result >> 1;
+        boolean right = (result & 1) != 0;
+        long count = 1;
+        // the next block is walked into from the side this one was, in the same state
+        if(next == state && (blockSize == 1 || side == (right ? 0 : 1))) {
+            count = Math.min(1L + tape.sameAhead(right), maxSteps / steps);
+        }
+        tape.sweep(macroBlocks[index], (int) count, right);
+        registers[STATE_REG] = next;
+
+        return (int) count * steps;
+    }
+
+    /**
+     * Works out what the head does to block from offset in state, until it leaves it.
+     */
+    private void simulate(int index, int state, int block, int offset) {
+        // longer than this and it's going round in circles inside the block
+        long limit = (long) stateCount * tape.getBlockCount() * blockSize;
+        int steps = 0;
+        while(steps <= limit) {
+            int transition = transitions[state * symbolCount + tape.digit(block, offset)];
+            if(transition == UNDEFINED) {
+                break;
+            }
+            block = tape.withDigit(block, offset, transition & 0xFF);
+            offset += (transition & RIGHT_BIT) != 0 ? 1 : -1;
+            state = transition >>> 16;
+            steps++;
+            if(state >= stateCount) {
+                break;
+            }
+            if(offset < 0 || offset >= blockSize) {
+                macroResults[index] = state * 2 + (offset >= blockSize ? 1 : 0);
+                macroBlocks[index] = block;
+                macroSteps[index] = steps;
+                return;
+            }
+        }
+
+        // this block is stepped through
+        macroResults[index] = MACRO_NONE;
+    }
+
+    /**
+     * The fork has a copy of the tape and shares the program, which is never written.
+     */
+    @Override
+    public Machine fork(InputStream in, OutputStream out) {
+        Machine fork = new Machine(in, out, maxBlockSize);
+        fork.blockSize = blockSize;
+        fork.registers = registers.clone();
+        fork.isHalted = isHalted;
+        fork.stateCount = stateCount;
+        fork.symbolCount = symbolCount;
+        fork.transitions = transitions;
+        fork.tape = tape == null ? null : tape.copy();
+        if(macroResults != null) {
+            fork.macroResults = macroResults.clone();
+            fork.macroBlocks = macroBlocks.clone();
+            fork.macroSteps = macroSteps.clone();
+        }
+        forkedInto(fork);
+
+        return fork;
+    }
+
+    @Override
+    public void reset() {
+        tape = null;
+        memoryWritten();
+        registers = new int[REG_COUNT];
+        isHalted = false;
+        transitions = null;
+        macroResults = null;
+        stateCount = 0;
+        symbolCount = 0;
+    }
+
+    @Override
+    public void halt() {
+        isHalted = true;
+    }
+
+    @Override
+    public void unhalt() {
+        isHalted = false;
+    }
+
+    @Override
+    public boolean isHalted() {
+        return isHalted;
+    }
+
+    @Override
+    public int getCurrentInstruction() {
+        int state = registers[STATE_REG];
+        if(transitions == null || state >= stateCount) {
+            return HALTED;
+        }
+
+        return state * symbolCount + tape.read();
+    }
+
+    /**
+     * The state, which is as near as a Turing machine comes to one.
+     */
+    @Override
+    public int getProgramCounter() {
+        return registers[STATE_REG];
+    }
+
+    @Override
+    public int getAddressCount() {
+        return stateCount;
+    }
+
+    @Override
+    public int getOpcodeCount() {
+        return stateCount * symbolCount;
+    }
+
+    @Override
+    public int decodeOpcode(int instruction) {
+        return instruction;
+    }
+
+    /**
+     * The state and symbol of a transition, like B1.
+     */
+    @Override
+    public String getOpcodeName(int opcode) {
+        if(opcode == HALTED) {
+            return "halted";
+        }
+
+        return stateName(opcode / symbolCount) + (opcode % symbolCount);
+    }
+}
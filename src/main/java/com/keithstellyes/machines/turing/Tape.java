@@ -0,0 +1,345 @@
+package com.keithstellyes.machines.turing;
+
+import java.util.Arrays;
+
+/**
+ * A tape that goes on forever both ways, cut into blocks of blockSize cells. The block the
+ * head is on is kept apart, and the blocks either side of it are kept run-length encoded
+ * on a stack each, nearest the head on top, so a tape of millions of ones takes a few runs.
+ * A block is its cells as a base symbols number, the cell at offset 0 the lowest digit, and
+ * blocks past either end are blank, all 0.
+ *
+ * Positions count cells from where the head started, and stay within MAX_POSITION of it.
+ */
+final class Tape {
+    static final int MAX_POSITION = (1 << 30) - 1;
+
+    private final int symbols;
+    private final int blockSize;
+    private final int[] powers;
+
+    private int current;
+    private int offset;
+    /**
+     * Which block the head is on, and the lowest and highest it has been on.
+     */
+    private int block;
+    private int lowest;
+    private int highest;
+
+    private int[] leftBlocks = new int[16];
+    private int[] leftCounts = new int[16];
+    private int leftSize;
+    private int[] rightBlocks = new int[16];
+    private int[] rightCounts = new int[16];
+    private int rightSize;
+
+    Tape(int symbols, int blockSize) {
+        this.symbols = symbols;
+        this.blockSize = blockSize;
+        powers = new int[blockSize];
+        long power = 1;
+        for(int i = 0; i < blockSize; i++) {
+            powers[i] = (int) power;
+            power *= symbols;
+            if(power > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Blocks of " + blockSize + " cells of "
+                        + symbols + " symbols don't fit in an int");
+            }
+        }
+    }
+
+    /**
+     * How many different blocks there are.
+     */
+    int getBlockCount() {
+        long count = (long) powers[blockSize - 1] * symbols;
+
+        return (int) count;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * The block the head is on.
+     */
+    int getCurrent() {
+        return current;
+    }
+
+    /**
+     * Which cell of its block the head is on.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    int getPosition() {
+        return block * blockSize + offset;
+    }
+
+    int getLowestPosition() {
+        return lowest * blockSize;
+    }
+
+    int getHighestPosition() {
+        return highest * blockSize + blockSize - 1;
+    }
+
+    int digit(int block, int offset) {
+        return block / powers[offset] % symbols;
+    }
+
+    int withDigit(int block, int offset, int symbol) {
+        return block + (symbol - digit(block, offset)) * powers[offset];
+    }
+
+    int read() {
+        return digit(current, offset);
+    }
+
+    void write(int symbol) {
+        current = withDigit(current, offset, symbol);
+    }
+
+    void moveRight() {
+        if(offset < blockSize - 1) {
+            offset++;
+        } else {
+            nextBlock();
+            offset = 0;
+        }
+    }
+
+    void moveLeft() {
+        if(offset > 0) {
+            offset--;
+        } else {
+            previousBlock();
+            offset = blockSize - 1;
+        }
+    }
+
+    /**
+     * The symbol at position, wherever the head is.
+     */
+    int read(int position) {
+        int target = Math.floorDiv(position, blockSize);
+        int cell = Math.floorMod(position, blockSize);
+        if(target == block) {
+            return digit(current, cell);
+        }
+
+        int distance = Math.abs(target - block);
+        int[] blocks = target > block ? rightBlocks : leftBlocks;
+        int[] counts = target > block ? rightCounts : leftCounts;
+        for(int i = (target > block ? rightSize : leftSize) - 1; i >= 0; i--) {
+            if(distance <= counts[i]) {
+                return digit(blocks[i], cell);
+            }
+            distance -= counts[i];
+        }
+
+        return 0;
+    }
+
+    /**
+     * Writes symbol at position, wherever the head is, leaving the head where it was.
+     */
+    void write(int position, int symbol) {
+        int head = getPosition();
+        seek(position);
+        write(symbol);
+        seek(head);
+    }
+
+    /**
+     * Moves the head to position, a block at a time.
+     */
+    void seek(int position) {
+        if(position < -MAX_POSITION || position > MAX_POSITION) {
+            throw new IllegalStateException("Position " + position + " is too far from the start");
+        }
+        int target = Math.floorDiv(position, blockSize);
+        while(block < target) {
+            nextBlock();
+        }
+        while(block > target) {
+            previousBlock();
+        }
+        offset = Math.floorMod(position, blockSize);
+    }
+
+    /**
+     * How many blocks just past the head's, going right or left, are the same as the
+     * head's, which is how many more times a block transition that carries on the same way
+     * would go round.
+     */
+    int sameAhead(boolean right) {
+        int size = right ? rightSize : leftSize;
+        if(size == 0) {
+            // past the end it's all blank
+            return current == 0 ? Integer.MAX_VALUE : 0;
+        }
+        int top = size - 1;
+        int[] blocks = right ? rightBlocks : leftBlocks;
+
+        return blocks[top] == current ? (right ? rightCounts : leftCounts)[top] : 0;
+    }
+
+    /**
+     * Turns the head's block and count - 1 blocks ahead of it, all the same as it, see
+     * sameAhead, into newBlock, and moves the head past them to the edge of the next
+     * block.
+     */
+    void sweep(int newBlock, int count, boolean right) {
+        long to = (long) block + (right ? count : -count);
+        if(Math.abs(to * blockSize) > MAX_POSITION) {
+            throw new IllegalStateException("Head went too far from the start");
+        }
+        if(right) {
+            push(false, newBlock, count);
+            take(true, count - 1);
+            block = (int) to;
+            highest = Math.max(highest, block);
+            current = pop(true);
+            offset = 0;
+        } else {
+            push(true, newBlock, count);
+            take(false, count - 1);
+            block = (int) to;
+            lowest = Math.min(lowest, block);
+            current = pop(false);
+            offset = blockSize - 1;
+        }
+    }
+
+    /**
+     * How many cells aren't blank.
+     */
+    long countNonBlank() {
+        long count = nonBlank(current);
+        for(int i = 0; i < leftSize; i++) {
+            count += (long) leftCounts[i] * nonBlank(leftBlocks[i]);
+        }
+        for(int i = 0; i < rightSize; i++) {
+            count += (long) rightCounts[i] * nonBlank(rightBlocks[i]);
+        }
+
+        return count;
+    }
+
+    Tape copy() {
+        Tape copy = new Tape(symbols, blockSize);
+        copy.current = current;
+        copy.offset = offset;
+        copy.block = block;
+        copy.lowest = lowest;
+        copy.highest = highest;
+        copy.leftBlocks = leftBlocks.clone();
+        copy.leftCounts = leftCounts.clone();
+        copy.leftSize = leftSize;
+        copy.rightBlocks = rightBlocks.clone();
+        copy.rightCounts = rightCounts.clone();
+        copy.rightSize = rightSize;
+
+        return copy;
+    }
+
+    private int nonBlank(int block) {
+        int count = 0;
+        for(int i = 0; i < blockSize; i++) {
+            if(digit(block, i) != 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private void nextBlock() {
+        if(block * blockSize + blockSize > MAX_POSITION) {
+            throw new IllegalStateException("Head went too far from the start");
+        }
+        push(false, current, 1);
+        current = pop(true);
+        block++;
+        highest = Math.max(highest, block);
+    }
+
+    private void previousBlock() {
+        if(block * blockSize - 1 < -MAX_POSITION) {
+            throw new IllegalStateException("Head went too far from the start");
+        }
+        push(true, current, 1);
+        current = pop(false);
+        block--;
+        lowest = Math.min(lowest, block);
+    }
+
+    private void push(boolean right, int value, int count) {
+        int size = right ? rightSize : leftSize;
+        int[] blocks = right ? rightBlocks : leftBlocks;
+        int[] counts = right ? rightCounts : leftCounts;
+        if(size > 0 && blocks[size - 1] == value) {
+            counts[size - 1] += count;
+            return;
+        }
+
+        if(size == blocks.length) {
+            blocks = Arrays.copyOf(blocks, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+            if(right) {
+                rightBlocks = blocks;
+                rightCounts = counts;
+            } else {
+                leftBlocks = blocks;
+                leftCounts = counts;
+            }
+        }
+        blocks[size] = value;
+        counts[size] = count;
+        if(right) {
+            rightSize++;
+        } else {
+            leftSize++;
+        }
+    }
+
+    /**
+     * Takes the block on top of the stack, or a blank one if it's empty.
+     */
+    private int pop(boolean right) {
+        int size = right ? rightSize : leftSize;
+        if(size == 0) {
+            return 0;
+        }
+        int top = size - 1;
+        int value = (right ? rightBlocks : leftBlocks)[top];
+        take(right, 1);
+
+        return value;
+    }
+
+    /**
+     * Drops count blocks off the top of the stack, which are all in its top run, or blank
+     * past its end.
+     */
+    private void take(boolean right, int count) {
+        int size = right ? rightSize : leftSize;
+        if(count == 0 || size == 0) {
+            return;
+        }
+        int[] counts = right ? rightCounts : leftCounts;
+        counts[size - 1] -= count;
+        if(counts[size - 1] == 0) {
+            if(right) {
+                rightSize--;
+            } else {
+                leftSize--;
+            }
+        }
+    }
+}
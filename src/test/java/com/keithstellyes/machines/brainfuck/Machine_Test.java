@@ -1,15 +1,52 @@
 package com.keithstellyes.machines.brainfuck;
 
+import com.keithstellyes.machines.shared.Allocations;
+import com.keithstellyes.machines.shared.CycleDetector;
 import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.ZobristHash;
+import com.keithstellyes.machines.shared.batch.BatchResult;
+import com.keithstellyes.machines.shared.batch.BatchRunner;
+import com.keithstellyes.machines.shared.cache.OutputCache;
+import com.keithstellyes.machines.shared.cache.ProgramCache;
+import com.keithstellyes.machines.shared.diff.DifferentialTester;
+import com.keithstellyes.machines.shared.diff.Divergence;
+import com.keithstellyes.machines.shared.diff.Engine;
+import com.keithstellyes.machines.shared.fuzz.Finding;
+import com.keithstellyes.machines.shared.fuzz.Fuzzer;
+import com.keithstellyes.machines.shared.pipe.Pipeline;
+import com.keithstellyes.machines.shared.sched.MachineInput;
+import com.keithstellyes.machines.shared.sched.ScheduledMachine;
+import com.keithstellyes.machines.shared.sched.Scheduler;
+import com.keithstellyes.machines.shared.memory.ByteMemory;
+import com.keithstellyes.machines.shared.metrics.AggregateMetrics;
+import com.keithstellyes.machines.shared.metrics.MachineMetrics;
+import com.keithstellyes.machines.shared.trace.TraceReader;
+import com.keithstellyes.machines.shared.trace.TraceRecord;
+import com.keithstellyes.machines.shared.trace.TraceWriter;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.JMException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 import static junit.framework.TestCase.fail;
 
@@ -91,6 +128,500 @@ public class Machine_Test {
         testProgram(machine, "+[.+]", 10000, expectedOut);
     }
 
+    /**
+     * Same program as moreComplexHelloWorld, but with the tape off-heap.
+     */
+    @Test
+    public void directMemory() {
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.\n";
+        Machine directMachine = new Machine(in, out, ByteMemory.direct(Machine.MEMORY_COUNT));
+
+        testProgram(directMachine, program, 1000000, "Hello World!\n");
+    }
+
+    @Test
+    public void metrics() throws JMException {
+        AggregateMetrics batch = new AggregateMetrics("brainfuck test");
+        MachineMetrics metrics = MachineMetrics.register(machine, batch);
+        try {
+            // nothing is loaded yet
+            assertEquals(MachineMetrics.NONE, metrics.getCurrentInstruction());
+            testProgram(machine, "+[.+]", 10000, expectedLoopOutput());
+
+            assertEquals(255L, metrics.getBytesOut());
+            assertEquals(255L, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(metrics.getObjectName(), "BytesOut"));
+            assertTrue(metrics.getInstructionsRetired() > 255);
+            assertEquals(metrics.getInstructionsRetired(), batch.getInstructionsRetired());
+            assertTrue(metrics.isHalted());
+            assertEquals(1, batch.getHaltedCount());
+            // the program counter is past the end of the program once it halts
+            assertEquals(MachineMetrics.NONE, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(metrics.getObjectName(), "CurrentInstruction"));
+            assertEquals(MachineMetrics.NONE, metrics.getProgramCounter());
+        } finally {
+            metrics.unregister();
+        }
+        assertEquals(0, batch.getMachineCount());
+    }
+
+    /**
+     * Traces the Wikipedia hello world, keeping only the last few small segments, and reads
+     * the output back out of the trace, checking every step against another run of it.
+     */
+    @Test
+    public void trace() throws IOException {
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.\n";
+        Path directory = Files.createTempDirectory("bf-trace");
+        try {
+            TraceWriter writer = new TraceWriter(directory, "hello", 1 << 9, 3);
+            machine.setTraceWriter(writer);
+            testProgram(machine, program, 1000000, "Hello World!\n");
+            writer.close();
+
+            TraceReader reader = new TraceReader(directory, "hello");
+            TraceRecord record = new TraceRecord();
+            Machine replay = new Machine(in, new ByteArrayOutputStream());
+            replay.loadProgram(program);
+            StringBuilder tracedOut = new StringBuilder();
+            long firstStep = -1;
+            long lastStep = -1;
+            while(reader.next(record)) {
+                if(firstStep == -1) firstStep = record.getStep();
+                lastStep = record.getStep();
+                while(replay.getStepCount() < record.getStep()) {
+                    replay.step();
+                }
+                assertEquals(replay.getProgramCounter(), record.getPc());
+                assertEquals(replay.decodeOpcode(replay.getCurrentInstruction()), record.getOpcode());
+                Machine.Delta.Builder actions = replay.stepActions();
+                assertEquals(actions.size(), record.size());
+                for(int i = 0; i < record.size(); i++) {
+                    assertEquals(actions.getKind(i), record.getKind(i));
+                    assertEquals(actions.getAddress(i), record.getAddress(i));
+                    assertEquals(actions.getOldValue(i), record.getOldValue(i));
+                    assertEquals(actions.getNewValue(i), record.getNewValue(i));
+                }
+                for(int i = 0; i < record.size(); i++) {
+                    if(record.getKind(i) == Machine.Delta.OUTPUT) {
+                        tracedOut.append((char) record.getNewValue(i));
+                    } else if(record.getKind(i) == Machine.Delta.WRITE_MEMORY) {
+                        // hello world only uses the first seven cells, and addresses are
+                        // stored as deltas, so they would drift if reading them back were off
+                        assertTrue(record.getAddress(i) >= 0 && record.getAddress(i) < 7);
+                    }
+                }
+            }
+
+            assertTrue(firstStep > 0);
+            assertEquals(writer.getStep() - 1, lastStep);
+            assertTrue(tracedOut.length() > 0);
+            assertTrue("Hello World!\n".endsWith(tracedOut.toString()));
+            assertEquals('H', record.getOpcode());
+        } finally {
+            try(Stream<Path> paths = Files.list(directory)) {
+                paths.forEach(path -> path.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * This program never halts, but only has to run until its fifth output.
+     */
+    @Test
+    public void lazyOutput() {
+        machine.loadProgram("+[.]");
+
+        int[] firstFive = MachineUtil.outputStream(machine, MachineUtil.NEVER_GIVE_UP)
+                .limit(5).toArray();
+
+        assertEquals("[1, 1, 1, 1, 1]", Arrays.toString(firstFive));
+        assertFalse(machine.isHalted());
+        assertEquals(5, out.size());
+    }
+
+    @Test
+    public void outputCache() {
+        OutputCache cache = new OutputCache(1 << 16);
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.";
+
+        machine.loadProgram(program);
+        assertTrue(cache.run(machine, MachineUtil.NEVER_GIVE_UP));
+        String first = new String(out.toByteArray());
+        long steps = machine.getStepCount();
+        int dataPtr = machine.readRegister(Machine.DATA_PTR_REG);
+        int[] memory = new int[machine.getMemorySize()];
+        for(int i = 0; i < memory.length; i++) {
+            memory[i] = machine.readMemoryValue(i);
+        }
+        out.reset();
+        machine.reset();
+        machine.loadProgram(program);
+        long before = machine.getStepCount();
+        assertTrue(cache.run(machine, MachineUtil.NEVER_GIVE_UP));
+
+        assertEquals("Hello World!\n", first);
+        assertEquals(first, new String(out.toByteArray()));
+        assertTrue(machine.isHalted());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // the hit ends where the run did
+        assertEquals(before + steps, machine.getStepCount());
+        assertEquals(dataPtr, machine.readRegister(Machine.DATA_PTR_REG));
+        for(int i = 0; i < memory.length; i++) {
+            assertEquals(memory[i], machine.readMemoryValue(i));
+        }
+
+        // with the first cell set beforehand, it's a different run
+        out.reset();
+        machine.reset();
+        machine.loadProgram(program);
+        machine.writeMemory(0, 1);
+        assertTrue(cache.run(machine, MachineUtil.NEVER_GIVE_UP));
+        assertFalse(first.equals(new String(out.toByteArray())));
+        assertEquals(1, cache.getHits());
+
+        Machine echo = new Machine(new ByteArrayInputStream(new byte[] {'a'}), out);
+        echo.loadProgram(",.");
+        assertTrue(cache.run(echo, MachineUtil.NEVER_GIVE_UP));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void programCache() throws IOException {
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.";
+        ProgramCache cache = new ProgramCache(Files.createTempDirectory("programs"));
+        machine.loadProgram(program, cache);
+        Machine cached = new Machine(in, out);
+        cached.loadProgram(program, cache);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(MachineUtil.runMachineUntilHalt(cached, MachineUtil.NEVER_GIVE_UP));
+        assertEquals("Hello World!\n", new String(out.toByteArray()));
+    }
+
+    /**
+     * Hangs if the first byte of input is 'A'.
+     */
+    @Test
+    public void fuzzer() {
+        StringBuilder program = new StringBuilder(",");
+        for(int i = 0; i < 'A'; i++) {
+            program.append('-');
+        }
+        program.append(">+<[>-<[-]]>[]");
+
+        Fuzzer<Machine> fuzzer = new Fuzzer<>(() -> new Machine(in, new ByteArrayOutputStream()),
+                m -> m.loadProgram(program), 10_000);
+        fuzzer.setSeed(1);
+        fuzzer.addSeed(new byte[] {'B'});
+        fuzzer.run(2, 20_000);
+
+        List<Finding> findings = fuzzer.getFindings();
+        assertFalse(findings.isEmpty());
+        assertEquals(Finding.Kind.HANG, findings.get(0).getKind());
+        assertEquals('A', findings.get(0).getInput()[0]);
+        assertTrue(fuzzer.getCorpus().size() > 1);
+    }
+
+    @Test
+    public void cycleDetection() {
+        // the second cell wraps around, so the state repeats every 256 trips around the loop
+        Machine looping = new Machine(in, new ByteArrayOutputStream());
+        looping.loadProgram("+[>+<]");
+        CycleDetector detector = new CycleDetector();
+        looping.setCycleDetector(detector);
+
+        assertFalse(MachineUtil.runMachineUntilHalt(looping, 100_000_000));
+        assertTrue(detector.isNonTerminating());
+        assertEquals(256 * 5, detector.getCycleLength());
+        assertTrue(looping.getStepCount() < 10_000);
+        assertEquals(ZobristHash.of(looping), looping.getStateHash());
+
+        // reading input every time around, it can't be proven to loop
+        Machine reading = new Machine(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        reading.loadProgram(",[,]");
+        reading.setCycleDetector(new CycleDetector());
+        assertFalse(MachineUtil.runMachineUntilHalt(reading, 100_000));
+        assertFalse(reading.getCycleDetector().isNonTerminating());
+        assertEquals(100_000, reading.getStepCount());
+
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.\n";
+        machine.setCycleDetector(new CycleDetector());
+        testProgram(machine, program, 1000000, "Hello World!\n");
+        assertFalse(machine.getCycleDetector().isNonTerminating());
+    }
+
+    /**
+     * Forks share the tape's pages, so none of them can see what another writes.
+     */
+    @Test
+    public void fork() {
+        String program = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.\n";
+        ByteArrayOutputStream parentOut = new ByteArrayOutputStream();
+        Machine parent = new Machine(in, parentOut, ByteMemory.paged(Machine.MEMORY_COUNT));
+        parent.loadProgram(program);
+        assertFalse(MachineUtil.runMachineUntilHalt(parent, 400));
+        String before = parentOut.toString();
+
+        for(int i = 0; i < 100; i++) {
+            ByteArrayOutputStream forkOut = new ByteArrayOutputStream();
+            com.keithstellyes.machines.shared.Machine fork = parent.fork(in, forkOut);
+            assertEquals(400, fork.getStepCount());
+            assertTrue(MachineUtil.runMachineUntilHalt(fork, 1000000));
+            assertEquals("Hello World!\n", before + forkOut.toString());
+        }
+
+        assertTrue(MachineUtil.runMachineUntilHalt(parent, 1000000));
+        assertEquals("Hello World!\n", parentOut.toString());
+    }
+
+    /**
+     * Fills in some of the tape before reading anything, then prints each byte of input
+     * plus one, up to a 0.
+     */
+    @Test
+    public void batchRunner() {
+        String program = "++++++++[>++++++++[>++++++++<-]<-]>>>,[+.[-],]";
+        List<byte[]> inputs = Arrays.asList(new byte[] {1, 2, 3, 0}, new byte[] {1, 2, 4, 0},
+                new byte[] {1, 2, 0}, new byte[] {7, 0}, new byte[] {1, 2, 3, 4, 5, 0});
+        Machine prototype = new Machine(in, new ByteArrayOutputStream(), ByteMemory.paged(Machine.MEMORY_COUNT));
+        prototype.loadProgram(program);
+        BatchRunner batch = new BatchRunner(prototype, 100_000);
+        batch.setSharedPrefixLength(4);
+
+        List<BatchResult> results = batch.runAll(inputs);
+        long shared = 0;
+        for(int i = 0; i < inputs.size(); i++) {
+            ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+            Machine alone = new Machine(new ByteArrayInputStream(inputs.get(i)), expectedOut);
+            alone.loadProgram(program);
+            assertTrue(MachineUtil.runMachineUntilHalt(alone, 100_000));
+
+            assertTrue(results.get(i).isHalted());
+            assertTrue(Arrays.equals(expectedOut.toByteArray(), results.get(i).getOutput()));
+            assertEquals(alone.getStepCount(), results.get(i).getStepCount());
+            shared += alone.getStepCount();
+        }
+        assertTrue(prototype.getStepCount() == 0);
+        // the setup is 434 steps, later jobs also start from after reading 1, 2
+        assertTrue(batch.getStepsShared() > inputs.size() * 434);
+        assertTrue(batch.getStepsShared() < shared);
+    }
+
+    @Test
+    public void scheduler() throws InterruptedException, ExecutionException, TimeoutException {
+        try(Scheduler scheduler = new Scheduler(1, 100)) {
+            Machine spinner = new Machine(in, new ByteArrayOutputStream());
+            spinner.loadProgram("+[]");
+            ScheduledMachine spinning = scheduler.schedule(spinner).instructionQuota(100_000).submit();
+
+            machine.loadProgram(",.");
+            MachineInput input = new MachineInput();
+            ScheduledMachine echo = scheduler.schedule(machine).input(input).submit();
+            while(echo.getState() != ScheduledMachine.State.WAITING) {
+                Thread.sleep(1);
+            }
+            input.write('x');
+
+            assertTrue(echo.getFuture().get(10, TimeUnit.SECONDS));
+            assertEquals("x", new String(out.toByteArray()));
+            assertFalse(spinning.getFuture().get(10, TimeUnit.SECONDS));
+            assertEquals(100_000, spinning.getInstructionsRun());
+            assertEquals(0, scheduler.getLiveCount());
+        }
+    }
+
+    /**
+     * ,, is one instruction that reads twice, so it waits for both bytes rather than
+     * reading the end of input after the first.
+     */
+    @Test
+    public void schedulerWaitsForEveryRead() throws InterruptedException, ExecutionException,
+            TimeoutException {
+        try(Scheduler scheduler = new Scheduler(1)) {
+            machine.loadProgram(",,.");
+            MachineInput input = new MachineInput();
+            input.write('a');
+            ScheduledMachine echo = scheduler.schedule(machine).input(input).submit();
+            while(echo.getState() != ScheduledMachine.State.WAITING && !echo.getFuture().isDone()) {
+                Thread.sleep(1);
+            }
+            assertEquals(ScheduledMachine.State.WAITING, echo.getState());
+            assertEquals(0, machine.getStepCount());
+            input.write('b');
+
+            assertTrue(echo.getFuture().get(10, TimeUnit.SECONDS));
+            assertEquals("b", new String(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void pipeline() throws InterruptedException {
+        StringBuilder shift = new StringBuilder();
+        for(int i = 0; i < 13; i++) {
+            shift.append(",+.");
+        }
+        Pipeline pipeline = new Pipeline.Builder(in, out).capacity(4)
+                .stage(Machine::new, m -> m.loadProgram("++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++."))
+                .stage(Machine::new, m -> m.loadProgram(shift))
+                .build();
+
+        assertTrue(pipeline.run(MachineUtil.NEVER_GIVE_UP));
+        assertEquals("Ifmmp!Xpsme\"\u000b", new String(out.toByteArray()));
+    }
+
+    @Test
+    public void runLoopDoesNotAllocate() {
+        machine = new Machine(in, Allocations.DISCARD);
+        machine.loadProgram("+[>+++.>[-]+<<]");
+
+        assertEquals(0, Allocations.runLoop(machine, 100_000, 1_000_000));
+        assertFalse(machine.isHalted());
+    }
+
+    @Test
+    public void differential() {
+        Random random = new Random(1);
+        for(int i = 0; i < 50; i++) {
+            String program = randomProgram(random, 60);
+            byte[] input = new byte[8];
+            random.nextBytes(input);
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(input), out);
+                m.loadProgram(program);
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 64);
+
+            Divergence divergence = tester.run(5_000);
+            assertTrue(program + "\n" + divergence, divergence == null);
+        }
+    }
+
+    @Test
+    public void tiers() {
+        List<Tier> promotions = new ArrayList<>();
+        machine.setTierThresholds(10, 50);
+        machine.setTierListener((header, tier, backEdges, nanos) -> {
+            assertEquals(1, header);
+            promotions.add(tier);
+        });
+        // 255 times round the loop at 1, with [-] in it each time
+        testProgram(machine, "+[.+>+[-]<]", 100_000, expectedLoopOutput());
+
+        assertEquals(Arrays.asList(Tier.OPTIMIZED, Tier.COMPILED), promotions);
+        assertEquals(Tier.COMPILED, machine.getTier(1));
+        assertEquals(Tier.INTERPRETED, machine.getTier(6));
+    }
+
+    @Test
+    public void tieredDifferential() {
+        Random random = new Random(2);
+        for(int i = 0; i < 200; i++) {
+            String program = randomProgram(random, 60);
+            byte[] input = new byte[8];
+            random.nextBytes(input);
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(input), out);
+                m.setTierThresholds(2, 4);
+                m.loadProgram(program);
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 64);
+
+            Divergence divergence = tester.run(20_000);
+            assertTrue(program + "\n" + divergence, divergence == null);
+        }
+    }
+
+    @Test
+    public void balancedLoopsNearTheEdge() {
+        StringBuilder edge = new StringBuilder();
+        for(int i = 0; i < Machine.MEMORY_COUNT - 8; i++) {
+            edge.append('>');
+        }
+        Random random = new Random(3);
+        for(int i = 0; i < 100; i++) {
+            // the first loop moves well past the edge, wrapping round to the start
+            String program = edge + "+[>>>>>>>>>>>>+<<<<<<<<<<<<+]" + randomProgram(random, 60);
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(new byte[8]), out);
+                m.setTierThresholds(2, 4);
+                m.loadProgram(program);
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 256);
+
+            Divergence divergence = tester.run(20_000);
+            assertTrue(program + "\n" + divergence, divergence == null);
+        }
+    }
+
+    /**
+     * A balanced loop's closing bracket goes back past its opening one, so the range is only
+     * checked on the way in, but the opening bracket still counts as a step every trip.
+     */
+    @Test
+    public void checkedLoopsCheckOnce() {
+        int[] program = {Machine.buildInstruction('[', 6), Machine.buildInstruction('.', 1),
+                Machine.buildInstruction('>', 1), Machine.buildInstruction('+', 1),
+                Machine.buildInstruction('<', 1), Machine.buildInstruction('-', 1),
+                Machine.buildInstruction(']', 0)};
+        LoopCode code = LoopCode.compile(program, 0);
+        int close = code.kinds.length - 1;
+        assertEquals(LoopCode.OPEN_CHECKED, code.kinds[0]);
+        assertEquals(LoopCode.CLOSE_CHECKED, code.kinds[close]);
+        assertEquals(1, code.jumps[close]);
+
+        for(CompiledLoop loop : new CompiledLoop[]{code, LoopCompiler.compile(code)}) {
+            ByteMemory memory = ByteMemory.heap(Machine.MEMORY_COUNT);
+            memory.write(10, (byte) 3);
+            int[] state = new int[CompiledLoop.STATE_SIZE];
+            // the opening bracket, six steps a trip, and the opening bracket again twice
+            assertEquals(21, loop.run(memory, machine, 10, 1_000, state));
+            assertEquals(program.length, state[CompiledLoop.PC]);
+            assertEquals(10, state[CompiledLoop.DATA_PTR]);
+            assertEquals(2, state[CompiledLoop.BACK_EDGES]);
+            assertEquals(3, memory.read(11));
+
+            // with no budget left for the opening bracket, it stops at the closing one
+            memory.write(10, (byte) 3);
+            assertEquals(6, loop.run(memory, machine, 10, 7, state));
+            assertEquals(close, state[CompiledLoop.PC]);
+            assertEquals(0, state[CompiledLoop.BACK_EDGES]);
+        }
+    }
+
+    /**
+     * A random program with balanced brackets.
+     */
+    private static String randomProgram(Random random, int length) {
+        StringBuilder sb = new StringBuilder(">>>>");
+        int open = 0;
+        for(int i = 0; i < length; i++) {
+            char c = "+-<>[].,".charAt(random.nextInt(8));
+            if(c == ']' && open == 0) {
+                continue;
+            }
+            open += c == '[' ? 1 : c == ']' ? -1 : 0;
+            sb.append(c);
+        }
+        while(open-- > 0) {
+            sb.append(']');
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] expectedLoopOutput() {
+        byte[] expectedOut = new byte[255];
+        for(int i = 0; i < 255; i++) {
+            expectedOut[i] = (byte) (i + 1);
+        }
+
+        return expectedOut;
+    }
+
     private void testProgram(Machine machine, CharSequence program, int giveUpCounter,
                              String expectedOut) {
         try {
@@ -1,14 +1,29 @@
 package com.keithstellyes.machines.lmc;
 
+import com.keithstellyes.machines.shared.Allocations;
+import com.keithstellyes.machines.shared.CycleDetector;
 import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.Profiler;
 import com.keithstellyes.machines.shared.ShortMemoryBuilder;
+import com.keithstellyes.machines.shared.diff.DifferentialTester;
+import com.keithstellyes.machines.shared.diff.Divergence;
+import com.keithstellyes.machines.shared.diff.Engine;
+import com.keithstellyes.machines.shared.memory.ShortMemory;
+import com.keithstellyes.machines.shared.replay.InputRecorder;
+import com.keithstellyes.machines.shared.replay.InputReplayer;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -40,6 +55,87 @@ public class Machine_Test {
         assertTrue(machine.isHalted());
     }
 
+    @Test
+    public void input() {
+        machine = new Machine(new ByteArrayInputStream(new byte[]{42}), out);
+        machine.writeMemory(0, Machine.buildInstruction(Machine.IO, Machine.IO_ARG_IN));
+        machine.parseInstruction(machine.getCurrentInstruction()).apply(machine);
+        assertEquals(42, machine.readRegister(Machine.ACCUMULATOR_REG));
+        assertEquals(1, machine.readRegister(Machine.PROGRAM_COUNTER_REG));
+    }
+
+    /**
+     * A program written into a mapped file can be run by a second machine mapping the
+     * same file read-only.
+     */
+    @Test
+    public void mappedMemory() throws IOException {
+        Path image = Files.createTempFile("lmc", ".img");
+        try {
+            ShortMemory writable = ShortMemory.mapped(image, 100, false);
+            writable.write(0, Machine.buildInstruction(Machine.LDA, 3));
+            writable.write(1, Machine.buildInstruction(Machine.IO, Machine.IO_ARG_OUT));
+            writable.write(2, Machine.buildInstruction(Machine.HLT, 0));
+            writable.write(3, (short) 'A');
+
+            ShortMemory readOnly = ShortMemory.mapped(image, 100, true);
+            assertTrue(readOnly.isReadOnly());
+            machine = new Machine(in, out, readOnly);
+            assertTrue(MachineUtil.runMachineUntilHalt(machine, 10));
+            assertEquals("A", out.toString());
+        } finally {
+            Files.delete(image);
+        }
+    }
+
+    /**
+     * Records a run that adds up its input, then replays it with no input stream at all,
+     * once normally and once with output thrown away.
+     */
+    @Test
+    public void recordAndReplay() throws IOException {
+        int sumLoc = addDatum(0);
+        int loopBegin = addInstruction(Machine.IO, Machine.IO_ARG_IN);
+        addInstruction(Machine.BRZ, 0);
+        addInstruction(Machine.ADD, sumLoc);
+        addInstruction(Machine.STA, sumLoc);
+        addInstruction(Machine.IO, Machine.IO_ARG_OUT);
+        addInstruction(Machine.BRA, loopBegin);
+        int allDone = addInstruction(Machine.HLT, 0);
+        setMemoryInstruction(loopBegin + 1, Machine.BRZ, allDone);
+
+        Path log = Files.createTempFile("lmc", ".iolog");
+        try {
+            machine = new Machine(new ByteArrayInputStream(new byte[]{3, 4, 5, 0}), out);
+            machine.loadProgram(memoryBuilder.getMemory());
+            InputRecorder recorder = new InputRecorder(log);
+            machine.setInputLog(recorder);
+            assertTrue(MachineUtil.runMachineUntilHalt(machine, 100));
+            recorder.close();
+            byte[] recordedOut = out.toByteArray();
+
+            ByteArrayOutputStream replayedOut = new ByteArrayOutputStream();
+            machine = new Machine(null, replayedOut);
+            machine.loadProgram(memoryBuilder.getMemory());
+            InputReplayer replayer = new InputReplayer(log);
+            machine.setInputLog(replayer);
+            assertTrue(MachineUtil.runMachineUntilHalt(machine, 100));
+            assertTrue(replayer.isFinished());
+            assertEquals(new String(recordedOut), new String(replayedOut.toByteArray()));
+
+            ByteArrayOutputStream discardedOut = new ByteArrayOutputStream();
+            machine = new Machine(null, discardedOut);
+            machine.loadProgram(memoryBuilder.getMemory());
+            machine.setInputLog(new InputReplayer(log));
+            machine.setDiscardOutput(true);
+            assertTrue(MachineUtil.runMachineUntilHalt(machine, 100));
+            assertEquals(0, discardedOut.size());
+            assertEquals(12, machine.readMemoryValue(sumLoc));
+        } finally {
+            Files.delete(log);
+        }
+    }
+
     /**
      * Tests a simple program with a count-down to 0, each
      * iteration of a loop adding the ASCII '0' to output
@@ -78,6 +174,41 @@ public class Machine_Test {
         }
     }
 
+    /**
+     * Counts down from 5, the loop is 4 instructions and runs 5 times.
+     */
+    @Test
+    public void profiler() throws IOException {
+        int counterLoc = addDatum(5);
+        int constOneLoc = addDatum(1);
+
+        addInstruction(Machine.LDA, counterLoc);
+        int loopBegin = addInstruction(Machine.SUB, constOneLoc);
+        addInstruction(Machine.IO, Machine.IO_ARG_OUT);
+        int branch = addInstruction(Machine.BRZ, 0);
+        addInstruction(Machine.BRA, loopBegin);
+        int allDone = addInstruction(Machine.HLT, 0);
+        setMemoryInstruction(branch, Machine.BRZ, allDone);
+
+        machine.loadProgram(memoryBuilder.getMemory());
+        Profiler profiler = new Profiler(machine);
+        machine.setProfiler(profiler);
+        assertTrue(MachineUtil.runMachineUntilHalt(machine, 100));
+
+        assertEquals(5, profiler.getOpcodeCount(Machine.SUB));
+        assertEquals(5, profiler.getOpcodeCount(Machine.IO));
+        assertEquals(1, profiler.getOpcodeCount(Machine.HLT));
+        assertEquals(5, profiler.getAddressHits(loopBegin));
+        assertEquals(1, profiler.getTakenBranches(branch));
+        assertEquals(4, profiler.getTakenBranches(branch + 1));
+        assertEquals(1 + 4 * 4 + 3 + 1, profiler.getRetiredCount());
+        assertEquals(loopBegin, (int) profiler.hotSpots(1).get(0));
+
+        StringBuilder csv = new StringBuilder();
+        profiler.writeOpcodeCsv(csv);
+        assertTrue(csv.toString().contains("\n2,SUB,5\n"));
+    }
+
     /**
      * Prints a NUL-terminated string. The only way to support array-indexing is to
      * do arithmetic against a load instruction.
@@ -121,6 +252,195 @@ public class Machine_Test {
         }
     }
 
+    /**
+     * Counts forever, storing and printing each count.
+     */
+    @Test
+    public void runLoopDoesNotAllocate() {
+        machine = new Machine(in, Allocations.DISCARD);
+        int count = addDatum(0);
+        int one = addDatum(1);
+        int start = addInstruction(Machine.LDA, count);
+        addInstruction(Machine.ADD, one);
+        addInstruction(Machine.STA, count);
+        addInstruction(Machine.IO, Machine.IO_ARG_OUT);
+        addInstruction(Machine.BRA, start);
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        assertEquals(0, Allocations.runLoop(machine, 100_000, 1_000_000));
+        assertFalse(machine.isHalted());
+    }
+
+    /**
+     * Flips an instruction of a loop between ADD 0 and ADD 1 on every trip. Each flip
+     * forgets what was found about the loop, until it is given up on instead of being
+     * walked again on every trip.
+     */
+    @Test
+    public void selfModifyingRunLoopDoesNotAllocate() {
+        machine = new Machine(in, Allocations.DISCARD);
+        int sum = addDatum(Machine.buildInstruction(Machine.ADD, 0)
+                + Machine.buildInstruction(Machine.ADD, 1));
+        int start = addInstruction(Machine.LDA, sum);
+        int sub = addInstruction(Machine.SUB, 0);
+        int sta = addInstruction(Machine.STA, 0);
+        int flipped = addInstruction(Machine.ADD, 0);
+        addInstruction(Machine.BRA, start);
+        setMemoryInstruction(sub, Machine.SUB, flipped);
+        setMemoryInstruction(sta, Machine.STA, flipped);
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        assertEquals(0, Allocations.runLoop(machine, 100_000, 1_000_000));
+        assertFalse(machine.isHalted());
+    }
+
+    @Test
+    public void differential() {
+        Random random = new Random(1);
+        for(int i = 0; i < 50; i++) {
+            short[] program = new short[100];
+            for(int j = 0; j < program.length; j++) {
+                program[j] = Machine.buildInstruction(random.nextInt(10), random.nextInt(100));
+            }
+            byte[] input = new byte[8];
+            random.nextBytes(input);
+
+            Divergence divergence = differentialTester(program, input, Engine.RUN_LOOP).run(5_000);
+            assertNull(String.valueOf(divergence), divergence);
+        }
+    }
+
+    /**
+     * The accumulator wraps around, so this comes back to the same state, but only after
+     * a couple of thousand steps.
+     */
+    @Test
+    public void cycleDetection() {
+        short[] program = {Machine.buildInstruction(Machine.ADD, 3),
+                Machine.buildInstruction(Machine.BRA, 0), 0, 1};
+        machine.loadProgram(program);
+        CycleDetector detector = new CycleDetector();
+        machine.setCycleDetector(detector);
+
+        assertFalse(MachineUtil.runMachineUntilHalt(machine, 100_000_000));
+        assertTrue(detector.isNonTerminating());
+        assertEquals(2000, detector.getCycleLength());
+        assertTrue(machine.getStepCount() < 20_000);
+    }
+
+    /**
+     * An engine that gets step 37 wrong is caught at exactly that step.
+     */
+    @Test
+    public void differentialFindsDivergence() {
+        short[] program = {Machine.buildInstruction(Machine.ADD, 4),
+                Machine.buildInstruction(Machine.STA, 5),
+                Machine.buildInstruction(Machine.BRA, 0), 0, 1};
+        Engine buggy = (m, steps) -> {
+            for(int i = 0; i < steps && !m.isHalted(); i++) {
+                m.step();
+                if(m.getStepCount() == 38) {
+                    m.writeMemory(4, 2);
+                }
+            }
+        };
+
+        Divergence divergence = differentialTester(program, new byte[0], buggy).run(5_000);
+        assertEquals(37, divergence.getStep());
+        assertEquals(1, divergence.getProgramCounter());
+        assertEquals("STA", divergence.getOpcodeName());
+        assertEquals("[memory 4: 1 != 2]", divergence.getDifferences().toString());
+    }
+
+    /**
+     * Adds add to a total count times, stepMany skips the whole loop but the trip that
+     * sees the count at 0, and stops short of the add that would overflow.
+     */
+    @Test
+    public void countedLoop() {
+        assertEquals(2400, countedLoop(300, 3, Machine.MATH_MODE.OVERFLOW));
+        assertEquals(2400, countedLoop(300, 3, Machine.MATH_MODE.SATURATION));
+        assertEquals(8 * 142, countedLoop(300, 7, Machine.MATH_MODE.OVERFLOW));
+        assertEquals(8 * 142, countedLoop(300, 7, Machine.MATH_MODE.SATURATION));
+    }
+
+    /**
+     * @return how many instructions the first stepMany ran
+     */
+    private static int countedLoop(int count, int add, Machine.MATH_MODE mathMode) {
+        short[] program = {Machine.buildInstruction(Machine.LDA, 9),
+                Machine.buildInstruction(Machine.BRZ, 8),
+                Machine.buildInstruction(Machine.SUB, 10),
+                Machine.buildInstruction(Machine.STA, 9),
+                Machine.buildInstruction(Machine.LDA, 12),
+                Machine.buildInstruction(Machine.ADD, 11),
+                Machine.buildInstruction(Machine.STA, 12),
+                Machine.buildInstruction(Machine.BRA, 0),
+                Machine.buildInstruction(Machine.HLT, 0),
+                (short) count, 1, (short) add, 0};
+        DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+            Machine m = new Machine(new ByteArrayInputStream(new byte[0]), out);
+            m.loadProgram(program);
+            m.setMathMode(mathMode);
+            return m;
+        }, Engine.REFERENCE, Engine.RUN_LOOP, 10_000);
+        Divergence divergence = tester.run(100_000);
+        assertNull(String.valueOf(divergence), divergence);
+
+        Machine machine = new Machine();
+        machine.loadProgram(program);
+        machine.setMathMode(mathMode);
+        return machine.stepMany(100_000);
+    }
+
+    /**
+     * Counts down from 1 and then from 300 with the same loop. The first time the loop is
+     * branched back to is its last trip, which doesn't come back, but the loop is walked
+     * again when it's next branched to and skipped over from then on.
+     */
+    @Test
+    public void loopFoundOnALaterTrip() {
+        short[] program = {Machine.buildInstruction(Machine.LDA, 16),
+                Machine.buildInstruction(Machine.STA, 15),
+                Machine.buildInstruction(Machine.LDA, 15),
+                Machine.buildInstruction(Machine.BRZ, 7),
+                Machine.buildInstruction(Machine.SUB, 18),
+                Machine.buildInstruction(Machine.STA, 15),
+                Machine.buildInstruction(Machine.BRA, 2),
+                Machine.buildInstruction(Machine.LDA, 17),
+                Machine.buildInstruction(Machine.BRZ, 14),
+                Machine.buildInstruction(Machine.STA, 15),
+                Machine.buildInstruction(Machine.LDA, 19),
+                Machine.buildInstruction(Machine.STA, 17),
+                Machine.buildInstruction(Machine.BRA, 2),
+                Machine.buildInstruction(Machine.HLT, 0),
+                Machine.buildInstruction(Machine.HLT, 0),
+                0, 1, 300, 1, 0};
+        Divergence divergence = differentialTester(program, new byte[0], Engine.RUN_LOOP)
+                .run(10_000);
+        assertNull(String.valueOf(divergence), divergence);
+
+        Machine machine = new Machine();
+        machine.loadProgram(program);
+        int calls = 0;
+        while(!machine.isHalted()) {
+            machine.stepMany(10_000);
+            calls++;
+        }
+        // 5 for every trip, 2 for each way out of the loop and 11 around it
+        assertEquals(5 * (1 + 300) + 2 * 2 + 11, machine.getStepCount());
+        assertTrue(String.valueOf(calls), calls < 50);
+    }
+
+    private static DifferentialTester<Machine> differentialTester(short[] program, byte[] input,
+                                                                  Engine candidate) {
+        return new DifferentialTester<>(out -> {
+            Machine m = new Machine(new ByteArrayInputStream(input), out);
+            m.loadProgram(program);
+            return m;
+        }, Engine.REFERENCE, candidate, 64);
+    }
+
     private int addInstruction(int opcode, int argument) {
         return memoryBuilder.addInstruction(Machine.buildInstruction(opcode, argument));
     }
@@ -1,16 +1,39 @@
 package com.keithstellyes.machines.malbolge;
 
+import com.keithstellyes.machines.shared.Allocations;
 import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.cache.ProgramCache;
+import com.keithstellyes.machines.shared.diff.DifferentialTester;
+import com.keithstellyes.machines.shared.diff.Divergence;
+import com.keithstellyes.machines.shared.diff.Engine;
+import com.keithstellyes.machines.shared.diff.StateHash;
+import com.keithstellyes.machines.shared.memory.IntMemory;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
 
 public class Machine_Test {
+    /**
+     * Reads until it gets EOF, then halts after 59,221 steps.
+     */
+    private static final String LONG_RUNNING = "@]";
+
     InputStream in;
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     Machine machine = new Machine(in, out);
@@ -18,16 +41,86 @@ public class Machine_Test {
     @Test
     public void helloWorld() {
         String program = " (=<`#9]~6ZY32Vx/4Rs+0No-&Jk)\"Fh}|Bcy?`=*z]Kw%oG4UUS0/@-ejc(:'8dc\n";
-        String hello = "HELLO WORLD!";
+        String hello = "Hello World!";
         machine.loadProgram(program);
 
         assertTrue(MachineUtil.runMachineUntilHalt(machine, Integer.MAX_VALUE));
-        byte[] actualOut = out.toByteArray();
-        for(int i = 0; i < hello.length(); i++) {
-            assertEquals(hello.charAt(i), actualOut[i]);
+        assertEquals(hello, new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void programCache() throws IOException {
+        String program = " (=<`#9]~6ZY32Vx/4Rs+0No-&Jk)\"Fh}|Bcy?`=*z]Kw%oG4UUS0/@-ejc(:'8dc\n";
+        Path directory = Files.createTempDirectory("programs");
+        machine.loadProgram(program, new ProgramCache(directory));
+
+        ProgramCache cache = new ProgramCache(directory);
+        Machine cached = new Machine(in, out);
+        cached.loadProgram(program, cache);
+
+        assertEquals(1, cache.getHits());
+        assertNotNull(cached.getProgramDigest());
+        assertTrue(Arrays.equals(machine.getProgramDigest(), cached.getProgramDigest()));
+        for(int i = 0; i < machine.getAddressCount(); i++) {
+            assertEquals(machine.readMemoryValue(i), cached.readMemoryValue(i));
         }
     }
 
+    @Test
+    public void runLoopDoesNotAllocate() {
+        machine = new Machine(new ByteArrayInputStream(new byte[0]), Allocations.DISCARD);
+        machine.loadProgram(LONG_RUNNING);
+
+        assertEquals(0, Allocations.runLoop(machine, 10_000, 20_000));
+        assertFalse(machine.isHalted());
+    }
+
+    @Test
+    public void differential() {
+        Random random = new Random(1);
+        for(int i = 0; i < 20; i++) {
+            StringBuilder program = new StringBuilder();
+            int length = 2 + random.nextInt(40);
+            for(int j = 0; j < length; j++) {
+                program.append((char) (33 + random.nextInt(94)));
+            }
+            byte[] input = new byte[8];
+            random.nextBytes(input);
+
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(input), out);
+                m.loadProgram(program.toString());
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 256);
+            Divergence divergence = tester.run(2_000);
+            assertNull(String.valueOf(divergence), divergence);
+        }
+    }
+
+    /**
+     * With paged memory, a fork only costs its registers and page table until it writes.
+     */
+    @Test
+    public void forkIsCheap() {
+        Machine parent = new Machine(new ByteArrayInputStream(new byte[0]), out,
+                IntMemory.paged(machine.getMemorySize()));
+        parent.loadProgram(LONG_RUNNING);
+        assertFalse(MachineUtil.runMachineUntilHalt(parent, 1000));
+
+        List<com.keithstellyes.machines.shared.Machine> forks = new ArrayList<>(1000);
+        long allocated = Allocations.measure(() -> {
+            for(int i = 0; i < 1000; i++) {
+                forks.add(parent.fork());
+            }
+        });
+        assertTrue(allocated + " bytes for 1000 forks", allocated < 1000 * 2048);
+
+        assertTrue(MachineUtil.runMachineUntilHalt(forks.get(0), Integer.MAX_VALUE));
+        assertFalse(parent.isHalted());
+        assertEquals(StateHash.of(parent), StateHash.of(forks.get(1)));
+        assertEquals(1000, forks.get(1).getStepCount());
+    }
+
     @Test
     public void encrypt() {
         int[] inputs = {0, 1, 2, 20, 67, 93};
@@ -1,13 +1,28 @@
 package com.keithstellyes.machines.mano;
 
+import com.keithstellyes.machines.shared.Allocations;
 import com.keithstellyes.machines.shared.MachineUtil;
 import com.keithstellyes.machines.shared.ShortMemoryBuilder;
+import com.keithstellyes.machines.shared.StatePublisher;
+import com.keithstellyes.machines.shared.diff.DifferentialTester;
+import com.keithstellyes.machines.shared.diff.Divergence;
+import com.keithstellyes.machines.shared.diff.Engine;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
 
 public class Machine_Test {
     InputStream in;
@@ -74,4 +89,349 @@ public class Machine_Test {
         assertEquals(hello.length() - 1, actualOut.length);
         assertEquals(MachineUtil.DID_NOT_GIVE_UP, didNotGiveUp);
     }
+
+    /**
+     * BSA stores the return address in the first word of the subroutine and starts
+     * running from the word after it, and an indirect BUN through that word returns. The
+     * return address isn't run as an instruction on the way in.
+     */
+    @Test
+    public void subroutine() {
+        int call = memoryBuilder.addInstruction(Machine.BSA);
+        memoryBuilder.addInstruction(Machine.OUT);
+        memoryBuilder.addInstruction(Machine.HLT);
+        int returnSlot = memoryBuilder.addInstruction(0);
+        memoryBuilder.addInstruction(Machine.INC);
+        memoryBuilder.addInstruction(Machine.INDIRECT | Machine.BUN | returnSlot);
+        memoryBuilder.set(call, Machine.BSA | returnSlot);
+
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        machine.step();
+        assertEquals(returnSlot + 1, machine.getProgramCounter());
+        assertEquals(MachineUtil.DID_NOT_GIVE_UP, MachineUtil.runMachineUntilHalt(machine, 100));
+        assertEquals(call + 1, machine.readMemoryValue(returnSlot));
+        // BSA, INC, BUN, OUT and HLT
+        assertEquals(5, machine.getStepCount());
+        byte[] actualOut = out.toByteArray();
+        assertEquals(1, actualOut.length);
+        assertEquals(1, actualOut[0]);
+    }
+
+    @Test
+    public void callStackSample() throws IOException {
+        int call = memoryBuilder.addInstruction(Machine.BSA);
+        memoryBuilder.addInstruction(Machine.HLT);
+        int outerSlot = memoryBuilder.addInstruction(0);
+        int innerCall = memoryBuilder.addInstruction(Machine.BSA);
+        memoryBuilder.addInstruction(Machine.INDIRECT | Machine.BUN | outerSlot);
+        int innerSlot = memoryBuilder.addInstruction(0);
+        int halt = memoryBuilder.addInstruction(Machine.HLT);
+        memoryBuilder.set(call, Machine.BSA | outerSlot);
+        memoryBuilder.set(innerCall, Machine.BSA | innerSlot);
+
+        machine.loadProgram(memoryBuilder.getMemory());
+        CallStack callStack = new CallStack();
+        SamplingProfiler profiler = new SamplingProfiler(machine, 1000, callStack);
+
+        assertEquals(MachineUtil.DID_NOT_GIVE_UP, machine.runUntilHalt(100, callStack));
+        profiler.sample();
+
+        StringBuilder collapsed = new StringBuilder();
+        profiler.writeCollapsed(collapsed);
+        assertEquals(String.format("main;sub_%03X;sub_%03X;pc_%03X 1\n", outerSlot + 1,
+                innerSlot + 1, halt + 1), collapsed.toString());
+    }
+
+    /**
+     * Calls a subroutine over and over while the timer thread samples. The subroutine's
+     * frame should only ever be sampled with a program counter inside it, and the main
+     * loop's program counters without it.
+     */
+    @Test
+    public void timerSampling() throws IOException {
+        int loop = memoryBuilder.addInstruction(Machine.BSA);
+        memoryBuilder.addInstruction(Machine.BUN | loop);
+        int slot = memoryBuilder.addInstruction(0);
+        memoryBuilder.addInstruction(Machine.INC);
+        memoryBuilder.addInstruction(Machine.INDIRECT | Machine.BUN | slot);
+        memoryBuilder.set(loop, Machine.BSA | slot);
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        SamplingProfiler profiler = new SamplingProfiler(machine, 50);
+        assertEquals(MachineUtil.DID_GIVE_UP, profiler.run(20_000_000));
+        assertTrue(profiler.getSampleCount() > 0);
+
+        String inMain = "main;pc_%03X";
+        String inSubroutine = "main;sub_%03X;pc_%03X";
+        Set<String> expected = new HashSet<>(Arrays.asList(
+                String.format(inMain, loop), String.format(inMain, loop + 1),
+                String.format(inSubroutine, slot + 1, slot + 1),
+                String.format(inSubroutine, slot + 1, slot + 2)));
+        StringBuilder collapsed = new StringBuilder();
+        profiler.writeCollapsed(collapsed);
+        for(String line : collapsed.toString().split("\n")) {
+            String stack = line.substring(0, line.lastIndexOf(' '));
+            assertTrue(line, expected.contains(stack));
+        }
+    }
+
+    /**
+     * INC then BUN back, so every snapshot should have steps == 2 * AC - PC. An observer
+     * thread checks that the whole time the machine runs.
+     */
+    @Test
+    public void consistentSnapshots() throws InterruptedException {
+        int start = memoryBuilder.addInstruction(Machine.INC);
+        memoryBuilder.addInstruction(Machine.BUN | start);
+        machine.loadProgram(memoryBuilder.getMemory());
+        StatePublisher publisher = new StatePublisher(machine, 7);
+        machine.setStatePublisher(publisher);
+
+        AtomicReference<String> inconsistent = new AtomicReference<>();
+        Thread observer = new Thread(() -> {
+            StatePublisher.Snapshot snapshot = publisher.newSnapshot();
+            do {
+                publisher.read(snapshot);
+                long expectedSteps = 2L * (snapshot.readRegister(Machine.ACC_REG) & 0xFFFF)
+                        - snapshot.getProgramCounter();
+                if(snapshot.getSteps() != expectedSteps) {
+                    inconsistent.set(snapshot.toString());
+                }
+            } while(snapshot.getSteps() < 100_000 && inconsistent.get() == null);
+        });
+        observer.start();
+
+        assertEquals(MachineUtil.DID_GIVE_UP, MachineUtil.runMachineUntilHalt(machine, 100_000));
+        observer.join();
+        assertNull(inconsistent.get());
+
+        StatePublisher.Snapshot last = publisher.newSnapshot();
+        publisher.read(last);
+        assertEquals(100_000, last.getSteps());
+        assertEquals(machine.readRegister(Machine.ACC_REG), last.readRegister(Machine.ACC_REG));
+        assertTrue(last.getMemoryVersion() > 0);
+    }
+
+    /**
+     * Counts forever through a subroutine, printing each count.
+     */
+    @Test
+    public void runLoopDoesNotAllocate() {
+        machine = new Machine(in, Allocations.DISCARD);
+        int count = memoryBuilder.addDatum(0);
+        int start = memoryBuilder.addInstruction(Machine.LDA | count);
+        int call = memoryBuilder.addInstruction(Machine.BSA);
+        memoryBuilder.addInstruction(Machine.STA | count);
+        memoryBuilder.addInstruction(Machine.OUT);
+        memoryBuilder.addInstruction(Machine.CIL);
+        memoryBuilder.addInstruction(Machine.BUN | start);
+        int subroutine = memoryBuilder.addInstruction(0);
+        memoryBuilder.addInstruction(Machine.INC);
+        memoryBuilder.addInstruction(Machine.BUN | Machine.INDIRECT | subroutine);
+        memoryBuilder.set(call, Machine.BSA | subroutine);
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        assertEquals(0, Allocations.runLoop(machine, 100_000, 1_000_000));
+        assertFalse(machine.isHalted());
+    }
+
+    /**
+     * Flips an instruction of a loop between a direct and an indirect LDA on every trip.
+     * Each flip forgets what was found about the loop, until it is given up on instead of
+     * being walked again on every trip.
+     */
+    @Test
+    public void selfModifyingRunLoopDoesNotAllocate() {
+        machine = new Machine(in, Allocations.DISCARD);
+        int flip = memoryBuilder.addDatum(Machine.INDIRECT);
+        int pointer = memoryBuilder.addDatum(0);
+        int start = memoryBuilder.addInstruction(0);
+        memoryBuilder.addInstruction(Machine.ADD | flip);
+        int sta = memoryBuilder.addInstruction(0);
+        int flipped = memoryBuilder.addInstruction(Machine.LDA | pointer);
+        memoryBuilder.addInstruction(Machine.BUN | start);
+        memoryBuilder.set(start, Machine.LDA | flipped);
+        memoryBuilder.set(sta, Machine.STA | flipped);
+        machine.loadProgram(memoryBuilder.getMemory());
+
+        assertEquals(0, Allocations.runLoop(machine, 100_000, 1_000_000));
+        assertFalse(machine.isHalted());
+    }
+
+    @Test
+    public void differential() {
+        int[] registerInstructions = {Machine.CLA, Machine.CLE, Machine.CMA, Machine.CME,
+                Machine.CIR, Machine.CIL, Machine.INC, Machine.SPA, Machine.SNA, Machine.SZA,
+                Machine.SZE, Machine.HLT, Machine.INP, Machine.OUT};
+        Random random = new Random(1);
+        for(int i = 0; i < 50; i++) {
+            short[] program = new short[Machine.MEMORY_COUNT];
+            for(int j = 0; j < 64; j++) {
+                if(random.nextBoolean()) {
+                    program[j] = (short) registerInstructions[random.nextInt(registerInstructions.length)];
+                } else {
+                    program[j] = (short) ((random.nextInt(7) << 12) | random.nextInt(64)
+                            | (random.nextInt(4) == 0 ? Machine.INDIRECT : 0));
+                }
+            }
+            byte[] input = new byte[8];
+            random.nextBytes(input);
+
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(input), out);
+                m.loadProgram(program);
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 64);
+            Divergence divergence = tester.run(5_000);
+            assertNull(String.valueOf(divergence), divergence);
+        }
+    }
+
+    /**
+     * Adds 40 to a total while counting up to 0 with ISZ, which takes the total past the
+     * top of 16 bits and sets the carry on the way. stepMany skips the trips up to there.
+     */
+    @Test
+    public void countedLoop() {
+        int count = memoryBuilder.addDatum(-1000 & 0xFFFF);
+        int total = memoryBuilder.addDatum(0);
+        int add = memoryBuilder.addDatum(40);
+        int start = memoryBuilder.addInstruction(Machine.LDA | count);
+        int isz = memoryBuilder.addInstruction(Machine.ISZ);
+        memoryBuilder.addInstruction(Machine.STA | count);
+        memoryBuilder.addInstruction(Machine.LDA | total);
+        memoryBuilder.addInstruction(Machine.ADD | add);
+        memoryBuilder.addInstruction(Machine.STA | total);
+        memoryBuilder.addInstruction(Machine.BUN | start);
+        int done = memoryBuilder.addInstruction(Machine.HLT);
+        memoryBuilder.set(isz, Machine.ISZ | done);
+        short[] program = memoryBuilder.getMemory();
+
+        DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+            Machine m = new Machine(new ByteArrayInputStream(new byte[0]), out);
+            m.loadProgram(program);
+            return m;
+        }, Engine.REFERENCE, Engine.RUN_LOOP, 10_000);
+        Divergence divergence = tester.run(100_000);
+        assertNull(String.valueOf(divergence), divergence);
+
+        machine.loadProgram(program);
+        machine.writeRegister(Machine.PROGRAM_COUNTER_REG, start);
+        // 32760 is the last total below 2^15
+        assertEquals(7 * (32760 / 40), machine.stepMany(100_000));
+        assertTrue(MachineUtil.runMachineUntilHalt(machine, 100_000));
+        assertEquals(7 * 999 + 3, machine.getStepCount());
+        assertEquals((short) (999 * 40), machine.readMemoryValue(total));
+        assertTrue(machine.hasCarryFlag());
+    }
+
+    /**
+     * Four CPUs counting up in blocks of their own, on threads of their own.
+     */
+    @Test
+    public void multiprocessor() throws InterruptedException {
+        int[] starts = new int[4];
+        int[] totals = new int[4];
+        for(int i = 0; i < 4; i++) {
+            int count = memoryBuilder.addDatum(-1000 & 0xFFFF);
+            totals[i] = memoryBuilder.addDatum(0);
+            starts[i] = memoryBuilder.addInstruction(Machine.LDA | count);
+            int isz = memoryBuilder.addInstruction(Machine.ISZ);
+            memoryBuilder.addInstruction(Machine.STA | count);
+            memoryBuilder.addInstruction(Machine.LDA | totals[i]);
+            memoryBuilder.addInstruction(Machine.INC);
+            memoryBuilder.addInstruction(Machine.STA | totals[i]);
+            memoryBuilder.addInstruction(Machine.BUN | starts[i]);
+            int done = memoryBuilder.addInstruction(Machine.HLT);
+            memoryBuilder.set(isz, Machine.ISZ | done);
+        }
+        short[] program = memoryBuilder.getMemory();
+
+        for(MemoryOrder order : MemoryOrder.values()) {
+            Multiprocessor smp = new Multiprocessor(4, order, in, out);
+            smp.loadProgram(program);
+            for(int i = 0; i < 4; i++) {
+                smp.getCpu(i).writeRegister(Machine.PROGRAM_COUNTER_REG, starts[i]);
+            }
+            assertTrue(smp.run(100_000));
+            for(int i = 0; i < 4; i++) {
+                assertEquals(999, smp.getMemory().read(totals[i]));
+                assertEquals(7 * 999 + 3, smp.getCpu(i).getStepCount());
+            }
+        }
+    }
+
+    /**
+     * Four CPUs each count a shared word up 5000 times with ISZ on memory, none of which may
+     * get lost between another CPU's read and write, on threads of their own and in
+     * lockstep, where store buffers would otherwise hold back every CPU's counts.
+     */
+    @Test
+    public void multiprocessorSharedCounter() throws InterruptedException {
+        int shared = memoryBuilder.addDatum(0);
+        int[] starts = new int[4];
+        for(int i = 0; i < 4; i++) {
+            int count = memoryBuilder.addDatum(-5000 & 0xFFFF);
+            starts[i] = memoryBuilder.addInstruction(Machine.ISZ | shared);
+            memoryBuilder.addInstruction(Machine.ISZ | count);
+            memoryBuilder.addInstruction(Machine.BUN | starts[i]);
+            memoryBuilder.addInstruction(Machine.HLT);
+        }
+        short[] program = memoryBuilder.getMemory();
+
+        for(int run = 0; run < 2 * MemoryOrder.values().length; run++) {
+            MemoryOrder order = MemoryOrder.values()[run / 2];
+            Multiprocessor smp = new Multiprocessor(4, order, Multiprocessor.DEFAULT_STORE_BUFFER_DEPTH,
+                    Multiprocessor.DEFAULT_DRAIN_DELAY, true, in, out);
+            smp.loadProgram(program);
+            for(int i = 0; i < 4; i++) {
+                smp.getCpu(i).writeRegister(Machine.PROGRAM_COUNTER_REG, starts[i]);
+            }
+            assertTrue(run % 2 == 0 ? smp.run(100_000) : smp.runLockstep(100_000));
+            assertEquals(4 * 5000, smp.getMemory().read(shared));
+            for(int i = 0; i < 4; i++) {
+                assertEquals(3 * 5000, smp.getCpu(i).getStepCount());
+            }
+        }
+    }
+
+    /**
+     * Two CPUs each set a flag and then read the other's. One of them has to see the other's
+     * flag set when they take turns, but with store buffers both can read them before
+     * either write gets out, and in lockstep they always do.
+     */
+    @Test
+    public void storeBuffering() {
+        int x = memoryBuilder.addDatum(0);
+        int y = memoryBuilder.addDatum(0);
+        int r0 = memoryBuilder.addDatum(7);
+        int r1 = memoryBuilder.addDatum(7);
+        int[] flags = {x, y};
+        int[] results = {r0, r1};
+        int[] starts = new int[2];
+        for(int i = 0; i < 2; i++) {
+            starts[i] = memoryBuilder.addInstruction(Machine.CLA);
+            memoryBuilder.addInstruction(Machine.INC);
+            memoryBuilder.addInstruction(Machine.STA | flags[i]);
+            memoryBuilder.addInstruction(Machine.LDA | flags[1 - i]);
+            memoryBuilder.addInstruction(Machine.STA | results[i]);
+            memoryBuilder.addInstruction(Machine.HLT);
+        }
+        short[] program = memoryBuilder.getMemory();
+
+        for(MemoryOrder order : MemoryOrder.values()) {
+            Multiprocessor smp = new Multiprocessor(2, order, in, out);
+            smp.loadProgram(program);
+            for(int i = 0; i < 2; i++) {
+                smp.getCpu(i).writeRegister(Machine.PROGRAM_COUNTER_REG, starts[i]);
+            }
+            assertTrue(smp.runLockstep(100));
+            int seen = order == MemoryOrder.SEQUENTIAL ? 1 : 0;
+            assertEquals(seen, smp.getMemory().read(r0));
+            assertEquals(seen, smp.getMemory().read(r1));
+            assertEquals(1, smp.getMemory().read(x));
+            assertEquals(1, smp.getMemory().read(y));
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package com.keithstellyes.machines.shared;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how many bytes the current thread allocates, so tests can hold the run loop to
+ * allocating nothing per instruction.
+ */
+public final class Allocations {
+    /**
+     * Output that goes nowhere without allocating, unlike a ByteArrayOutputStream.
+     */
+    public static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) { }
+    };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() { }
+
+    /**
+     * Runs the machine through MachineUtil's run loop for warmUp instructions, then
+     * measures what running it for steps more allocates.
+     */
+    public static long runLoop(Machine machine, int warmUp, int steps) {
+        MachineUtil.runMachineUntilHalt(machine, warmUp);
+        Runnable run = () -> MachineUtil.runMachineUntilHalt(machine, steps);
+
+        return measure(run);
+    }
+
+    /**
+     * @return bytes allocated by this thread while running r, less what measuring costs
+     */
+    public static long measure(Runnable r) {
+        Runnable nothing = () -> { };
+        // the first calls may load classes
+        allocatedBetween(nothing);
+        long overhead = allocatedBetween(nothing);
+
+        return allocatedBetween(r) - overhead;
+    }
+
+    private static long allocatedBetween(Runnable r) {
+        long id = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(id);
+        r.run();
+
+        return THREADS.getThreadAllocatedBytes(id) - before;
+    }
+}
@@ -0,0 +1,152 @@
+package com.keithstellyes.machines.turing;
+
+import com.keithstellyes.machines.shared.MachineUtil;
+import com.keithstellyes.machines.shared.cache.OutputCache;
+import com.keithstellyes.machines.shared.diff.DifferentialTester;
+import com.keithstellyes.machines.shared.diff.Divergence;
+import com.keithstellyes.machines.shared.diff.Engine;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Machine_Test {
+    private static final String BB2 = "1RB1LB_1LA1RZ";
+    private static final String BB4 = "1RB1LB_1LA0LC_1RZ1LD_1RD0RA";
+    private static final String BB5 = "1RB1LC_1RC1RB_1RD0LE_1LA1LD_1RZ0LA";
+
+    private static Machine machine(String program, int blockSize) {
+        Machine machine = new Machine(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(),
+                blockSize);
+        machine.loadProgram(program);
+
+        return machine;
+    }
+
+    @Test
+    public void busyBeavers() {
+        Machine bb2 = machine(BB2, 1);
+        assertTrue(MachineUtil.runMachineUntilHalt(bb2, 100));
+        assertEquals(6, bb2.getStepCount());
+        assertEquals(4, bb2.countNonBlank());
+
+        for(int blockSize = 1; blockSize <= 4; blockSize++) {
+            Machine bb4 = machine(BB4, blockSize);
+            assertTrue(MachineUtil.runMachineUntilHalt(bb4, 1_000));
+            assertEquals(107, bb4.getStepCount());
+            assertEquals(13, bb4.countNonBlank());
+        }
+    }
+
+    /**
+     * The fifth busy beaver runs for 47,176,870 steps, most of them in runs of the same
+     * block transition that stepMany takes at once.
+     */
+    @Test(timeout = 30_000)
+    public void fifthBusyBeaver() {
+        Machine bb5 = machine(BB5, Machine.DEFAULT_BLOCK_SIZE);
+        assertTrue(MachineUtil.runMachineUntilHalt(bb5, 50_000_000));
+        assertEquals(47_176_870, bb5.getStepCount());
+        assertEquals(4098, bb5.countNonBlank());
+    }
+
+    @Test
+    public void stepBackwards() {
+        Machine machine = machine(BB4, 2);
+        for(int i = 0; i < 50; i++) {
+            machine.step();
+        }
+        int head = machine.readRegister(Machine.HEAD_REG);
+        int state = machine.readRegister(Machine.STATE_REG);
+        int cell = machine.readTape(head);
+        Machine.Delta delta = machine.parseInstruction(machine.getCurrentInstruction());
+        delta.apply(machine);
+        assertFalse(head == machine.readRegister(Machine.HEAD_REG));
+        delta.unapply(machine);
+        assertEquals(head, machine.readRegister(Machine.HEAD_REG));
+        assertEquals(state, machine.readRegister(Machine.STATE_REG));
+        assertEquals(cell, machine.readTape(head));
+    }
+
+    @Test
+    public void badPrograms() {
+        String[] programs = {"1RB", "1RB1LB_1LA", "2RB1LB_1LA1RZ", "1XB1LB_1LA1RZ", "1RB1LB_1LA1R!"};
+        for(String program : programs) {
+            try {
+                machine(program, 1);
+                throw new AssertionError(program + " was loaded");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    /**
+     * A run with the first cell set beforehand isn't answered from the cache with the run
+     * from a blank tape.
+     */
+    @Test
+    public void outputCacheDigestsTheTape() {
+        OutputCache cache = new OutputCache(1 << 10);
+        String program = "1RB0RA_------";
+        Machine blank = machine(program, 1);
+        assertTrue(cache.run(blank, MachineUtil.NEVER_GIVE_UP));
+        assertEquals(2, blank.getStepCount());
+
+        Machine seeded = machine(program, 1);
+        seeded.writeMemory(Machine.address(0), 1);
+        assertTrue(cache.run(seeded, MachineUtil.NEVER_GIVE_UP));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, seeded.getStepCount());
+        assertEquals(0, seeded.readTape(0));
+        assertEquals(1, seeded.readTape(1));
+
+        Machine again = machine(program, 1);
+        assertTrue(cache.run(again, MachineUtil.NEVER_GIVE_UP));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, again.getStepCount());
+        assertEquals(1, again.readTape(0));
+    }
+
+    /**
+     * Random machines of 2 to 4 states and 2 or 3 symbols, run with and without block
+     * transitions at a few block sizes.
+     */
+    @Test
+    public void differential() {
+        Random random = new Random(1);
+        for(int i = 0; i < 200; i++) {
+            int states = 2 + random.nextInt(3);
+            int symbols = 2 + random.nextInt(2);
+            StringBuilder program = new StringBuilder();
+            for(int state = 0; state < states; state++) {
+                if(state > 0) {
+                    program.append('_');
+                }
+                for(int symbol = 0; symbol < symbols; symbol++) {
+                    if(random.nextInt(20) == 0) {
+                        program.append("---");
+                        continue;
+                    }
+                    program.append(random.nextInt(symbols))
+                            .append(random.nextBoolean() ? 'R' : 'L')
+                            .append((char) ('A' + random.nextInt(states + 1)));
+                }
+            }
+            int blockSize = 1 + random.nextInt(4);
+
+            DifferentialTester<Machine> tester = new DifferentialTester<>(out -> {
+                Machine m = new Machine(new ByteArrayInputStream(new byte[0]), out, blockSize);
+                m.loadProgram(program);
+                return m;
+            }, Engine.REFERENCE, Engine.RUN_LOOP, 997);
+            Divergence divergence = tester.run(20_000);
+            assertNull(program + " " + divergence, divergence);
+        }
+    }
+}